@@ -0,0 +1,183 @@
+package io.jenkins.plugins.pipeline.cache;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.GeneralNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.common.collect.ImmutableSet;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import io.jenkins.plugins.pipeline.cache.agent.AbstractMasterToAgentS3Callable;
+import io.jenkins.plugins.pipeline.cache.agent.AwaitBackupsCallable;
+
+/**
+ * Handles 'cacheAwait' step executions. Background uploads (see 'cache' step with <b>async: true</b>) are started only within a
+ * 'cacheAwait' block on the same agent, the block waits at its end until all the background uploads which have been started within the
+ * block are finished (the agent and the workspace are still held then) and prints out the results of them. The block fails if one of the
+ * uploads has been failed (like the 'cache' step does without <b>async</b>). Within the block, 'cacheAwait()' without a block joins the
+ * uploads of the block right away. The new cache items are visible to the {@link RestoreKeyCache} as soon as their uploads have been
+ * joined.<br><br>
+ * Note: an upload reads the cached path while the block goes on, so the cached path must not be modified until the upload has been joined
+ * (otherwise the cache item may be inconsistent).
+ */
+public class CacheAwaitStep extends Step {
+
+    @DataBoundConstructor
+    public CacheAwaitStep() {
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return context.hasBody() ? new CacheAwaitBlockExecution(context) : new CacheAwaitStepExecution(context);
+    }
+
+    /**
+     * Provides the ID of the enclosing 'cacheAwait' block if a background upload can be started in a given context, which means within a
+     * 'cacheAwait' block on the agent of the given path.
+     * @return the ID of the block, or null if there is no such block
+     */
+    static String getScopeId(StepContext context, FilePath path) throws Exception {
+        Scope scope = context.get(Scope.class);
+        return scope != null && Objects.equals(scope.computer, computerOf(path)) ? scope.id : null;
+    }
+
+    /**
+     * Joins the background uploads which have been started within a given 'cacheAwait' block.
+     * @param scope the block, or null if there is no enclosing block (nothing to join)
+     * @throws AbortException if one of the uploads has been failed
+     */
+    private static void join(StepContext context, Scope scope) throws Exception {
+        if (scope == null) {
+            return;
+        }
+        FilePath workspace = context.get(FilePath.class);
+
+        AbstractMasterToAgentS3Callable.Result result = workspace.act(new AwaitBackupsCallable(scope.id));
+        result.printInfos(context.get(TaskListener.class).getLogger());
+        CacheSizeTracker.get().add(result.getSavedBytes());
+
+        // the new cache items may change the resolved keys of other builds
+        CacheConfiguration config = CacheConfiguration.get();
+        result.getSavedKeys().forEach(key -> RestoreKeyCache.get().invalidate(config, key));
+
+        if (!result.getFailedKeys().isEmpty()) {
+            throw new AbortException(String.format("Cache upload has been failed (%s)", String.join(", ", result.getFailedKeys())));
+        }
+    }
+
+    private static String computerOf(FilePath path) {
+        Computer computer = path.toComputer();
+        return computer == null ? null : computer.getName();
+    }
+
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(TaskListener.class, FilePath.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "cacheAwait";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Wait for background cache uploads";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+    }
+
+    /**
+     * Marks the body of a 'cacheAwait' block (unique ID of the block and name of the agent where the uploads are joined). Each block has
+     * its own ID, so that blocks of the same build (e.g. in parallel branches) don't join the uploads of each other.
+     */
+    static final class Scope implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+        private final String computer;
+
+        private Scope(String computer) {
+            this.id = UUID.randomUUID().toString();
+            this.computer = computer;
+        }
+    }
+
+    private static class CacheAwaitStepExecution extends SynchronousNonBlockingStepExecution<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        public CacheAwaitStepExecution(StepContext context) {
+            super(context);
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            join(getContext(), getContext().get(Scope.class));
+            return null;
+        }
+    }
+
+    private static class CacheAwaitBlockExecution extends GeneralNonBlockingStepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        public CacheAwaitBlockExecution(StepContext context) {
+            super(context);
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            Scope scope = new Scope(computerOf(getContext().get(FilePath.class)));
+
+            // execute the body and join the uploads afterwards (even if the body has been failed)
+            getContext().newBodyInvoker().withContext(scope).withCallback(new BodyExecutionCallback() {
+                @Override
+                public void onSuccess(StepContext context, Object result) {
+                    try {
+                        join(context, scope);
+                    } catch (Exception x) {
+                        context.onFailure(x);
+                        return;
+                    }
+                    context.onSuccess(result);
+                }
+
+                @Override
+                public void onFailure(StepContext context, Throwable t) {
+                    try {
+                        join(context, scope);
+                    } catch (Exception x) {
+                        t.addSuppressed(x);
+                    }
+                    context.onFailure(t);
+                }
+            }).start();
+
+            return false;
+        }
+    }
+
+}
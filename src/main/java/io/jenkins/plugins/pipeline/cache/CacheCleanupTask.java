@@ -1,22 +1,58 @@
 package io.jenkins.plugins.pipeline.cache;
 
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.CHUNK_PREFIX;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.LAYER_PREFIX;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.jenkinsci.Symbol;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.MultipartUpload;
+
 import hudson.Extension;
+import hudson.ExtensionList;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.TaskListener;
+import io.jenkins.plugins.pipeline.cache.eviction.EvictionPolicy;
+import io.jenkins.plugins.pipeline.cache.eviction.LruEvictionPolicy;
+import io.jenkins.plugins.pipeline.cache.eviction.PrefixQuota;
 import io.jenkins.plugins.pipeline.cache.s3.CacheItem;
 import io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+import io.jenkins.plugins.pipeline.cache.s3.DeleteResult;
+import io.jenkins.plugins.pipeline.cache.s3.Manifest;
 
 /**
- * Removes periodically last recently used items from the cache.
+ * Removes periodically items from the cache when the threshold or a {@link PrefixQuota} is exceeded (in the order of the configured
+ * {@link EvictionPolicy}, by default last recently used first) and items which have not been accessed within the max age. Chunks (see
+ * {@link Manifest}) are removed as soon as they are not referenced by any cache item anymore. Incremental cache items (see
+ * {@link io.jenkins.plugins.pipeline.cache.s3.Layer}) are removed together with their parent. The creation markers of the cache items are
+ * removed together with the cache items. Besides the hourly run, the cleanup is triggered by the backups as soon as the threshold is
+ * exceeded (see {@link CacheSizeTracker}). Multipart uploads which have never been completed (e.g. the agent died during a backup) are
+ * aborted once they are older than the configured age.<br><br>
+ * The cache items are taken from the {@link Catalog} instead of listing the whole bucket, the catalog segments which have been written by
+ * the backups and restores in the meantime are merged into the catalog snapshot afterwards (even if the threshold is not active).
  */
 @Extension
 @Restricted(NoExternalUse.class)
@@ -25,18 +61,27 @@ public class CacheCleanupTask extends AsyncPeriodicWork {
 
     private static final Logger LOGGER = Logger.getLogger(CacheCleanupTask.class.getName());
 
+    /**
+     * The catalog is aligned with the listing of the bucket once in a while (e.g. to pick up cache items which have been removed by
+     * someone else).
+     */
+    private static final long CATALOG_REBUILD_PERIOD = 24 * 60 * 60 * 1000L; // 24 hours
+
     public CacheCleanupTask() {
         super("Cleanup cache items");
     }
 
+    /**
+     * Runs the cleanup right now in the background, unless it is already running (see {@link CacheSizeTracker}).
+     */
+    static void trigger() {
+        ExtensionList.lookupSingleton(CacheCleanupTask.class).doRun();
+    }
+
     @Override
     protected void execute(TaskListener listener) {
         CacheConfiguration config = CacheConfiguration.get();
-
-        // make sure threshold is active
-        if (config.getThreshold() <= 0) {
-            return;
-        }
+        long mark = CacheSizeTracker.get().mark();
 
         // setup
         CacheItemRepository repo = new CacheItemRepository(
@@ -44,32 +89,443 @@ public class CacheCleanupTask extends AsyncPeriodicWork {
                 config.getPassword().getPlainText(),
                 config.getRegion(),
                 config.getEndpoint(),
-                config.getBucket()
+                config.getBucket(),
+                config.getClientSettings()
         );
-        long thresholdSize = config.getThreshold() * 1024 * 1024;
-        long totalSize = repo.getTotalCacheSize();
+
+        try {
+            // read the catalog (rebuilt from the bucket listing once a day), including the accesses collected so far
+            CatalogAccessBuffer.get().flush(repo);
+            Catalog catalog = repo.readCatalog();
+            if (catalog == null || catalog.getRebuilt() < System.currentTimeMillis() - CATALOG_REBUILD_PERIOD) {
+                catalog = repo.rebuildCatalog(catalog);
+            }
+
+            // make sure threshold, max age or a quota is active
+            List<PrefixQuota> quotas = parseQuotas(config.getQuotas());
+            if (config.getThreshold() > 0 || config.getMaxAge() > 0 || !quotas.isEmpty()) {
+                long size = cleanup(repo, catalog, getEvictionPolicy(config.getEvictionPolicy()), config.getThreshold() * 1024 * 1024,
+                        config.getMaxAge() * 24 * 60 * 60 * 1000L, quotas);
+                CacheSizeTracker.get().update(size, mark);
+            }
+
+            // merge the catalog segments into the snapshot
+            repo.compactCatalog(catalog);
+
+            // abort the multipart uploads of backups which have never been finished (e.g. the agent died)
+            abortIncompleteUploads(repo, config.getIncompleteUploadAge() * 60 * 60 * 1000L);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read or write the catalog", e);
+        }
+    }
+
+    /**
+     * Parses the configured quotas, invalid quotas are ignored (no quotas), so the threshold and max age still apply.
+     */
+    private static List<PrefixQuota> parseQuotas(String value) {
+        try {
+            return PrefixQuota.parse(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning(String.format("ignoring quotas: %s", e.getMessage()));
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Provides the configured eviction policy, falls back to {@link LruEvictionPolicy} if there is no such policy.
+     */
+    private static EvictionPolicy getEvictionPolicy(String name) {
+        try {
+            return EvictionPolicy.get(name);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning(String.format("using the least recently used policy: %s", e.getMessage()));
+            return new LruEvictionPolicy();
+        }
+    }
+
+    /**
+     * @param thresholdSize max size of all the cache items in bytes (0 means no limit)
+     * @param maxAge max age of a cache item in ms since its last access (0 means no limit)
+     * @return approximate total size in bytes after the cleanup
+     */
+    long cleanup(CacheItemRepository repo, Catalog catalog, EvictionPolicy policy, long thresholdSize, long maxAge,
+                         List<PrefixQuota> quotas) {
+        long now = System.currentTimeMillis();
+        long expired = now - CacheItemRepository.GRACE_PERIOD;
+
+        // count the references of the chunks (chunked cache items share their chunks), the catalog knows the chunks of the cache items
+        // (only the manifests of cache items created by older versions are read, once)
+        repo.resolveChunks(catalog);
+        Map<String, ChunkReference> references = new HashMap<>();
+        catalog.findAll().forEach(item -> catalog.get(item.getKey()).getChunks()
+                .forEach(hash -> references.computeIfAbsent(hash, h -> new ChunkReference()).count++));
+
+        // go through the chunks page by page (the listing is never kept in memory), the unreferenced ones are removed right away (the
+        // chunks of backups in progress are protected by the grace period)
+        BatchDeletion unreferencedChunks = new BatchDeletion(repo, "unreferenced chunk(s)", key -> isExpired(repo, key, expired));
+        long chunksSize = repo.findChunks().mapToLong(chunk -> {
+            ChunkReference reference = references.get(chunk.getKey().substring(CHUNK_PREFIX.length()));
+            if (reference != null) {
+                reference.size = chunk.getContentLength();
+                reference.lastModified = chunk.getLastAccess();
+            } else if (chunk.getLastAccess() < expired) {
+                unreferencedChunks.add(chunk.getKey(), chunk.getContentLength());
+            }
+            return chunk.getContentLength();
+        }).sum();
+        unreferencedChunks.flush();
+
+        // go through the layers of the incremental cache items (an incremental cache item is useless without its parent), the layers
+        // of cache items which have never been created (e.g. the backup has been failed) are removed right away
+        Map<String, Long> layers = new HashMap<>();
+        BatchDeletion orphanedLayers = new BatchDeletion(repo, "orphaned layer(s)", key -> true);
+        long layersSize = repo.findLayers().mapToLong(layer -> {
+            String key = layer.getKey().substring(LAYER_PREFIX.length());
+            if (catalog.get(key) != null) {
+                layers.put(key, layer.getContentLength());
+            } else if (layer.getLastAccess() < expired
+                    // the catalog may not know the cache item yet (e.g. created by an older version)
+                    && !repo.exists(key)) {
+                orphanedLayers.add(layer.getKey(), layer.getContentLength());
+            }
+            return layer.getContentLength();
+        }).sum();
+        orphanedLayers.flush();
+
+        Map<String, String> parents = findParents(repo, layers.keySet());
+        Map<String, List<String>> children = new HashMap<>();
+        parents.forEach((child, parent) -> children.computeIfAbsent(parent, k -> new ArrayList<>()).add(child));
+        long totalSize = catalog.getTotalSize()
+                + chunksSize - unreferencedChunks.getBytes()
+                + layersSize - orphanedLayers.getBytes();
+
+        // incremental cache items whose parent not exists anymore are removed anyway
+        Set<String> keysToDelete = new LinkedHashSet<>();
+        long bytesToRemove = totalSize - thresholdSize;
+        for (Map.Entry<String, String> parent : parents.entrySet()) {
+            if (catalog.get(parent.getValue()) == null) {
+                bytesToRemove -= evict(parent.getKey(), keysToDelete, catalog, layers, children, references);
+            }
+        }
+
+        // expired cache items are removed anyway
+        if (maxAge > 0) {
+            List<String> expiredItems = catalog.findAll()
+                    .filter(item -> item.getLastAccess() < now - maxAge)
+                    .map(CacheItem::getKey)
+                    .collect(Collectors.toList());
+            for (String key : expiredItems) {
+                bytesToRemove -= evict(key, keysToDelete, catalog, layers, children, references);
+            }
+        }
+
+        // order of the eviction policy
+        Comparator<Catalog.Entry> policyOrder = policy.getEvictionOrder(now);
+        Comparator<CacheItem> order = Comparator.comparing(item -> catalog.get(item.getKey()), policyOrder);
+
+        // make sure no quota is exceeded (the size of a prefix is the size of its cache items, an evicted item counts with the bytes it
+        // releases -> next round if needed)
+        for (PrefixQuota quota : quotas) {
+            Supplier<Stream<CacheItem>> prefixItems = () -> catalog.findAll().filter(item -> item.getKey().startsWith(quota.getPrefix()));
+            long used = sizeOf(prefixItems.get(), keysToDelete);
+            while (used > quota.getSize()) {
+                List<CacheItem> candidates = selectCandidates(prefixItems.get(), keysToDelete, used - quota.getSize(), order);
+                if (candidates.isEmpty()) {
+                    break;
+                }
+                for (CacheItem item : candidates) {
+                    if (used <= quota.getSize()) {
+                        break;
+                    }
+                    long released = evict(item.getKey(), keysToDelete, catalog, layers, children, references);
+                    bytesToRemove -= released;
+                    used -= released;
+                }
+            }
+        }
 
         // make sure threshold is exceeded
-        if (thresholdSize < totalSize) {
-            // calculate how much data must be removed so that the threshold is not exceeded anymore
-            AtomicLong bytesToRemove = new AtomicLong(totalSize - thresholdSize);
-
-            // collect last recently used items until threshold is not exceeded anymore
-            Stream<String> keysToDelete = repo.findAll()
-                    .sorted(Comparator.comparing(CacheItem::getLastAccess))
-                    .filter(item -> {
-                        if (bytesToRemove.get() <= 0) {
-                            return false;
-                        }
-                        bytesToRemove.addAndGet(-item.getContentLength());
-                        return true;
-                    })
-                    .map(CacheItem::getKey);
-
-            // remove them
-            int count = repo.delete(keysToDelete);
-
-            LOGGER.info(String.format("removed %s item(s)", count));
+        if (thresholdSize > 0 && bytesToRemove > 0) {
+            // collect the items to remove (in the order of the policy) until threshold is not exceeded anymore (a chunk is released with
+            // its last reference and an incremental cache item with its parent, so an item may release more or less than its own size ->
+            // next round if needed)
+            List<CacheItem> candidates = selectCandidates(catalog.findAll(), keysToDelete, bytesToRemove, order);
+            while (bytesToRemove > 0 && !candidates.isEmpty()) {
+                for (CacheItem item : candidates) {
+                    if (bytesToRemove <= 0) {
+                        break;
+                    }
+                    bytesToRemove -= evict(item.getKey(), keysToDelete, catalog, layers, children, references);
+                }
+                candidates = bytesToRemove > 0 ? selectCandidates(catalog.findAll(), keysToDelete, bytesToRemove, order)
+                        : Collections.emptyList();
+            }
+        }
+
+        // remove them (along with their layers), a cache item which could not be removed is kept in the catalog (next run)
+        Set<String> deleted = Collections.emptySet();
+        if (!keysToDelete.isEmpty()) {
+            DeleteResult result = repo.delete(keysToDelete.stream());
+            deleted = result.getDeleted();
+            long bytes = deleted.stream().map(catalog::get).filter(Objects::nonNull).mapToLong(Catalog.Entry::getSize).sum();
+            deleted.forEach(key -> catalog.apply(Catalog.Event.deleted(key)));
+
+            // the chunks of the cache items which could not be removed are still referenced
+            result.getFailed().keySet().forEach(key -> catalog.get(key).getChunks().forEach(hash -> references.get(hash).count++));
+
+            List<String> layersToDelete = deleted.stream()
+                    .filter(layers::containsKey)
+                    .map(key -> LAYER_PREFIX + key)
+                    .collect(Collectors.toList());
+            if (!layersToDelete.isEmpty()) {
+                DeleteResult layerResult = repo.delete(layersToDelete.stream());
+                bytes += layerResult.getDeleted().stream().mapToLong(key -> layers.get(key.substring(LAYER_PREFIX.length()))).sum();
+                logFailures("layer(s)", layerResult);
+            }
+
+            LOGGER.info(String.format("removed %s item(s), %s bytes (%s)", deleted.size(), bytes, result));
+            logFailures("item(s)", result);
+        }
+
+        // remove the creation markers of the removed cache items and of cache items which have never been created (page by page)
+        Set<String> deletedItems = deleted;
+        BatchDeletion markers = new BatchDeletion(repo, "creation marker(s)", key -> true);
+        repo.findCreationMarkers()
+                .filter(marker -> deletedItems.contains(CacheItemRepository.getKeyOfCreationMarker(marker.getKey()))
+                        || catalog.get(CacheItemRepository.getKeyOfCreationMarker(marker.getKey())) == null
+                        && marker.getLastAccess() < expired)
+                .forEach(marker -> markers.add(marker.getKey(), marker.getContentLength()));
+        markers.flush();
+
+        // remove the chunks which are not referenced anymore by the remaining cache items (a chunk which has been modified within the
+        // grace period is removed by one of the next runs)
+        BatchDeletion releasedChunks = new BatchDeletion(repo, "chunk(s)", key -> isExpired(repo, key, expired));
+        references.forEach((hash, reference) -> {
+            if (reference.count <= 0 && reference.lastModified > 0 && reference.lastModified < expired) {
+                releasedChunks.add(CHUNK_PREFIX + hash, reference.size);
+            }
+        });
+        releasedChunks.flush();
+
+        return thresholdSize + bytesToRemove;
+    }
+
+    /**
+     * Returns true if a given chunk has not been modified within the grace period. A backup may have reused the chunk since the listing
+     * (it renews the last modification timestamp then), so the chunk is checked right before it is removed. Note: this is not atomic, a
+     * backup which reuses the chunk between this check and the removal still loses it. The window is narrow though, a backup renews the
+     * lease of an existing chunk only if it is older than the lease renewal period (12 hours) and only chunks which have been
+     * unreferenced for the whole grace period (24 hours) are affected. The restore of such a cache item fails because of the missing
+     * chunk.
+     */
+    private static boolean isExpired(CacheItemRepository repo, String key, long expired) {
+        return repo.getLastModified(key) < expired;
+    }
+
+    /**
+     * Logs the objects which could not be removed (they are removed by one of the next runs).
+     */
+    private static void logFailures(String type, DeleteResult result) {
+        if (!result.getFailed().isEmpty()) {
+            LOGGER.warning(String.format("unable to remove %s %s in %s of %s batch(es): %s", result.getFailed().size(), type,
+                    result.getFailedBatches(), result.getBatches(), result.getFailed()));
+        }
+    }
+
+    /**
+     * Aborts the multipart uploads which have been initiated before a given age, so that their parts are removed.
+     * @param age age in ms
+     */
+    static void abortIncompleteUploads(CacheItemRepository repo, long age) {
+        List<MultipartUpload> uploads;
+        try {
+            uploads = repo.findIncompleteUploads(System.currentTimeMillis() - age).collect(Collectors.toList());
+        } catch (AmazonServiceException e) {
+            // e.g. permission s3:ListBucketMultipartUploads is missing
+            LOGGER.warning(String.format("unable to list incomplete uploads: %s", e.getMessage()));
+            return;
+        }
+
+        int count = 0;
+        long bytes = 0;
+        for (MultipartUpload upload : uploads) {
+            try {
+                long size = repo.getUploadedBytes(upload);
+                repo.abort(upload);
+                count++;
+                bytes += size;
+            } catch (AmazonServiceException e) {
+                // completed or aborted in the meantime
+                if (e.getStatusCode() != 404) {
+                    LOGGER.warning(String.format("unable to abort upload of %s: %s", upload.getKey(), e.getMessage()));
+                }
+            }
+        }
+
+        if (count > 0) {
+            LOGGER.info(String.format("aborted %s incomplete upload(s), %s bytes", count, bytes));
+        }
+    }
+
+    /**
+     * Selects the items which are removed first (in a given order) and which together have at least the given size. Only the selected
+     * items are kept in memory (max heap by the order, the item which would be removed last is dropped as soon as the others are large
+     * enough), the items are not sorted.
+     * @return the selected items, the one to remove first at the beginning (empty if there is nothing to remove)
+     */
+    static List<CacheItem> selectCandidates(Stream<CacheItem> items, Set<String> excluded, long bytes, Comparator<CacheItem> order) {
+        if (bytes <= 0) {
+            return Collections.emptyList();
+        }
+
+        PriorityQueue<CacheItem> heap = new PriorityQueue<>(order.reversed());
+        long heapBytes = 0;
+
+        for (Iterator<CacheItem> it = items.iterator(); it.hasNext(); ) {
+            CacheItem item = it.next();
+            if (excluded.contains(item.getKey())) {
+                continue;
+            }
+            heap.add(item);
+            heapBytes += item.getContentLength();
+            while (!heap.isEmpty() && heapBytes - heap.peek().getContentLength() >= bytes) {
+                heapBytes -= heap.poll().getContentLength();
+            }
+        }
+
+        List<CacheItem> candidates = new ArrayList<>(heap);
+        candidates.sort(order);
+        return candidates;
+    }
+
+    /**
+     * Provides the total size of the given items which are not marked for deletion.
+     */
+    private static long sizeOf(Stream<CacheItem> items, Set<String> keysToDelete) {
+        return items
+                .filter(item -> !keysToDelete.contains(item.getKey()))
+                .mapToLong(CacheItem::getContentLength)
+                .sum();
+    }
+
+    /**
+     * Marks a given cache item and its descendants (incremental cache items which are based on it) for deletion.
+     * @return number of bytes which are released
+     */
+    private static long evict(String key, Set<String> keysToDelete, Catalog catalog, Map<String, Long> layers,
+                              Map<String, List<String>> children, Map<String, ChunkReference> references) {
+        long bytes = 0;
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(key);
+
+        while (!queue.isEmpty()) {
+            String next = queue.poll();
+            Catalog.Entry entry = catalog.get(next);
+            if (entry == null || !keysToDelete.add(next)) {
+                continue;
+            }
+
+            bytes += entry.getSize() + layers.getOrDefault(next, 0L);
+            for (String hash : entry.getChunks()) {
+                ChunkReference reference = references.get(hash);
+                if (--reference.count == 0) {
+                    bytes += reference.size;
+                }
+            }
+            queue.addAll(children.getOrDefault(next, Collections.emptyList()));
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Provides the parents of the incremental cache items (key of the cache item to the key of its parent).
+     */
+    private static Map<String, String> findParents(CacheItemRepository repo, Set<String> keys) {
+        Map<String, String> parents = new HashMap<>();
+
+        for (String key : keys) {
+            try {
+                parents.put(key, repo.readLayer(key).getParent());
+            } catch (AmazonServiceException e) {
+                // removed in the meantime
+                if (e.getStatusCode() == 404) {
+                    continue;
+                }
+                throw e;
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read layer " + key, e);
+            }
+        }
+
+        return parents;
+    }
+
+    /**
+     * Number of references and size (0 if not listed) of a chunk.
+     */
+    private static final class ChunkReference {
+        private int count;
+        private long size;
+        private long lastModified;
+    }
+
+    /**
+     * Removes objects in batches while a listing is streamed, so that the listing is never kept in memory.
+     */
+    private static final class BatchDeletion {
+        private final CacheItemRepository repo;
+        private final String type;
+        private final Predicate<String> filter;
+        private final Map<String, Long> batch = new HashMap<>();
+        private int count;
+        private long bytes;
+
+        /**
+         * @param type type of the objects (for logging)
+         * @param filter checks an object right before it is removed
+         */
+        private BatchDeletion(CacheItemRepository repo, String type, Predicate<String> filter) {
+            this.repo = repo;
+            this.type = type;
+            this.filter = filter;
+        }
+
+        private void add(String key, long size) {
+            batch.put(key, size);
+            if (batch.size() >= CacheItemRepository.DELETE_BATCH_SIZE) {
+                delete();
+            }
+        }
+
+        /**
+         * Removes the remaining objects and logs the result.
+         */
+        private void flush() {
+            delete();
+            if (count > 0) {
+                LOGGER.info(String.format("removed %s %s, %s bytes", count, type, bytes));
+            }
+        }
+
+        private void delete() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            DeleteResult result = repo.delete(batch.keySet().stream().filter(filter));
+            for (String key : result.getDeleted()) {
+                count++;
+                bytes += batch.get(key);
+            }
+            logFailures(type, result);
+            batch.clear();
+        }
+
+        /**
+         * @return number of bytes which have been removed
+         */
+        private long getBytes() {
+            return bytes;
         }
     }
 
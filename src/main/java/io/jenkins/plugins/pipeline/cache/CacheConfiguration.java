@@ -9,8 +9,15 @@ import org.kohsuke.stapler.DataBoundSetter;
 
 import hudson.Extension;
 import hudson.ExtensionList;
+import hudson.Util;
 import hudson.util.Secret;
+import io.jenkins.plugins.pipeline.cache.compression.Compression;
+import io.jenkins.plugins.pipeline.cache.eviction.EvictionPolicy;
+import io.jenkins.plugins.pipeline.cache.eviction.PrefixQuota;
 import io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository;
+import io.jenkins.plugins.pipeline.cache.s3.ClientSettings;
+import io.jenkins.plugins.pipeline.cache.s3.S3InputStream;
+import io.jenkins.plugins.pipeline.cache.s3.S3OutputStream;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
 
@@ -26,12 +33,46 @@ public class CacheConfiguration extends GlobalConfiguration implements Serializa
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Default max size in megabyte of all the upload buffers on an agent.
+     */
+    public static final long DEFAULT_BUFFER_POOL_SIZE = 64;
+
+    /**
+     * Default age in hours after which an incomplete multipart upload is aborted by the cleanup task.
+     */
+    public static final int DEFAULT_INCOMPLETE_UPLOAD_AGE = 24;
+
+    /**
+     * Default max size in megabyte of the local cache on an agent.
+     */
+    public static final long DEFAULT_LOCAL_CACHE_SIZE = 10240;
+
     private String username;
     private Secret password;
     private String bucket;
     private String region;
     private String endpoint;
     private long threshold;
+    private int uploadConcurrency;
+    private long bufferPoolSize;
+    private boolean offHeapBuffers;
+    private String compression;
+    private boolean deduplication;
+    private boolean incrementalBackups;
+    private int compressionThreads;
+    private int downloadConcurrency;
+    private int downloadSegmentSize;
+    private String localCacheDirectory;
+    private long localCacheSize;
+    private int maxConnections;
+    private int socketTimeout;
+    private boolean tcpKeepAlive;
+    private String evictionPolicy;
+    private int maxAge;
+    private String quotas;
+    private long maxItemSize;
+    private int incompleteUploadAge;
 
     public CacheConfiguration() {
         load();
@@ -104,6 +145,393 @@ public class CacheConfiguration extends GlobalConfiguration implements Serializa
         save();
     }
 
+    /**
+     * @return max number of parts which are uploaded in parallel (default: {@link S3OutputStream#PARALLELISM})
+     */
+    public int getUploadConcurrency() {
+        return uploadConcurrency > 0 ? uploadConcurrency : S3OutputStream.PARALLELISM;
+    }
+
+    /**
+     * @param uploadConcurrency max number of parts which are uploaded in parallel when a cache is saved
+     */
+    @DataBoundSetter
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = uploadConcurrency;
+        save();
+    }
+
+    /**
+     * @return max size in megabyte of all the upload buffers on an agent (default: {@link #DEFAULT_BUFFER_POOL_SIZE})
+     */
+    public long getBufferPoolSize() {
+        return bufferPoolSize > 0 ? bufferPoolSize : DEFAULT_BUFFER_POOL_SIZE;
+    }
+
+    /**
+     * @param bufferPoolSize max size in megabyte of all the upload buffers on an agent (shared by all the cache steps on the agent)
+     */
+    @DataBoundSetter
+    public void setBufferPoolSize(long bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+        save();
+    }
+
+    public boolean isOffHeapBuffers() {
+        return offHeapBuffers;
+    }
+
+    /**
+     * @param offHeapBuffers true if the upload buffers should be allocated outside the heap of the agent, otherwise false
+     */
+    @DataBoundSetter
+    public void setOffHeapBuffers(boolean offHeapBuffers) {
+        this.offHeapBuffers = offHeapBuffers;
+        save();
+    }
+
+    /**
+     * @return default compression of the cache items (e.g. <i>zstd:3</i>), see {@link Compression.Setting#parse(String)}
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression default compression which is used if the cache step doesn't define one (e.g. <i>none</i>, <i>gzip</i>,
+     *                    <i>zstd:19</i> or <i>lz4</i>)
+     */
+    @DataBoundSetter
+    public void setCompression(String compression) {
+        this.compression = compression;
+        save();
+    }
+
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * @param deduplication true if new caches should be stored as deduplicated chunks and a manifest, otherwise false
+     */
+    @DataBoundSetter
+    public void setDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+        save();
+    }
+
+    public boolean isIncrementalBackups() {
+        return incrementalBackups;
+    }
+
+    /**
+     * @param incrementalBackups true if a backup should contain only the changes relative to the restored cache (if possible), otherwise
+     * false
+     */
+    @DataBoundSetter
+    public void setIncrementalBackups(boolean incrementalBackups) {
+        this.incrementalBackups = incrementalBackups;
+        save();
+    }
+
+    public FormValidation doCheckCompression(@QueryParameter String value) {
+        try {
+            Compression.Setting.parse(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of threads which are used to compress/decompress an archive (0 means one thread per core of the agent)
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * @param compressionThreads number of threads which are used to compress/decompress an archive (0 means one thread per core of the
+     *                           agent, 1 disables the parallel compression)
+     */
+    @DataBoundSetter
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+        save();
+    }
+
+    public FormValidation doCheckBufferPoolSize(@QueryParameter String value) {
+        try {
+            if (Long.parseLong(value) >= S3OutputStream.BUFFER_SIZE / 1024 / 1024) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("Must be at least the size of one part (10 MB)");
+        } catch (NumberFormatException e) {
+            return FormValidation.error("Not an integer");
+        }
+    }
+
+    /**
+     * @return max number of segments which are downloaded in parallel (default: {@link S3InputStream#PARALLELISM})
+     */
+    public int getDownloadConcurrency() {
+        return downloadConcurrency > 0 ? downloadConcurrency : S3InputStream.PARALLELISM;
+    }
+
+    /**
+     * @param downloadConcurrency max number of segments which are downloaded in parallel when a cache is restored
+     */
+    @DataBoundSetter
+    public void setDownloadConcurrency(int downloadConcurrency) {
+        this.downloadConcurrency = downloadConcurrency;
+        save();
+    }
+
+    /**
+     * @return size of one download segment in megabyte (default: {@link S3InputStream#SEGMENT_SIZE})
+     */
+    public int getDownloadSegmentSize() {
+        return downloadSegmentSize > 0 ? downloadSegmentSize : S3InputStream.SEGMENT_SIZE / 1024 / 1024;
+    }
+
+    /**
+     * @param downloadSegmentSize size of one download segment in megabyte
+     */
+    @DataBoundSetter
+    public void setDownloadSegmentSize(int downloadSegmentSize) {
+        this.downloadSegmentSize = downloadSegmentSize;
+        save();
+    }
+
+    /**
+     * @return directory on the agents where the caches are stored locally (null or empty if the local cache is disabled)
+     */
+    public String getLocalCacheDirectory() {
+        return localCacheDirectory;
+    }
+
+    /**
+     * @param localCacheDirectory directory on the agents where the caches are stored locally, in addition to S3 (null or empty to disable
+     * the local cache)
+     */
+    @DataBoundSetter
+    public void setLocalCacheDirectory(String localCacheDirectory) {
+        this.localCacheDirectory = Util.fixEmptyAndTrim(localCacheDirectory);
+        save();
+    }
+
+    /**
+     * @return max size in megabyte of the local cache on an agent (default: {@link #DEFAULT_LOCAL_CACHE_SIZE})
+     */
+    public long getLocalCacheSize() {
+        return localCacheSize > 0 ? localCacheSize : DEFAULT_LOCAL_CACHE_SIZE;
+    }
+
+    /**
+     * @param localCacheSize max size in megabyte of the local cache on an agent (the least recently used caches are removed first)
+     */
+    @DataBoundSetter
+    public void setLocalCacheSize(long localCacheSize) {
+        this.localCacheSize = localCacheSize;
+        save();
+    }
+
+    /**
+     * @return max number of open connections per S3 client (default: {@link ClientSettings#MAX_CONNECTIONS})
+     */
+    public int getMaxConnections() {
+        return maxConnections > 0 ? maxConnections : ClientSettings.MAX_CONNECTIONS;
+    }
+
+    /**
+     * @param maxConnections max number of open connections per S3 client (the client is shared by all the cache steps on an agent)
+     */
+    @DataBoundSetter
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        save();
+    }
+
+    /**
+     * @return socket timeout in seconds of the S3 connections (default: {@link ClientSettings#SOCKET_TIMEOUT})
+     */
+    public int getSocketTimeout() {
+        return socketTimeout > 0 ? socketTimeout : ClientSettings.SOCKET_TIMEOUT;
+    }
+
+    /**
+     * @param socketTimeout socket timeout in seconds of the S3 connections
+     */
+    @DataBoundSetter
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+        save();
+    }
+
+    public boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    /**
+     * @param tcpKeepAlive true if TCP keep-alive should be enabled on the S3 connections, otherwise false
+     */
+    @DataBoundSetter
+    public void setTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+        save();
+    }
+
+    /**
+     * @return connection settings of the S3 clients
+     */
+    public ClientSettings getClientSettings() {
+        return new ClientSettings(getMaxConnections(), getSocketTimeout(), isTcpKeepAlive());
+    }
+
+    /**
+     * @return name of the eviction policy which is used by the cleanup task (default: {@link EvictionPolicy#DEFAULT})
+     */
+    public String getEvictionPolicy() {
+        return evictionPolicy != null ? evictionPolicy : EvictionPolicy.DEFAULT;
+    }
+
+    /**
+     * @param evictionPolicy name of the eviction policy which defines the order in which the cache items are removed (e.g. <i>lru</i>,
+     *                       <i>lfu</i> or <i>gdsf</i>), see {@link EvictionPolicy}
+     */
+    @DataBoundSetter
+    public void setEvictionPolicy(String evictionPolicy) {
+        this.evictionPolicy = Util.fixEmptyAndTrim(evictionPolicy);
+        save();
+    }
+
+    /**
+     * @return max age in days of a cache item since its last access (0 means no limit)
+     */
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @param maxAge max age in days of a cache item since its last access, older cache items are removed regardless of the threshold
+     *               (0 means no limit)
+     */
+    @DataBoundSetter
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+        save();
+    }
+
+    /**
+     * @return quotas per key prefix (one <code>prefix=size</code> per line, size in megabyte), see {@link PrefixQuota#parse(String)}
+     */
+    public String getQuotas() {
+        return quotas;
+    }
+
+    /**
+     * @param quotas quotas per key prefix (one <code>prefix=size</code> per line, size in megabyte)
+     */
+    @DataBoundSetter
+    public void setQuotas(String quotas) {
+        this.quotas = Util.fixEmptyAndTrim(quotas);
+        save();
+    }
+
+    /**
+     * @return max size in megabyte of a cache item (0 means no limit)
+     */
+    public long getMaxItemSize() {
+        return maxItemSize;
+    }
+
+    /**
+     * @param maxItemSize max size in megabyte of a cache item, larger archives are not uploaded (0 means no limit)
+     */
+    @DataBoundSetter
+    public void setMaxItemSize(long maxItemSize) {
+        this.maxItemSize = maxItemSize;
+        save();
+    }
+
+    /**
+     * @return age in hours after which an incomplete multipart upload is aborted (default: {@link #DEFAULT_INCOMPLETE_UPLOAD_AGE})
+     */
+    public int getIncompleteUploadAge() {
+        return incompleteUploadAge > 0 ? incompleteUploadAge : DEFAULT_INCOMPLETE_UPLOAD_AGE;
+    }
+
+    /**
+     * @param incompleteUploadAge age in hours after which an incomplete multipart upload (e.g. of a backup whose agent died) is aborted
+     *                            by the cleanup task, must be longer than the longest backup
+     */
+    @DataBoundSetter
+    public void setIncompleteUploadAge(int incompleteUploadAge) {
+        this.incompleteUploadAge = incompleteUploadAge;
+        save();
+    }
+
+    public FormValidation doCheckIncompleteUploadAge(@QueryParameter String value) {
+        return doCheckUploadConcurrency(value);
+    }
+
+    public FormValidation doCheckMaxItemSize(@QueryParameter String value) {
+        return doCheckThreshold(value);
+    }
+
+    public FormValidation doCheckEvictionPolicy(@QueryParameter String value) {
+        try {
+            EvictionPolicy.get(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    public FormValidation doCheckMaxAge(@QueryParameter String value) {
+        return doCheckThreshold(value);
+    }
+
+    public FormValidation doCheckQuotas(@QueryParameter String value) {
+        try {
+            PrefixQuota.parse(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    public FormValidation doCheckMaxConnections(@QueryParameter String value) {
+        return doCheckUploadConcurrency(value);
+    }
+
+    public FormValidation doCheckSocketTimeout(@QueryParameter String value) {
+        return doCheckUploadConcurrency(value);
+    }
+
+    public FormValidation doCheckLocalCacheSize(@QueryParameter String value) {
+        return doCheckUploadConcurrency(value);
+    }
+
+    public FormValidation doCheckDownloadConcurrency(@QueryParameter String value) {
+        return doCheckUploadConcurrency(value);
+    }
+
+    public FormValidation doCheckDownloadSegmentSize(@QueryParameter String value) {
+        return doCheckUploadConcurrency(value);
+    }
+
+    public FormValidation doCheckUploadConcurrency(@QueryParameter String value) {
+        try {
+            if (Integer.parseInt(value) > 0) {
+                return FormValidation.ok();
+            }
+            return FormValidation.error("Must be greater than 0");
+        } catch (NumberFormatException e) {
+            return FormValidation.error("Not an integer");
+        }
+    }
+
     public FormValidation doCheckThreshold(@QueryParameter String value) {
         try {
             Integer.parseInt(value);
@@ -123,7 +551,7 @@ public class CacheConfiguration extends GlobalConfiguration implements Serializa
         Objects.requireNonNull(Jenkins.get()).checkPermission(Jenkins.ADMINISTER);
 
         try {
-            CacheItemRepository repo = new CacheItemRepository(username, password, region, endpoint, bucket);
+            CacheItemRepository repo = new CacheItemRepository(username, password, region, endpoint, bucket, getClientSettings());
 
             if (repo.bucketExists()) {
                 return FormValidation.ok("OK");
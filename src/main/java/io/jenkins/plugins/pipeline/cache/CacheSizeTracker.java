@@ -0,0 +1,98 @@
+package io.jenkins.plugins.pipeline.cache;
+
+import java.util.logging.Logger;
+
+/**
+ * Tracks the approximate total size of the cache on the controller, so that the cleanup is triggered as soon as a backup exceeds the
+ * threshold instead of waiting for the next hourly run. The size is taken from the cleanup task (see
+ * {@link #update(long, long)}) and increased by the bytes which are stored by the backups in the meantime (see {@link #add(long)}). As long
+ * as the size is not known yet (the cleanup task has not been executed since the start of the controller), the first backup triggers the
+ * cleanup. The cleanup is triggered at most once per {@link #MIN_TRIGGER_INTERVAL}.
+ */
+public final class CacheSizeTracker {
+
+    private static final Logger LOGGER = Logger.getLogger(CacheSizeTracker.class.getName());
+
+    /**
+     * Min time in milliseconds between two triggered cleanups.
+     */
+    static final long MIN_TRIGGER_INTERVAL = 60 * 1000L; // 1 minute
+
+    private static final CacheSizeTracker INSTANCE = new CacheSizeTracker();
+
+    /**
+     * Total size in bytes after the last cleanup, or -1 if not known yet.
+     */
+    private long size = -1;
+
+    /**
+     * Bytes which have been stored since the start of the controller.
+     */
+    private long added;
+
+    /**
+     * Value of {@link #added} when the last cleanup has been started.
+     */
+    private long addedBeforeCleanup;
+
+    private long lastTrigger;
+
+    private CacheSizeTracker() {
+    }
+
+    /**
+     * Provides the shared instance.
+     */
+    public static CacheSizeTracker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adds the bytes which have been stored by a backup and triggers the cleanup if the threshold is exceeded.
+     */
+    public void add(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+
+        long threshold = CacheConfiguration.get().getThreshold() * 1024 * 1024;
+        synchronized (this) {
+            added += bytes;
+            long estimated = getEstimatedSize();
+            long now = System.currentTimeMillis();
+            if (threshold <= 0 || estimated >= 0 && estimated <= threshold || now - lastTrigger < MIN_TRIGGER_INTERVAL) {
+                return;
+            }
+            lastTrigger = now;
+            LOGGER.fine(String.format("estimated cache size %s exceeds threshold %s -> cleanup", estimated, threshold));
+        }
+
+        CacheCleanupTask.trigger();
+    }
+
+    /**
+     * @return approximate total size of the cache in bytes, or -1 if not known yet
+     */
+    public synchronized long getEstimatedSize() {
+        return size < 0 ? -1 : size + added - addedBeforeCleanup;
+    }
+
+    /**
+     * Marks the start of a cleanup.
+     * @return the mark which has to be passed to {@link #update(long, long)} when the cleanup is finished
+     */
+    synchronized long mark() {
+        return added;
+    }
+
+    /**
+     * Sets the total size after a cleanup (the bytes which have been stored after the start of the cleanup are added).
+     * @param size total size in bytes after the cleanup
+     * @param mark the mark of the start of the cleanup (see {@link #mark()})
+     */
+    synchronized void update(long size, long mark) {
+        this.size = size;
+        this.addedBeforeCleanup = mark;
+    }
+
+}
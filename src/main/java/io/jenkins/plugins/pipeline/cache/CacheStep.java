@@ -17,8 +17,11 @@ import org.kohsuke.stapler.DataBoundSetter;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.TaskListener;
+import io.jenkins.plugins.pipeline.cache.agent.AbstractMasterToAgentS3Callable;
+import io.jenkins.plugins.pipeline.cache.agent.AsyncBackupCallable;
 import io.jenkins.plugins.pipeline.cache.agent.BackupCallable;
 import io.jenkins.plugins.pipeline.cache.agent.RestoreCallable;
+import io.jenkins.plugins.pipeline.cache.compression.Compression;
 
 /**
  * Handles 'cache' step executions.<br><br>
@@ -28,6 +31,9 @@ import io.jenkins.plugins.pipeline.cache.agent.RestoreCallable;
  *     <li>inner-step gets executed</li>
  *     <li>backup of the path gets created (only if inner-step was successful and if the key not already exists)</li>
  * </ol>
+ * If <b>async</b> is enabled, then the backup is uploaded in the background on the agent and the step completes immediately. The upload
+ * is joined by the enclosing 'cacheAwait' block (see {@link CacheAwaitStep}), outside of such a block the backup is uploaded right
+ * away.<br><br>
  * Note: When a cache gets restored then a list of keys (key is the first one followed by the restoreKeys) is used to find a matching key
  * . See {@link io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository#findRestoreKey(String, String...)} for more details.
  */
@@ -64,6 +70,20 @@ public class CacheStep extends Step implements Serializable {
     @DataBoundSetter
     private String excludes;
 
+    /**
+     * (optional) Compression of the archive, codec and optional level (e.g. <i>gzip</i>, <i>zstd:19</i> or <i>lz4</i>). If not set then
+     * the compression of the global configuration is used.
+     */
+    @DataBoundSetter
+    private String compression;
+
+    /**
+     * (optional) Uploads the backup in the background, so that the pipeline is not blocked (default: <i>false</i>). The upload is joined
+     * at the end of the enclosing 'cacheAwait' block, the path must not be modified until then (see {@link CacheAwaitStep}).
+     */
+    @DataBoundSetter
+    private boolean async;
+
     @DataBoundConstructor
     public CacheStep(String path, String key) {
         this.path = path;
@@ -112,16 +132,44 @@ public class CacheStep extends Step implements Serializable {
         public boolean start() throws Exception {
             FilePath workspace = getContext().get(FilePath.class);
             FilePath path = workspace.child(step.path);
+            Compression.Setting compression = Compression.Setting.parse(step.compression != null ? step.compression : config.getCompression());
 
             // restore existing cache
-            path.act(new RestoreCallable(config, step.key, step.restoreKeys)).printInfos(logger);
+            RestoreCallable restoreCallable = new RestoreCallable(config, step.key, step.restoreKeys);
+            RestoreKeyCache.Resolution resolved = RestoreKeyCache.get().lookup(config, step.key, step.restoreKeys);
+            if (resolved != null) {
+                restoreCallable.withResolvedKey(resolved.getResolvedKey());
+            }
+            AbstractMasterToAgentS3Callable.Result restore = path.act(restoreCallable);
+            if (restore.isResolved()) {
+                RestoreKeyCache.get().put(config, step.key, step.restoreKeys, restore.getResolvedKey());
+            }
+            CatalogAccessBuffer.get().add(restore.getAccessedKeys());
+            restore.printInfos(logger);
+            String restoredKey = restore.getRestoredKey();
+            String snapshot = restore.getSnapshot();
 
             // execute inner-step and save cache afterwards
             getContext().newBodyInvoker().withCallback(new BodyExecutionCallback() {
                 @Override
                 public void onSuccess(StepContext context, Object result) {
                     try {
-                        path.act(new BackupCallable(config, step.key, step.includes, step.excludes)).printInfos(logger);
+                        BackupCallable backup = new BackupCallable(
+                                config, step.key, step.includes, step.excludes, compression, restoredKey, snapshot);
+                        String scopeId = step.async ? CacheAwaitStep.getScopeId(context, path) : null;
+                        if (scopeId != null) {
+                            // the upload is joined (and the resolved keys are invalidated) by the enclosing cacheAwait block
+                            path.act(new AsyncBackupCallable(scopeId, step.key, backup)).printInfos(logger);
+                        } else {
+                            if (step.async) {
+                                logger.println("Cache uploaded right away (async uploads need an enclosing cacheAwait block)");
+                            }
+                            AbstractMasterToAgentS3Callable.Result saved = path.act(backup);
+                            saved.printInfos(logger);
+                            CacheSizeTracker.get().add(saved.getSavedBytes());
+                            // the new cache item may change the resolved keys of other builds
+                            RestoreKeyCache.get().invalidate(config, step.key);
+                        }
                     } catch (Exception x) {
                         context.onFailure(x);
                         return;
@@ -132,6 +180,7 @@ public class CacheStep extends Step implements Serializable {
                 @Override
                 public void onFailure(StepContext context, Throwable t) {
                     logger.println("Cache not saved (inner-step execution failed)");
+                    discardSnapshot(path, snapshot);
                     context.onFailure(t);
                 }
             }).start();
@@ -139,6 +188,22 @@ public class CacheStep extends Step implements Serializable {
             return false;
         }
 
+        /**
+         * Removes the snapshot which has been taken after the restore (if any).
+         */
+        private void discardSnapshot(FilePath path, String snapshot) {
+            if (snapshot == null) {
+                return;
+            }
+            try {
+                new FilePath(path.getChannel(), snapshot).delete();
+            } catch (IOException e) {
+                logger.println("Unable to remove snapshot " + snapshot);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
     }
 
 }
\ No newline at end of file
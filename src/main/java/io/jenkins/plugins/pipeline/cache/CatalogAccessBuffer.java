@@ -0,0 +1,161 @@
+package io.jenkins.plugins.pipeline.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import com.amazonaws.AmazonClientException;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+
+/**
+ * Collects the accesses of the cache items (restores) on the controller and appends them to the {@link Catalog} in batches, instead of
+ * writing a catalog segment per restore. The accesses are flushed every minute (see {@link FlushTask}), as soon as {@link #BATCH_SIZE}
+ * accesses have been collected and before the cleanup reads the catalog. Accesses which have not been flushed yet are lost if the
+ * controller is stopped (the cache items look a bit older to the cleanup then).
+ */
+public final class CatalogAccessBuffer {
+
+    private static final Logger LOGGER = Logger.getLogger(CatalogAccessBuffer.class.getName());
+
+    /**
+     * Max number of accesses per catalog segment.
+     */
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * Max number of accesses which are kept if the catalog cannot be written, the oldest ones are dropped first.
+     */
+    static final int MAX_EVENTS = 10 * BATCH_SIZE;
+
+    private static final CatalogAccessBuffer INSTANCE = new CatalogAccessBuffer();
+
+    private List<Catalog.Event> events = new ArrayList<>();
+
+    private CatalogAccessBuffer() {
+    }
+
+    /**
+     * Provides the shared instance.
+     */
+    public static CatalogAccessBuffer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records the access of the given cache items and triggers a flush if a batch is complete.
+     */
+    public void add(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        synchronized (this) {
+            keys.forEach(key -> events.add(Catalog.Event.accessed(key)));
+            if (events.size() > MAX_EVENTS) {
+                LOGGER.warning(String.format("dropped %s cache access(es), the catalog has not been written", events.size() - MAX_EVENTS));
+                events.subList(0, events.size() - MAX_EVENTS).clear();
+            }
+            if (events.size() < BATCH_SIZE) {
+                return;
+            }
+        }
+
+        FlushTask.trigger();
+    }
+
+    /**
+     * @return number of accesses which have not been flushed yet
+     */
+    synchronized int size() {
+        return events.size();
+    }
+
+    /**
+     * Appends the collected accesses to the catalog (one segment per batch). The accesses which could not be appended are kept for the
+     * next flush.
+     */
+    void flush(CacheItemRepository repo) {
+        List<Catalog.Event> pending;
+        synchronized (this) {
+            if (events.isEmpty()) {
+                return;
+            }
+            pending = events;
+            events = new ArrayList<>();
+        }
+
+        int flushed = 0;
+        try {
+            while (flushed < pending.size()) {
+                List<Catalog.Event> batch = pending.subList(flushed, Math.min(flushed + BATCH_SIZE, pending.size()));
+                repo.appendToCatalog(batch.toArray(new Catalog.Event[0]));
+                flushed += batch.size();
+            }
+        } catch (IOException | AmazonClientException e) {
+            LOGGER.log(Level.WARNING, String.format("unable to append %s cache access(es) to the catalog", pending.size() - flushed), e);
+            synchronized (this) {
+                List<Catalog.Event> unflushed = new ArrayList<>(pending.subList(flushed, pending.size()));
+                unflushed.addAll(events);
+                events = unflushed;
+            }
+        }
+    }
+
+    /**
+     * Flushes the collected accesses every minute.
+     */
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static class FlushTask extends AsyncPeriodicWork {
+
+        public FlushTask() {
+            super("Flush cache accesses");
+        }
+
+        /**
+         * Runs the flush right now in the background, unless it is already running.
+         */
+        static void trigger() {
+            ExtensionList.lookupSingleton(FlushTask.class).doRun();
+        }
+
+        @Override
+        protected void execute(TaskListener listener) {
+            if (get().size() == 0) {
+                return;
+            }
+
+            CacheConfiguration config = CacheConfiguration.get();
+            get().flush(new CacheItemRepository(
+                    config.getUsername(),
+                    config.getPassword().getPlainText(),
+                    config.getRegion(),
+                    config.getEndpoint(),
+                    config.getBucket(),
+                    config.getClientSettings()
+            ));
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected Level getNormalLoggingLevel() {
+            return Level.FINE;
+        }
+    }
+
+}
@@ -2,14 +2,29 @@ package io.jenkins.plugins.pipeline.cache;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -19,6 +34,7 @@ import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import com.google.common.collect.ImmutableSet;
 
@@ -26,18 +42,33 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import io.jenkins.plugins.pipeline.cache.agent.HashMemo;
 import jenkins.MasterToSlaveFileCallable;
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
 
 /**
  * Handles 'hashFiles' step executions. For example, <b>hashFiles('**&#47;pom.xml')</b> will create a hash over all pom files within the
- * working directory. If there are no matching files, then d41d8cd98f00b204e9800998ecf8427e is returned (md5 of an empty string).
+ * working directory. The pattern is an Ant-Style pattern relative to the working directory (see {@link PathPattern}), directories which
+ * cannot contain matching files or which are excluded are not entered at all (e.g. <b>excludes: '**&#47;node_modules&#47;**'</b>).<br>
+ * The default algorithm (md5) creates one digest over the contents of all matching files in the order of the paths, so existing keys stay
+ * the same; the files are read ahead in parallel. The other algorithms calculate the digests of the matching files in parallel
+ * (fork-join) and combine them in the order of the paths, so the result is deterministic. Their digests of files which have not been
+ * changed since the last run on the agent are taken from the {@link HashMemo}. If there are no matching files, then the digest of nothing
+ * is returned (e.g. d41d8cd98f00b204e9800998ecf8427e for md5).
  */
 public class HashFilesStep extends Step {
 
     private final String pattern;
 
+    @DataBoundSetter
+    private String excludes;
+
+    @DataBoundSetter
+    private String algorithm;
+
     /**
-     * @param pattern Glob pattern to filter the workspace (e.g. **&#47;pom.xml would include only maven pom files)
+     * @param pattern Ant-Style pattern to filter the workspace (e.g. **&#47;pom.xml would include only maven pom files)
      */
     @DataBoundConstructor
     public HashFilesStep(String pattern) {
@@ -46,7 +77,104 @@ public class HashFilesStep extends Step {
 
     @Override
     public StepExecution start(StepContext context) {
-        return new HashFilesStepExecution(context, pattern);
+        return new HashFilesStepExecution(context, pattern, excludes, Algorithm.parse(algorithm));
+    }
+
+    /**
+     * Digest algorithms which can be used to hash the files.
+     */
+    public enum Algorithm {
+
+        /**
+         * MD5 (default), one digest over the contents of all files (like former versions).
+         */
+        MD5 {
+            @Override
+            Digest create() {
+                return Digest.of(DigestUtils.getMd5Digest());
+            }
+        },
+
+        /**
+         * SHA-256.
+         */
+        SHA256 {
+            @Override
+            Digest create() {
+                return Digest.of(DigestUtils.getSha256Digest());
+            }
+        },
+
+        /**
+         * xxHash64, a fast non-cryptographic hash (provided by lz4-java).
+         */
+        XXHASH64 {
+            @Override
+            Digest create() {
+                StreamingXXHash64 hash = XXHashFactory.fastestInstance().newStreamingHash64(0);
+                return new Digest() {
+                    @Override
+                    public void update(byte[] b, int off, int len) {
+                        hash.update(b, off, len);
+                    }
+
+                    @Override
+                    public byte[] digest() {
+                        return ByteBuffer.allocate(Long.BYTES).putLong(hash.getValue()).array();
+                    }
+
+                    @Override
+                    public void close() {
+                        // the native implementation holds memory outside the heap until the hash is closed
+                        hash.close();
+                    }
+                };
+            }
+        };
+
+        abstract Digest create();
+
+        /**
+         * Parses the name of an algorithm (case insensitive, null means {@link #MD5}).
+         * @throws IllegalArgumentException if the algorithm is not supported
+         */
+        public static Algorithm parse(String name) {
+            if (name == null || name.trim().isEmpty()) {
+                return MD5;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH).replace("-", ""));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Unsupported algorithm '%s' (supported: md5, sha256, xxhash64)", name));
+            }
+        }
+    }
+
+    /**
+     * Incremental digest (see {@link Algorithm#create()}), {@link #digest()} may be called only once. The digest has to be closed.
+     */
+    interface Digest extends AutoCloseable {
+        void update(byte[] b, int off, int len);
+
+        byte[] digest();
+
+        @Override
+        default void close() {
+        }
+
+        static Digest of(MessageDigest digest) {
+            return new Digest() {
+                @Override
+                public void update(byte[] b, int off, int len) {
+                    digest.update(b, off, len);
+                }
+
+                @Override
+                public byte[] digest() {
+                    return digest.digest();
+                }
+            };
+        }
     }
 
     @Extension
@@ -69,48 +197,235 @@ public class HashFilesStep extends Step {
     }
 
     private static class HashFilesStepExecution extends SynchronousNonBlockingStepExecution<String> {
+
+        private static final long serialVersionUID = 1L;
+
         private final String pattern;
+        private final String excludes;
+        private final Algorithm algorithm;
 
-        public HashFilesStepExecution(StepContext context, String pattern) {
+        public HashFilesStepExecution(StepContext context, String pattern, String excludes, Algorithm algorithm) {
             super(context);
             this.pattern = pattern;
+            this.excludes = excludes;
+            this.algorithm = algorithm;
         }
 
         @Override
         protected String run() throws Exception {
             FilePath workdir = getContext().get(FilePath.class);
 
-            return workdir.act(new HashFilesStepExecution.HashFilesCallable(pattern));
+            return workdir.act(new HashFilesStepExecution.HashFilesCallable(pattern, excludes, algorithm));
         }
 
         private static class HashFilesCallable extends MasterToSlaveFileCallable<String> {
 
+            private static final long serialVersionUID = 1L;
+
+            /**
+             * Number of files per processor which are read ahead (md5).
+             */
+            private static final int READ_AHEAD_FILES = 2;
+
+            /**
+             * Max size of a file which is read ahead (md5), larger files are streamed.
+             */
+            private static final long READ_AHEAD_LIMIT = 1024 * 1024;
+
             private final String pattern;
+            private final String excludes;
+            private final Algorithm algorithm;
 
-            private HashFilesCallable(String pattern) {
+            private HashFilesCallable(String pattern, String excludes, Algorithm algorithm) {
                 this.pattern = pattern;
+                this.excludes = excludes;
+                this.algorithm = algorithm;
             }
 
             @Override
-            public String invoke(File workdir, VirtualChannel channel) throws IOException {
-                PathMatcher filter = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
-                MessageDigest checksum = DigestUtils.getMd5Digest();
+            public String invoke(File workdir, VirtualChannel channel) throws IOException, InterruptedException {
+                List<Path> paths = findFiles(workdir.toPath(), PathPattern.parse(pattern), PathPattern.parse(excludes));
+                if (algorithm == Algorithm.MD5) {
+                    return Hex.encodeHexString(digestContents(paths));
+                }
 
-                try (Stream<Path> files = Files.walk(Paths.get(workdir.toURI()))) {
-                    files
-                            .filter(filter::matches)
-                            .sorted()
-                            .forEach(path -> updateChecksum(checksum, path));
+                // digest of each file (in parallel), combined in the order of the paths
+                byte[][] digests = new byte[paths.size()][];
+                HashMemo memo = HashMemo.get();
+                ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+                try {
+                    pool.submit(new DigestTask(algorithm, memo, paths, digests, 0, paths.size())).get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Update checksum has been failed!", e.getCause());
+                } finally {
+                    pool.shutdownNow();
+                }
+                if (memo != null) {
+                    memo.save();
+                }
 
+                try (Digest checksum = algorithm.create()) {
+                    for (byte[] digest : digests) {
+                        checksum.update(digest, 0, digest.length);
+                    }
                     return Hex.encodeHexString(checksum.digest());
                 }
             }
 
-            private void updateChecksum(MessageDigest checksum, Path path) {
+            /**
+             * Creates one md5 digest over the contents of the files in the order of the paths (the result of former versions). Small
+             * files are read ahead in parallel, larger ones are streamed when it is their turn.
+             */
+            private static byte[] digestContents(List<Path> paths) throws IOException, InterruptedException {
+                int window = READ_AHEAD_FILES * Runtime.getRuntime().availableProcessors();
+                ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                try (Digest checksum = Algorithm.MD5.create()) {
+                    Deque<Future<byte[]>> ahead = new ArrayDeque<>();
+                    int next = 0;
+                    for (Path path : paths) {
+                        while (next < paths.size() && ahead.size() < window) {
+                            Path file = paths.get(next++);
+                            ahead.add(pool.submit(() -> Files.size(file) > READ_AHEAD_LIMIT ? null : Files.readAllBytes(file)));
+                        }
+
+                        byte[] content = ahead.remove().get();
+                        if (content != null) {
+                            checksum.update(content, 0, content.length);
+                        } else {
+                            DigestTask.update(checksum, path);
+                        }
+                    }
+                    return checksum.digest();
+                } catch (ExecutionException e) {
+                    throw new IOException("Update checksum has been failed!", e.getCause());
+                } finally {
+                    pool.shutdownNow();
+                }
+            }
+
+            /**
+             * Walks the working directory and collects the files which are included and not excluded. Directories which cannot contain
+             * included files or which are excluded entirely are not entered at all.
+             * @return the files, sorted by path
+             */
+            private static List<Path> findFiles(Path root, PathPattern includes, PathPattern excludes) throws IOException {
+                List<Path> paths = new ArrayList<>();
+                if (includes == null) {
+                    return paths;
+                }
+
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (dir.equals(root)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        String[] segments = segments(root.relativize(dir));
+                        if (!includes.mayMatchBelow(segments) || excludes != null && excludes.matchesAllBelow(segments)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        String[] segments = segments(root.relativize(file));
+                        if (includes.matches(segments) && (excludes == null || !excludes.matches(segments)) && Files.isRegularFile(file)) {
+                            paths.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+                Collections.sort(paths);
+                return paths;
+            }
+
+            private static String[] segments(Path relative) {
+                String[] segments = new String[relative.getNameCount()];
+                for (int i = 0; i < segments.length; i++) {
+                    segments[i] = relative.getName(i).toString();
+                }
+                return segments;
+            }
+        }
+
+        /**
+         * Calculates the digests of a range of files, the range is split until it contains only a few files.
+         */
+        private static class DigestTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private static final int THRESHOLD = 4;
+
+            private static final int BUFFER_SIZE = 64 * 1024;
+
+            private final Algorithm algorithm;
+            private final transient HashMemo memo;
+            private final List<Path> paths;
+            private final byte[][] digests;
+            private final int from;
+            private final int to;
+
+            /**
+             * @param memo remembered digests of unchanged files, or null if the memo is disabled
+             */
+            DigestTask(Algorithm algorithm, HashMemo memo, List<Path> paths, byte[][] digests, int from, int to) {
+                this.algorithm = algorithm;
+                this.memo = memo;
+                this.paths = paths;
+                this.digests = digests;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= THRESHOLD) {
+                    for (int i = from; i < to; i++) {
+                        digests[i] = digest(paths.get(i));
+                    }
+                    return;
+                }
+
+                int middle = (from + to) >>> 1;
+                invokeAll(new DigestTask(algorithm, memo, paths, digests, from, middle),
+                        new DigestTask(algorithm, memo, paths, digests, middle, to));
+            }
+
+            private byte[] digest(Path path) {
                 try {
-                    DigestUtils.updateDigest(checksum, path);
+                    // the attributes are read before the content, so a concurrent change invalidates the remembered digest
+                    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    byte[] remembered = memo == null ? null : memo.lookup(algorithm.name(), path, attrs);
+                    if (remembered != null) {
+                        return remembered;
+                    }
+
+                    long start = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+                    byte[] result;
+                    try (Digest digest = algorithm.create()) {
+                        update(digest, path);
+                        result = digest.digest();
+                    }
+                    if (memo != null) {
+                        memo.put(algorithm.name(), path, attrs, result, start);
+                    }
+                    return result;
                 } catch (IOException e) {
-                    throw new IllegalStateException("Update checksum has been failed!", e);
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            static void update(Digest digest, Path path) throws IOException {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try (InputStream in = Files.newInputStream(path)) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, n);
+                    }
                 }
             }
         }
@@ -0,0 +1,199 @@
+package io.jenkins.plugins.pipeline.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Ant-Style pattern which is matched against paths relative to the working directory (e.g. <b>**&#47;pom.xml</b>). A <b>**</b> segment
+ * matches zero or more directories, <b>*</b> and <b>?</b> match within a segment and <b>{a,b}</b> matches one of the alternatives. A
+ * pattern which ends with <b>/</b> matches everything below. Multiple patterns can be separated by comma.<br><br>
+ * Besides the files, the pattern tells whether a directory may contain matching files at all (see {@link #mayMatchBelow(String[])}), so
+ * that a directory walk doesn't need to enter directories which cannot match.
+ */
+final class PathPattern {
+
+    private static final String ANY_DIRECTORIES = "**";
+
+    /**
+     * Segments of each pattern, a <b>**</b> segment is represented by null.
+     */
+    private final List<Pattern[]> patterns;
+
+    private PathPattern(List<Pattern[]> patterns) {
+        this.patterns = patterns;
+    }
+
+    /**
+     * Parses one or more comma separated patterns.
+     * @return the pattern, or null if the value is null or empty
+     */
+    static PathPattern parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        List<Pattern[]> patterns = new ArrayList<>();
+        for (String pattern : split(value)) {
+            String normalized = pattern.trim().replace('\\', '/');
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            if (normalized.endsWith("/")) {
+                normalized += ANY_DIRECTORIES;
+            }
+
+            Pattern[] segments = Arrays.stream(normalized.split("/+"))
+                    .filter(segment -> !segment.isEmpty() && !segment.equals("."))
+                    .map(segment -> segment.equals(ANY_DIRECTORIES) ? null : compile(segment))
+                    .toArray(Pattern[]::new);
+            patterns.add(segments);
+        }
+
+        return patterns.isEmpty() ? null : new PathPattern(patterns);
+    }
+
+    /**
+     * Returns true if a given path (segments relative to the working directory) matches one of the patterns, otherwise false.
+     */
+    boolean matches(String[] path) {
+        return patterns.stream().anyMatch(pattern -> match(pattern, 0, path, 0, Mode.EXACT));
+    }
+
+    /**
+     * Returns true if a directory (segments relative to the working directory) may contain paths which match one of the patterns,
+     * otherwise false.
+     */
+    boolean mayMatchBelow(String[] directory) {
+        return patterns.stream().anyMatch(pattern -> match(pattern, 0, directory, 0, Mode.PREFIX));
+    }
+
+    /**
+     * Returns true if a directory (segments relative to the working directory) or all the paths below it match one of the patterns,
+     * otherwise false.
+     */
+    boolean matchesAllBelow(String[] directory) {
+        return patterns.stream().anyMatch(pattern -> match(pattern, 0, directory, 0, Mode.EXACT)
+                || match(pattern, 0, directory, 0, Mode.ALL_BELOW));
+    }
+
+    private enum Mode {
+        /**
+         * The whole path has to be matched by the whole pattern.
+         */
+        EXACT,
+
+        /**
+         * The path has to be matched by the beginning of the pattern.
+         */
+        PREFIX,
+
+        /**
+         * The path has to be matched by the beginning of the pattern and the rest of the pattern consists of <b>**</b> only.
+         */
+        ALL_BELOW
+    }
+
+    private static boolean match(Pattern[] pattern, int p, String[] path, int s, Mode mode) {
+        if (s == path.length) {
+            switch (mode) {
+                case PREFIX:
+                    return true;
+                case ALL_BELOW:
+                    return p < pattern.length && allAnyDirectories(pattern, p);
+                default:
+                    return allAnyDirectories(pattern, p);
+            }
+        }
+        if (p == pattern.length) {
+            return false;
+        }
+
+        if (pattern[p] == null) {
+            return match(pattern, p + 1, path, s, mode) || match(pattern, p, path, s + 1, mode);
+        }
+
+        return pattern[p].matcher(path[s]).matches() && match(pattern, p + 1, path, s + 1, mode);
+    }
+
+    private static boolean allAnyDirectories(Pattern[] pattern, int from) {
+        for (int i = from; i < pattern.length; i++) {
+            if (pattern[i] != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compiles one segment of a pattern (<b>*</b>, <b>?</b> and <b>{a,b}</b> are supported).
+     */
+    private static Pattern compile(String segment) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        int braces = 0;
+
+        for (char c : segment.toCharArray()) {
+            if (c == '*' || c == '?' || c == '{' || c == '}' || c == ',' && braces > 0) {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                switch (c) {
+                    case '*':
+                        regex.append("[^/]*");
+                        break;
+                    case '?':
+                        regex.append("[^/]");
+                        break;
+                    case '{':
+                        braces++;
+                        regex.append("(?:");
+                        break;
+                    case '}':
+                        braces--;
+                        regex.append(")");
+                        break;
+                    default:
+                        regex.append("|");
+                }
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        if (braces != 0) {
+            throw new IllegalArgumentException("Unbalanced braces in pattern segment '" + segment + "'");
+        }
+
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Splits a value by comma (except the commas within braces).
+     */
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<>();
+        int braces = 0;
+        int start = 0;
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '{') {
+                braces++;
+            } else if (c == '}') {
+                braces--;
+            } else if (c == ',' && braces == 0) {
+                parts.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(value.substring(start));
+
+        return parts;
+    }
+
+}
@@ -0,0 +1,160 @@
+package io.jenkins.plugins.pipeline.cache;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Remembers on the controller which key has been resolved for a given key and restore keys (see
+ * {@link io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository#findRestoreKey(String, String...)}), so that builds which ask for the
+ * same keys don't need to resolve them again. An entry expires after {@link #TTL}, a negative entry (no key found) already after
+ * {@link #NEGATIVE_TTL}. The entries which may be affected by a new cache item are removed as soon as the cache item has been created (see
+ * {@link #invalidate(CacheConfiguration, String)}). The number of entries is limited, the least recently used ones are removed first.
+ */
+public final class RestoreKeyCache {
+
+    /**
+     * Max number of entries.
+     */
+    static final int MAX_ENTRIES = 1000;
+
+    /**
+     * Time to live in milliseconds of an entry where a key has been found.
+     */
+    static final long TTL = 60 * 1000L; // 1 minute
+
+    /**
+     * Time to live in milliseconds of an entry where no key has been found.
+     */
+    static final long NEGATIVE_TTL = 10 * 1000L; // 10 seconds
+
+    private static final RestoreKeyCache INSTANCE = new RestoreKeyCache();
+
+    private final Map<Query, Resolution> entries = new LinkedHashMap<Query, Resolution>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Query, Resolution> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private RestoreKeyCache() {
+    }
+
+    /**
+     * Provides the shared instance.
+     */
+    public static RestoreKeyCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Provides the resolved key of a given key and restore keys.
+     * @return the resolution (its resolved key is null if no key has been found), or null if there is no valid entry
+     */
+    public Resolution lookup(CacheConfiguration config, String key, String[] restoreKeys) {
+        return lookup(config, key, restoreKeys, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now Unix time in ms of the lookup
+     */
+    synchronized Resolution lookup(CacheConfiguration config, String key, String[] restoreKeys, long now) {
+        Query query = new Query(config, key, restoreKeys);
+        Resolution resolution = entries.get(query);
+
+        if (resolution != null && resolution.expires < now) {
+            entries.remove(query);
+            return null;
+        }
+
+        return resolution;
+    }
+
+    /**
+     * Stores the resolved key of a given key and restore keys.
+     * @param resolvedKey the resolved key, or null if no key has been found
+     */
+    public void put(CacheConfiguration config, String key, String[] restoreKeys, String resolvedKey) {
+        put(config, key, restoreKeys, resolvedKey, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now Unix time in ms when the key has been resolved
+     */
+    synchronized void put(CacheConfiguration config, String key, String[] restoreKeys, String resolvedKey, long now) {
+        long ttl = resolvedKey == null ? NEGATIVE_TTL : TTL;
+        entries.put(new Query(config, key, restoreKeys), new Resolution(resolvedKey, now + ttl));
+    }
+
+    /**
+     * Removes the entries which may resolve to a given new key (the key or one of the restore keys is a prefix of the new key).
+     */
+    public synchronized void invalidate(CacheConfiguration config, String newKey) {
+        entries.keySet().removeIf(query -> query.isAffectedBy(config, newKey));
+    }
+
+    /**
+     * Resolved key of a key and restore keys.
+     */
+    public static final class Resolution {
+        private final String resolvedKey;
+        private final long expires;
+
+        private Resolution(String resolvedKey, long expires) {
+            this.resolvedKey = resolvedKey;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the resolved key, or null if no key has been found
+         */
+        public String getResolvedKey() {
+            return resolvedKey;
+        }
+    }
+
+    private static final class Query {
+        private final String endpoint;
+        private final String bucket;
+        private final String key;
+        private final List<String> restoreKeys;
+
+        private Query(CacheConfiguration config, String key, String[] restoreKeys) {
+            this.endpoint = config.getEndpoint();
+            this.bucket = config.getBucket();
+            this.key = key;
+            this.restoreKeys = restoreKeys == null ? null : Arrays.asList(restoreKeys.clone());
+        }
+
+        private boolean isAffectedBy(CacheConfiguration config, String newKey) {
+            if (!Objects.equals(endpoint, config.getEndpoint()) || !Objects.equals(bucket, config.getBucket())) {
+                return false;
+            }
+
+            return newKey.equals(key) || restoreKeys != null && restoreKeys.stream().anyMatch(k -> k != null && newKey.startsWith(k));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Query query = (Query) o;
+            return Objects.equals(endpoint, query.endpoint)
+                    && Objects.equals(bucket, query.bucket)
+                    && Objects.equals(key, query.key)
+                    && Objects.equals(restoreKeys, query.restoreKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(endpoint, bucket, key, restoreKeys);
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package io.jenkins.plugins.pipeline.cache.agent;
 
+import java.io.File;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -30,7 +31,8 @@ public abstract class AbstractMasterToAgentS3Callable extends MasterToSlaveFileC
                         config.getPassword().getPlainText(),
                         config.getRegion(),
                         config.getEndpoint(),
-                        config.getBucket()
+                        config.getBucket(),
+                        config.getClientSettings()
                 );
             }
         }
@@ -38,6 +40,17 @@ public abstract class AbstractMasterToAgentS3Callable extends MasterToSlaveFileC
         return cacheItemRepository;
     }
 
+    /**
+     * Provides the local cache of the agent, or null if the local cache is disabled.
+     */
+    protected LocalCache localCache() {
+        if (config.getLocalCacheDirectory() == null) {
+            return null;
+        }
+
+        return new LocalCache(new File(config.getLocalCacheDirectory()), config.getLocalCacheSize() * 1024 * 1024);
+    }
+
     public static class ResultBuilder {
 
         private Result result = new Result();
@@ -48,9 +61,74 @@ public abstract class AbstractMasterToAgentS3Callable extends MasterToSlaveFileC
         public Result build() {
             Result build = new Result();
             build.infos = new ArrayList<>(result.infos);
+            build.restoredKey = result.restoredKey;
+            build.snapshot = result.snapshot;
+            build.resolved = result.resolved;
+            build.resolvedKey = result.resolvedKey;
+            build.savedBytes = result.savedBytes;
+            build.savedKeys = new ArrayList<>(result.savedKeys);
+            build.failedKeys = new ArrayList<>(result.failedKeys);
+            build.accessedKeys = new ArrayList<>(result.accessedKeys);
             return build;
         }
 
+        /**
+         * Sets the key of the cache item which has been restored.
+         */
+        public ResultBuilder withRestoredKey(String restoredKey) {
+            result.restoredKey = restoredKey;
+            return this;
+        }
+
+        /**
+         * Sets the key which has been resolved by the key and the restore keys (null if no key has been found).
+         */
+        public ResultBuilder withResolvedKey(String resolvedKey) {
+            result.resolved = true;
+            result.resolvedKey = resolvedKey;
+            return this;
+        }
+
+        /**
+         * Adds a given number of bytes which have been stored in the bucket by a backup.
+         */
+        public ResultBuilder withSavedBytes(long savedBytes) {
+            result.savedBytes += savedBytes;
+            return this;
+        }
+
+        /**
+         * Adds the key of a cache item which has been accessed by a restore (see {@link io.jenkins.plugins.pipeline.cache.s3.Catalog}).
+         */
+        public ResultBuilder withAccessedKey(String accessedKey) {
+            result.accessedKeys.add(accessedKey);
+            return this;
+        }
+
+        /**
+         * Adds the key of a cache item which has been created by a backup.
+         */
+        public ResultBuilder withSavedKey(String savedKey) {
+            result.savedKeys.add(savedKey);
+            return this;
+        }
+
+        /**
+         * Adds the key of a cache item which could not be created by a background upload.
+         */
+        public ResultBuilder withFailedKey(String failedKey) {
+            result.failedKeys.add(failedKey);
+            return this;
+        }
+
+        /**
+         * Sets the path (on the agent) of the snapshot which has been taken after the restore.
+         */
+        public ResultBuilder withSnapshot(String snapshot) {
+            result.snapshot = snapshot;
+            return this;
+        }
+
         /**
          * Adds a given info message to the result.
          */
@@ -61,8 +139,11 @@ public abstract class AbstractMasterToAgentS3Callable extends MasterToSlaveFileC
     }
 
     protected String performanceString(String key, long startNanoTime) {
+        return performanceString(cacheItemRepository().getContentLength(key), startNanoTime);
+    }
+
+    protected String performanceString(long size, long startNanoTime) {
         double duration = (System.nanoTime() - startNanoTime) / 1000000000D;
-        long size = cacheItemRepository().getContentLength(key);
         long speed = (long) (size / duration);
         return String.format("%s bytes in %.2f secs (%s bytes/sec)", size, duration, speed);
     }
@@ -74,6 +155,14 @@ public abstract class AbstractMasterToAgentS3Callable extends MasterToSlaveFileC
         private static final long serialVersionUID = 1L;
 
         private List<String> infos = new ArrayList<>();
+        private String restoredKey;
+        private String snapshot;
+        private boolean resolved;
+        private String resolvedKey;
+        private long savedBytes;
+        private List<String> savedKeys = new ArrayList<>();
+        private List<String> failedKeys = new ArrayList<>();
+        private List<String> accessedKeys = new ArrayList<>();
 
         /**
          * Adds a given info message to the result.
@@ -88,6 +177,69 @@ public abstract class AbstractMasterToAgentS3Callable extends MasterToSlaveFileC
         public void printInfos(PrintStream logger) {
             infos.forEach(logger::println);
         }
+
+        /**
+         * @return the info messages
+         */
+        public List<String> getInfos() {
+            return infos;
+        }
+
+        /**
+         * @return key of the cache item which has been restored, or null
+         */
+        public String getRestoredKey() {
+            return restoredKey;
+        }
+
+        /**
+         * @return true if the key has been resolved by the key and the restore keys (see {@link #getResolvedKey()}), otherwise false
+         */
+        public boolean isResolved() {
+            return resolved;
+        }
+
+        /**
+         * @return the key which has been resolved by the key and the restore keys, or null if no key has been found
+         */
+        public String getResolvedKey() {
+            return resolvedKey;
+        }
+
+        /**
+         * @return number of bytes which have been stored in the bucket by the backup(s)
+         */
+        public long getSavedBytes() {
+            return savedBytes;
+        }
+
+        /**
+         * @return keys of the cache items which have been accessed by the restore (the restored one and its parents)
+         */
+        public List<String> getAccessedKeys() {
+            return accessedKeys;
+        }
+
+        /**
+         * @return keys of the cache items which have been created by the backup(s)
+         */
+        public List<String> getSavedKeys() {
+            return savedKeys;
+        }
+
+        /**
+         * @return keys of the cache items which could not be created by the background upload(s)
+         */
+        public List<String> getFailedKeys() {
+            return failedKeys;
+        }
+
+        /**
+         * @return path (on the agent) of the snapshot which has been taken after the restore, or null
+         */
+        public String getSnapshot() {
+            return snapshot;
+        }
     }
 
 }
@@ -0,0 +1,78 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Runs a {@link BackupCallable} in the background on the agent. The callable returns immediately, the upload is registered by the ID of
+ * the enclosing 'cacheAwait' block, so that it can be joined at the end of the block (see {@link AwaitBackupsCallable}). The upload reads
+ * the path while the build goes on, so the path must not be modified until the upload has been joined.
+ */
+public class AsyncBackupCallable extends MasterToSlaveFileCallable<AbstractMasterToAgentS3Callable.Result> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Executes the background uploads on the agent.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "pipeline-cache-upload");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Uploads which are not joined yet (by ID of the 'cacheAwait' block).
+     */
+    static final Map<String, List<Future<AbstractMasterToAgentS3Callable.Result>>> UPLOADS = new ConcurrentHashMap<>();
+
+    private final String scopeId;
+    private final String key;
+    private final BackupCallable backup;
+
+    /**
+     * @param scopeId ID of the 'cacheAwait' block which joins the upload
+     * @param key the key used for this backup
+     * @param backup the backup which is executed in the background
+     */
+    public AsyncBackupCallable(String scopeId, String key, BackupCallable backup) {
+        this.scopeId = scopeId;
+        this.key = key;
+        this.backup = backup;
+    }
+
+    @Override
+    public AbstractMasterToAgentS3Callable.Result invoke(File path, VirtualChannel channel) {
+        Future<AbstractMasterToAgentS3Callable.Result> upload = EXECUTOR.submit(() -> {
+            try {
+                return backup.invoke(path, channel);
+            } catch (Exception e) {
+                return new AbstractMasterToAgentS3Callable.ResultBuilder()
+                        .withInfo(format("Cache not saved (upload of %s failed: %s)", key, e))
+                        .withFailedKey(key)
+                        .build();
+            }
+        });
+        UPLOADS.compute(scopeId, (id, uploads) -> {
+            List<Future<AbstractMasterToAgentS3Callable.Result>> list = uploads == null ? new ArrayList<>() : uploads;
+            list.add(upload);
+            return list;
+        });
+
+        return new AbstractMasterToAgentS3Callable.ResultBuilder()
+                .withInfo(format("Cache upload started in background (%s)", key))
+                .build();
+    }
+
+}
@@ -0,0 +1,55 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Waits until all the background uploads of a given 'cacheAwait' block have been finished on the agent (see {@link AsyncBackupCallable})
+ * and provides the results of them (including the keys of the failed uploads). The uploads are joined only once, so the result is empty
+ * if there are no uploads (left).
+ */
+public class AwaitBackupsCallable extends MasterToSlaveCallable<AbstractMasterToAgentS3Callable.Result, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String scopeId;
+
+    /**
+     * @param scopeId ID of the 'cacheAwait' block which started the uploads
+     */
+    public AwaitBackupsCallable(String scopeId) {
+        this.scopeId = scopeId;
+    }
+
+    @Override
+    public AbstractMasterToAgentS3Callable.Result call() throws IOException {
+        List<Future<AbstractMasterToAgentS3Callable.Result>> uploads = AsyncBackupCallable.UPLOADS.remove(scopeId);
+        AbstractMasterToAgentS3Callable.ResultBuilder result = new AbstractMasterToAgentS3Callable.ResultBuilder();
+        if (uploads == null) {
+            return result.build();
+        }
+
+        for (Future<AbstractMasterToAgentS3Callable.Result> upload : uploads) {
+            try {
+                AbstractMasterToAgentS3Callable.Result uploaded = upload.get();
+                uploaded.getInfos().forEach(result::withInfo);
+                result.withSavedBytes(uploaded.getSavedBytes());
+                uploaded.getSavedKeys().forEach(result::withSavedKey);
+                uploaded.getFailedKeys().forEach(result::withFailedKey);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a cache upload");
+            } catch (ExecutionException e) {
+                throw new IOException("Cache upload has been failed!", e.getCause());
+            }
+        }
+
+        return result.build();
+    }
+
+}
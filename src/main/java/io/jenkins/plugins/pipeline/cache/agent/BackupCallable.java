@@ -1,41 +1,99 @@
 package io.jenkins.plugins.pipeline.cache.agent;
 
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.ALIAS;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.COMPRESSION;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.COMPRESSION_BLOCKS;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.LAYER;
 import static java.lang.String.format;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 
 import hudson.FilePath;
 import hudson.remoting.VirtualChannel;
 import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
 import io.jenkins.plugins.pipeline.cache.CacheConfiguration;
+import io.jenkins.plugins.pipeline.cache.compression.Compression;
+import io.jenkins.plugins.pipeline.cache.compression.ParallelCompressorOutputStream;
+import io.jenkins.plugins.pipeline.cache.s3.CacheItemOutputStream;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+import io.jenkins.plugins.pipeline.cache.s3.ChunkedOutputStream;
+import io.jenkins.plugins.pipeline.cache.s3.Layer;
+import io.jenkins.plugins.pipeline.cache.s3.Manifest;
+import io.jenkins.plugins.pipeline.cache.s3.PartBufferPool;
+import io.jenkins.plugins.pipeline.cache.s3.S3OutputStream;
 
 /**
- * Creates a tar archive of a given {@link FilePath} and uploads it to S3.
+ * Creates a tar archive of a given {@link FilePath} and uploads it to S3. The archive is streamed directly to S3 (no temporary file), so
+ * the files are read only once. The archive gets compressed on the fly if a compression is defined (in parallel if more than one thread
+ * is available), the codec is stored as metadata. If the deduplication is enabled, then the archive is stored as chunks and a manifest
+ * instead (see {@link ChunkedOutputStream}). If the local cache is enabled, then a copy of the archive is stored there as well.<br><br>
+ * If a {@link TreeSnapshot} has been taken after the restore, then only the files which have been added or changed since then are stored
+ * (delta layer), along with the files which have been deleted (see {@link Layer}). If nothing has been changed at all, then nothing is
+ * uploaded, the new cache item is just an alias of the restored one. An archive which exceeds the max size of a cache item (see
+ * {@link CacheConfiguration#getMaxItemSize()}) is aborted and not stored at all.
  */
 public class BackupCallable extends AbstractMasterToAgentS3Callable {
+
+    private static final long BUFFER_WAIT_REPORT_NANOS = 10000000L; // 10 ms
+
     private final String key;
     private final String includes;
     private final String excludes;
+    private final Compression.Setting compression;
+    private final String restoredKey;
+    private final String snapshot;
+
+    /**
+     * @param config S3 instance and bucket name
+     * @param key the key used for this backup
+     * @param includes Ant-Style pattern to include files (if null then <b>**&#47;*.java</b> is used instead).
+     * @param excludes Ant-Style pattern to exclude files (if null then no files are excluded).
+     * @param compression compression which is applied to the tar archive
+     */
+    public BackupCallable(CacheConfiguration config, String key, String includes, String excludes, Compression.Setting compression) {
+        this(config, key, includes, excludes, compression, null, null);
+    }
 
     /**
      * @param config S3 instance and bucket name
      * @param key the key used for this backup
      * @param includes Ant-Style pattern to include files (if null then <b>**&#47;*.java</b> is used instead).
      * @param excludes Ant-Style pattern to exclude files (if null then no files are excluded).
+     * @param compression compression which is applied to the tar archive
+     * @param restoredKey key of the cache item which has been restored to the path before (or null)
+     * @param snapshot path of the {@link TreeSnapshot} which has been taken after the restore (or null), gets removed by the backup
      */
-    public BackupCallable(CacheConfiguration config, String key, String includes, String excludes) {
+    public BackupCallable(CacheConfiguration config, String key, String includes, String excludes, Compression.Setting compression,
+                          String restoredKey, String snapshot) {
         super(config);
         this.key = key;
         this.includes = includes == null ? "**/*" : includes;
         this.excludes = excludes;
+        this.compression = compression;
+        this.restoredKey = restoredKey;
+        this.snapshot = snapshot;
     }
 
     @Override
     public Result invoke(File path, VirtualChannel channel) throws IOException, InterruptedException {
+        TreeSnapshot tree = readSnapshot();
+
         // make sure that path exists
         if (!path.exists()) {
             return new ResultBuilder()
@@ -57,27 +115,257 @@ public class BackupCallable extends AbstractMasterToAgentS3Callable {
                     .build();
         }
 
-        // do backup
+        // do backup (incremental if possible)
         long start = System.nanoTime();
-        FilePath tmp = new FilePath(File.createTempFile(String.format("cache-item-%s-%d", key, start), null));
-        try (OutputStream outToTmp = tmp.write()) {
-            // create tar archive locally
-            new FilePath(path).tar(outToTmp, new DirScanner.Glob(includes, excludes, false));
-            // create checksum
-            byte[] md5 = DigestUtils.md5(tmp.read());
-            // upload it to S3
-            try (OutputStream outToS3 = cacheItemRepository().createObjectOutputStream(key, md5)) {
-                tmp.copyTo(outToS3);
+        PartBufferPool pool = PartBufferPool.get(
+                config.getBufferPoolSize() * 1024 * 1024,
+                S3OutputStream.BUFFER_SIZE,
+                config.isOffHeapBuffers()
+        );
+        Map<String, String> metadata = new HashMap<>();
+        DirScanner scanner = new DirScanner.Glob(includes, excludes, false);
+        ResultBuilder result = new ResultBuilder();
+
+        if (tree != null) {
+            Delta delta = Delta.of(path, scanner, tree);
+            ObjectMetadata parent = findParent(delta);
+
+            // nothing has been changed since the restore -> the new cache item just refers to the restored one
+            if (parent != null && delta.changes.isEmpty() && delta.deletions.isEmpty()) {
+                cacheItemRepository().writeLayer(key, new Layer(delta.parent, Collections.emptyList()));
+                metadata.put(LAYER, parent.getUserMetadata().getOrDefault(LAYER, "0"));
+                metadata.put(ALIAS, Boolean.TRUE.toString());
+                S3OutputStream alias = cacheItemRepository().createObjectOutputStream(key, metadata, pool, 1);
+                alias.close();
+                register(0, null, alias.getChecksum());
+
+                return result
+                        .withInfo(format("Cache saved as alias of %s (no changes since restore)", delta.parent))
+                        .withInfo(format("Cache saved successfully (%s)", key))
+                        .withSavedKey(key)
+                        .build();
+            }
+
+            if (config.isIncrementalBackups()) {
+                String reason = checkIncremental(delta, parent);
+
+                if (reason == null) {
+                    // the layer must exist before the cache item becomes visible
+                    cacheItemRepository().writeLayer(key, new Layer(delta.parent, delta.deletions));
+                    metadata.put(LAYER, Integer.toString(delta.depth));
+                    scanner = new DeltaScanner(scanner, delta.changes);
+                    result.withInfo(format("Cache saved incrementally (%d changed and %d deleted file(s) relative to %s)",
+                            delta.changes.size(), delta.deletions.size(), delta.parent));
+                } else {
+                    result.withInfo(format("Cache saved as full backup (%s)", reason));
+                }
+            }
+        }
+
+        int threads = Compression.threads(config.getCompressionThreads());
+        CacheItemOutputStream outToS3;
+        Compression.Setting archiveCompression;
+
+        if (config.isDeduplication()) {
+            // the chunks are compressed individually (a compressed archive would break the deduplication)
+            archiveCompression = Compression.Setting.parse(null);
+            outToS3 = cacheItemRepository().createChunkedOutputStream(key, metadata, pool, compression, config.getUploadConcurrency());
+        } else {
+            archiveCompression = compression;
+            metadata.put(COMPRESSION, compression.getCodec().name());
+            if (compression.isParallel(threads)) {
+                metadata.put(COMPRESSION_BLOCKS, Integer.toString(ParallelCompressorOutputStream.BLOCK_SIZE));
+            }
+            outToS3 = cacheItemRepository().createObjectOutputStream(key, metadata, pool, config.getUploadConcurrency());
+        }
+
+        LocalCache localCache = localCache();
+        LocalCache.Entry localCopy = localCache == null ? null : localCache.create(key);
+        SizeLimitedOutputStream limited = null;
+        try {
+            // store a copy in the local cache as well (if enabled)
+            OutputStream archive = localCopy == null ? outToS3 : new TeeOutputStream(outToS3, localCopy.getOutputStream());
+
+            // refuse archives which exceed the max size of a cache item (if defined)
+            limited = new SizeLimitedOutputStream(archive, config.getMaxItemSize() * 1024 * 1024);
+
+            // create (compressed) tar archive and upload it to S3 (note: tar closes the stream even if it fails, that's why it's shielded)
+            OutputStream out = archiveCompression.compress(new CloseShieldOutputStream(limited), threads);
+            new FilePath(path).tar(out, scanner);
+            outToS3.close();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // make sure that an incomplete archive is never stored
+            outToS3.abort();
+            if (localCopy != null) {
+                localCopy.discard();
+            }
+            if (limited != null && limited.isExceeded()) {
+                return new ResultBuilder()
+                        .withInfo(format("Cache not saved (%s exceeds the max size of %s MB)", key, config.getMaxItemSize()))
+                        .build();
             }
+            throw e;
+        }
+
+        if (localCopy != null) {
+            localCopy.commit(outToS3.getETag());
+        }
+        long size = cacheItemRepository().getContentLength(key);
+        register(size, outToS3 instanceof ChunkedOutputStream ? ((ChunkedOutputStream) outToS3).getManifest() : null,
+                outToS3.getChecksum());
+
+        result.withInfo(format("Cache saved successfully (%s)", key));
+        result.withSavedBytes(size);
+        result.withSavedKey(key);
+
+        if (outToS3 instanceof ChunkedOutputStream) {
+            ChunkedOutputStream chunked = (ChunkedOutputStream) outToS3;
+            result.withSavedBytes(chunked.getUploadedBytes());
+            result.withInfo(performanceString(chunked.getManifest().getSize(), start));
+            result.withInfo(format("Uploaded %d of %d chunk(s), %s bytes (%s)",
+                    chunked.getUploadedChunks(),
+                    chunked.getManifest().getChunks().size(),
+                    chunked.getUploadedBytes(),
+                    key));
+        } else {
+            result.withInfo(performanceString(size, start));
+        }
+
+        // let the user know if the upload was slowed down because the buffer pool was exhausted
+        long bufferWaitNanos = outToS3.getBufferWaitNanos();
+        if (bufferWaitNanos >= BUFFER_WAIT_REPORT_NANOS) {
+            result.withInfo(format("Waited %.2f secs for upload buffers (%s)", bufferWaitNanos / 1000000000D, pool));
+        }
+
+        return result.build();
+    }
+
+    /**
+     * Registers the new cache item (creation marker and catalog).
+     * @param size size of the cache item in bytes
+     * @param manifest manifest of a chunked cache item (the catalog keeps track of the chunks), or null
+     * @param checksum MD5 checksum of the stored object (the catalog records it for multipart uploads as well), or null
+     */
+    private void register(long size, Manifest manifest, String checksum) throws IOException {
+        cacheItemRepository().writeCreationMarker(key);
+        cacheItemRepository().appendToCatalog(Catalog.Event.created(key, size, manifest, checksum));
+    }
+
+    /**
+     * Reads the snapshot which has been taken after the restore and removes it afterwards.
+     * @return the snapshot, or null if there is no snapshot (e.g. incremental backups are disabled or the agent has been restarted)
+     */
+    private TreeSnapshot readSnapshot() {
+        if (snapshot == null) {
+            return null;
+        }
+
+        File file = new File(snapshot);
+        try {
+            return TreeSnapshot.read(file);
+        } catch (IOException e) {
+            return null;
         } finally {
-            // delete local tar archive
-            tmp.delete();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Provides the metadata of the cache item which has been restored. If the restored cache item is an alias, then the cache item it
+     * refers to is used instead (see {@link Delta#parent}).
+     * @return the metadata, or null if the cache item not exists anymore
+     */
+    private ObjectMetadata findParent(Delta delta) throws IOException {
+        delta.parent = restoredKey;
+        ObjectMetadata parent = getObjectMetadata(restoredKey);
+
+        if (parent != null && parent.getUserMetadata().containsKey(ALIAS)) {
+            delta.parent = cacheItemRepository().readLayer(restoredKey).getParent();
+            parent = getObjectMetadata(delta.parent);
+        }
+
+        return parent;
+    }
+
+    private ObjectMetadata getObjectMetadata(String key) {
+        try {
+            return cacheItemRepository().getObjectMetadata(key);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
         }
+    }
 
-        return new ResultBuilder()
-                .withInfo(format("Cache saved successfully (%s)", key))
-                .withInfo(performanceString(key, start))
-                .build();
+    /**
+     * Checks whether the backup can be incremental.
+     * @param parent metadata of the parent (see {@link #findParent(Delta)})
+     * @return null if the backup can be incremental, otherwise the reason why not
+     */
+    private String checkIncremental(Delta delta, ObjectMetadata parent) {
+        if (parent == null) {
+            return format("%s not found", delta.parent);
+        }
+
+        delta.depth = Integer.parseInt(parent.getUserMetadata().getOrDefault(LAYER, "0")) + 1;
+        if (delta.depth > RestoreCallable.MAX_LAYERS) {
+            return format("%s has already %d layer(s)", delta.parent, RestoreCallable.MAX_LAYERS);
+        }
+
+        // a layer which replaces most of the files is not worth it
+        if (delta.changedBytes * 2 > delta.totalBytes) {
+            return "most of the files have been changed";
+        }
+
+        return null;
+    }
+
+    /**
+     * Changes of a path since a {@link TreeSnapshot} has been taken.
+     */
+    private static class Delta {
+        private final Set<String> changes = new HashSet<>();
+        private final List<String> deletions = new ArrayList<>();
+        private long changedBytes;
+        private long totalBytes;
+
+        /**
+         * Key of the parent cache item (the restored one, or the one it refers to if it is an alias).
+         */
+        private String parent;
+        private int depth;
+
+        /**
+         * Compares the files of a given path with a given snapshot (the files which are not part of the backup are considered as deleted).
+         */
+        static Delta of(File path, DirScanner scanner, TreeSnapshot tree) throws IOException {
+            Delta delta = new Delta();
+            Set<String> files = new HashSet<>();
+
+            scanner.scan(path, new FileVisitor() {
+                @Override
+                public void visit(File f, String relativePath) throws IOException {
+                    String file = TreeSnapshot.normalize(relativePath);
+                    files.add(file);
+                    delta.totalBytes += f.length();
+
+                    if (!tree.isUnchanged(file, f)) {
+                        delta.changes.add(file);
+                        delta.changedBytes += f.length();
+                    }
+                }
+            });
+
+            tree.getPaths().stream()
+                    .filter(file -> !files.contains(file))
+                    .sorted()
+                    .forEach(delta.deletions::add);
+
+            return delta;
+        }
     }
 
 }
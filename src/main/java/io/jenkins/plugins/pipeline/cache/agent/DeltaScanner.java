@@ -0,0 +1,53 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+
+/**
+ * {@link DirScanner} which visits only the files of another scanner which are part of a given set of files (e.g. the files which have
+ * been changed since a {@link TreeSnapshot} has been taken).
+ */
+class DeltaScanner extends DirScanner {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DirScanner scanner;
+    private final Set<String> relativePaths;
+
+    /**
+     * @param scanner the scanner which provides the files
+     * @param relativePaths relative paths of the files which should be visited (separated by '/')
+     */
+    DeltaScanner(DirScanner scanner, Set<String> relativePaths) {
+        this.scanner = scanner;
+        this.relativePaths = relativePaths;
+    }
+
+    @Override
+    public void scan(File dir, FileVisitor visitor) throws IOException {
+        scanner.scan(dir, new FileVisitor() {
+            @Override
+            public void visit(File f, String relativePath) throws IOException {
+                if (relativePaths.contains(TreeSnapshot.normalize(relativePath))) {
+                    visitor.visit(f, relativePath);
+                }
+            }
+
+            @Override
+            public void visitSymlink(File link, String target, String relativePath) throws IOException {
+                if (relativePaths.contains(TreeSnapshot.normalize(relativePath))) {
+                    visitor.visitSymlink(link, target, relativePath);
+                }
+            }
+
+            @Override
+            public boolean understandsSymlink() {
+                return visitor.understandsSymlink();
+            }
+        });
+    }
+}
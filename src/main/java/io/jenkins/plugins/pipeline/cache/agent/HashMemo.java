@@ -0,0 +1,265 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the digests of files on an agent (used by the 'hashFiles' step), so that files which have not been changed since they have
+ * been hashed the last time are not read again. An entry is identified by the algorithm and the absolute path of the file, it is only
+ * used if the size, the last modification time and the file key (inode) are still the same. Files which have been modified shortly before
+ * they have been hashed are not remembered, because a second modification within the resolution of the modification time would not be
+ * noticed.<br><br>
+ * The number of entries is limited (least recently used ones are removed first). The entries are stored in the home directory of the
+ * user which runs the agent (<i>~/.pipeline-cache/</i>, accessible by the owner only), so they survive a restart of the agent. The memo
+ * is ignored if the directory or the file is owned by someone else or accessible by others (a manipulated digest would make 'hashFiles'
+ * return a wrong hash). Set the system property <i>io.jenkins.plugins.pipeline.cache.agent.HashMemo.disabled</i>
+ * to <i>true</i> to disable the memo.
+ */
+public final class HashMemo {
+
+    private static final Logger LOGGER = Logger.getLogger(HashMemo.class.getName());
+
+    private static final String HEADER = "pipeline-cache-hash-memo 1";
+
+    /**
+     * Max number of entries.
+     */
+    static final int MAX_ENTRIES = 50000;
+
+    /**
+     * Files which have been modified within this time before they are hashed are not remembered.
+     */
+    static final long RACY_WINDOW = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Permissions of the directory, if the file system supports POSIX permissions.
+     */
+    private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+
+    private static final boolean DISABLED = Boolean.getBoolean(HashMemo.class.getName() + ".disabled");
+
+    private static HashMemo instance;
+
+    private final File file;
+    private final Map<String, Fingerprint> entries = new LinkedHashMap<String, Fingerprint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Fingerprint> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean dirty;
+
+    HashMemo(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Provides the memo of the agent (loaded from the home directory on first use), or null if the memo is disabled.
+     */
+    public static synchronized HashMemo get() {
+        if (DISABLED) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new HashMemo(new File(System.getProperty("user.home"), ".pipeline-cache/hash-memo.bin"));
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Provides the remembered digest of a given file, or null if there is no digest or the file has been changed since then.
+     * @param attrs current attributes of the file
+     */
+    public synchronized byte[] lookup(String algorithm, Path path, BasicFileAttributes attrs) {
+        Fingerprint entry = entries.get(key(algorithm, path));
+        if (entry == null || !entry.matches(attrs)) {
+            return null;
+        }
+        return entry.digest.clone();
+    }
+
+    /**
+     * Remembers the digest of a given file.
+     * @param attrs attributes of the file before it has been read
+     * @param start Unix time in ns before the file has been read
+     */
+    public synchronized void put(String algorithm, Path path, BasicFileAttributes attrs, byte[] digest, long start) {
+        if (attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) >= start - RACY_WINDOW) {
+            return;
+        }
+        entries.put(key(algorithm, path), new Fingerprint(attrs.size(), modified(attrs), fileKey(attrs), digest.clone()));
+        dirty = true;
+    }
+
+    /**
+     * Stores the entries if they have been changed (the file is replaced atomically, the last writer wins).
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+
+        try {
+            Path directory = file.getParentFile().toPath();
+            if (!Files.isDirectory(directory)) {
+                createDirectory(directory);
+            }
+            if (!isTrusted(directory)) {
+                LOGGER.fine(String.format("Unable to store %s (directory is not private)", file));
+                return;
+            }
+
+            // note: a temp file is accessible by the owner only
+            Path tmp = Files.createTempFile(directory, file.getName(), ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                write(out);
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to store " + file, e);
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        if (!isTrusted(file.getParentFile().toPath()) || !isTrusted(file.toPath())) {
+            LOGGER.warning(String.format("Ignoring %s (owned by another user or accessible by others)", file));
+            return;
+        }
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            read(in);
+        } catch (IOException | RuntimeException e) {
+            // corrupt or incompatible -> start over
+            entries.clear();
+            LOGGER.log(Level.FINE, "Unable to read " + file, e);
+        }
+    }
+
+    void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeUTF(HEADER);
+        data.writeInt(entries.size());
+        for (Map.Entry<String, Fingerprint> entry : entries.entrySet()) {
+            data.writeUTF(entry.getKey());
+            data.writeLong(entry.getValue().size);
+            data.writeLong(entry.getValue().modified);
+            data.writeUTF(entry.getValue().fileKey);
+            data.writeShort(entry.getValue().digest.length);
+            data.write(entry.getValue().digest);
+        }
+        data.flush();
+    }
+
+    void read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (!HEADER.equals(data.readUTF())) {
+            throw new IOException("Unsupported hash memo format");
+        }
+
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = data.readUTF();
+            long size = data.readLong();
+            long modified = data.readLong();
+            String fileKey = data.readUTF();
+            byte[] digest = new byte[data.readUnsignedShort()];
+            data.readFully(digest);
+            entries.put(key, new Fingerprint(size, modified, fileKey, digest));
+        }
+    }
+
+    private static void createDirectory(Path directory) throws IOException {
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(DIRECTORY_PERMISSIONS));
+        } else {
+            Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * Returns true if a given file is owned by the current user and (if the file system supports POSIX permissions) not accessible by
+     * others, otherwise false.
+     */
+    static boolean isTrusted(Path path) {
+        try {
+            UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!user.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS))) {
+                return false;
+            }
+
+            PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (posix == null) {
+                return true;
+            }
+            Set<PosixFilePermission> permissions = posix.readAttributes().permissions();
+            return Collections.disjoint(permissions, EnumSet.of(PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE,
+                    PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE));
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static String key(String algorithm, Path path) {
+        return algorithm + ':' + path.toAbsolutePath();
+    }
+
+    private static long modified(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the file key (e.g. device and inode), or an empty string if the file system doesn't provide one
+     */
+    private static String fileKey(BasicFileAttributes attrs) {
+        Object fileKey = attrs.fileKey();
+        return fileKey == null ? "" : fileKey.toString();
+    }
+
+    private static class Fingerprint {
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final byte[] digest;
+
+        Fingerprint(long size, long modified, String fileKey, byte[] digest) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.digest = digest;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && modified == modified(attrs) && fileKey.equals(fileKey(attrs));
+        }
+    }
+
+}
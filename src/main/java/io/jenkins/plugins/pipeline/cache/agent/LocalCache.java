@@ -0,0 +1,265 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Cache on the local disk of an agent, which holds copies of the archives stored in S3. An entry is identified by the key and the ETag of
+ * the S3 object, so an entry is only used if the S3 object has not been changed in the meantime. The total size of the entries is limited,
+ * if the limit is exceeded then the least recently used entries are removed (LRU).
+ */
+class LocalCache {
+
+    private static final Logger LOGGER = Logger.getLogger(LocalCache.class.getName());
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long TMP_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private final File dir;
+    private final long maxSize;
+
+    /**
+     * @param dir directory where the entries are stored
+     * @param maxSize max size of all the entries in bytes
+     */
+    LocalCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Provides the entry of a given key and ETag, or null if there is no such entry. The last access time of the entry gets updated.
+     */
+    File get(String key, String eTag) {
+        File entry = entry(key, eTag);
+
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        // last modification time is used as last access time
+        if (!entry.setLastModified(System.currentTimeMillis())) {
+            LOGGER.fine(() -> "Unable to update last modification time of " + entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Creates a new (temporary) entry. The entry becomes visible when it gets committed.
+     */
+    Entry create(String key) throws IOException {
+        Files.createDirectories(dir.toPath());
+        return new Entry(key, File.createTempFile(prefix(key), TMP_SUFFIX, dir));
+    }
+
+    /**
+     * Wraps a given {@link InputStream}, so that the data read from it is stored in a new entry as well. The entry is committed when the
+     * stream gets completed (see {@link CachingInputStream#complete()}), otherwise it is discarded when the stream gets closed.
+     */
+    CachingInputStream cache(String key, String eTag, InputStream in) throws IOException {
+        return new CachingInputStream(in, create(key), eTag);
+    }
+
+    /**
+     * Removes the least recently used entries until the total size is not greater than the max size anymore.
+     */
+    void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+        for (File file : files) {
+            // remove temporary files of crashed executions
+            if (file.getName().endsWith(TMP_SUFFIX) && now - file.lastModified() > TMP_MAX_AGE) {
+                delete(file);
+            } else {
+                totalSize += file.length();
+            }
+        }
+
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        File[] entries = Arrays.stream(files)
+                .filter(File::isFile)
+                .filter(f -> !f.getName().endsWith(TMP_SUFFIX))
+                .sorted(Comparator.comparingLong(File::lastModified))
+                .toArray(File[]::new);
+
+        for (File entry : entries) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            long size = entry.length();
+            if (delete(entry)) {
+                totalSize -= size;
+            }
+        }
+    }
+
+    private File entry(String key, String eTag) {
+        return new File(dir, prefix(key) + eTag.replaceAll("[^A-Za-z0-9-]", ""));
+    }
+
+    private static String prefix(String key) {
+        return DigestUtils.sha256Hex(key.getBytes(StandardCharsets.UTF_8)) + "-";
+    }
+
+    private static boolean delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to delete " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * New entry which is not visible until it gets committed.
+     */
+    class Entry {
+        private final String key;
+        private final File tmp;
+        private final OutputStream out;
+
+        private Entry(String key, File tmp) throws IOException {
+            this.key = key;
+            this.tmp = tmp;
+            this.out = new FileOutputStream(tmp);
+        }
+
+        /**
+         * Provides the stream where the content of the entry is written to.
+         */
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * Makes the entry visible and removes the entries of the same key with another ETag.
+         */
+        void commit(String eTag) throws IOException {
+            out.close();
+
+            File entry = entry(key, eTag);
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            File[] outdated = dir.listFiles(f -> f.getName().startsWith(prefix(key))
+                    && !f.getName().endsWith(TMP_SUFFIX)
+                    && !f.equals(entry));
+            if (outdated != null) {
+                Arrays.stream(outdated).forEach(LocalCache::delete);
+            }
+
+            evict();
+        }
+
+        /**
+         * Removes the entry.
+         */
+        void discard() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close " + tmp, e);
+            }
+            delete(tmp);
+        }
+    }
+
+    /**
+     * {@link InputStream} which stores the data read from it in a new entry.
+     */
+    class CachingInputStream extends FilterInputStream {
+        private final Entry entry;
+        private final String eTag;
+        private boolean completed;
+
+        private CachingInputStream(InputStream in, Entry entry, String eTag) {
+            super(in);
+            this.entry = entry;
+            this.eTag = eTag;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                entry.getOutputStream().write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                entry.getOutputStream().write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buf = new byte[(int) Math.min(8192, Math.max(0, n))];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads the remaining data and commits the entry (should be called if the data has been processed successfully).
+         */
+        void complete() throws IOException {
+            byte[] buf = new byte[8192];
+            while (read(buf) >= 0) {
+                // read remaining data (e.g. padding at the end of a tar archive)
+            }
+            entry.commit(eTag);
+            completed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!completed) {
+                    entry.discard();
+                }
+            }
+        }
+    }
+
+}
@@ -1,23 +1,56 @@
 package io.jenkins.plugins.pipeline.cache.agent;
 
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.ALIAS;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.COMPRESSION;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.COMPRESSION_BLOCKS;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.LAYER;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.MANIFEST;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.isManifest;
 import static java.lang.String.format;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
-import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 
 import hudson.FilePath;
 import hudson.remoting.VirtualChannel;
 import io.jenkins.plugins.pipeline.cache.CacheConfiguration;
+import io.jenkins.plugins.pipeline.cache.compression.Compression;
+import io.jenkins.plugins.pipeline.cache.s3.Layer;
 
 /**
- * Extracts an existing tar archive from S3 to a given {@link FilePath}.
+ * Extracts an existing tar archive from S3 to a given {@link FilePath}. The archive is downloaded in segments and in parallel, and it gets
+ * decompressed on the fly if it is compressed (see {@link io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository#COMPRESSION}). Chunked
+ * cache items are assembled from their chunks (see {@link io.jenkins.plugins.pipeline.cache.s3.ChunkedInputStream}). If the
+ * local cache is enabled and holds an up-to-date copy of the archive, then the copy is extracted instead (otherwise the downloaded archive
+ * is stored in the local cache).<br><br>
+ * An incremental cache item (see {@link Layer}) is restored by extracting its parents first (the full cache item first), then the
+ * archive of each layer, and by removing the files which have been deleted in the layer (an alias has no archive). If the path was empty
+ * before, then a {@link TreeSnapshot} is taken afterwards, so that the backup can find out what has been changed in the meantime.
  */
 public class RestoreCallable extends AbstractMasterToAgentS3Callable {
+
+    /**
+     * Max number of layers on top of a full cache item.
+     */
+    public static final int MAX_LAYERS = 5;
+
     private final String key;
     private final String[] restoreKeys;
+    private boolean resolved;
+    private String resolvedKey;
 
     public RestoreCallable(CacheConfiguration config, String key, String... restoreKeys) {
         super(config);
@@ -25,6 +58,17 @@ public class RestoreCallable extends AbstractMasterToAgentS3Callable {
         this.restoreKeys = restoreKeys;
     }
 
+    /**
+     * Uses a key which has been resolved before (e.g. by a previous build) instead of resolving the key and the restore keys again. If
+     * the resolved key not exists anymore, then they are resolved anyway.
+     * @param resolvedKey the resolved key, or null if no key has been found
+     */
+    public RestoreCallable withResolvedKey(String resolvedKey) {
+        this.resolved = true;
+        this.resolvedKey = resolvedKey;
+        return this;
+    }
+
     @Override
     public Result invoke(File path, VirtualChannel channel) throws IOException, InterruptedException {
         // make sure that the restore path not exists yet or is a directory
@@ -34,29 +78,187 @@ public class RestoreCallable extends AbstractMasterToAgentS3Callable {
                     .build();
         }
 
-        String key = cacheItemRepository().findRestoreKey(this.key, restoreKeys);
+        // true if the key is looked up by this call (the resolved key is reported to the controller then)
+        boolean lookedUp = !resolved;
+        String key = resolved ? resolvedKey : cacheItemRepository().findRestoreKey(this.key, restoreKeys);
 
         // make sure that the cache exists
         if (key == null) {
-            return new ResultBuilder()
-                    .withInfo("Cache not restored (no such key found)")
-                    .build();
+            return notFound(lookedUp);
         }
 
-        // do restore
+        // resolve the layers (the full cache item comes first)
         long startNanoTime = System.nanoTime();
-        try (S3Object s3Object = cacheItemRepository().getS3Object(key);
-             InputStream is = s3Object.getObjectContent()) {
-            new FilePath(path).untarFrom(is, FilePath.TarCompression.NONE);
+        List<String> keys = new ArrayList<>();
+        List<ObjectMetadata> metadataList = new ArrayList<>();
+        List<Layer> layers = new ArrayList<>();
+        for (String layerKey = key; layerKey != null; ) {
+            ObjectMetadata metadata;
+            try {
+                metadata = cacheItemRepository().getObjectMetadata(layerKey);
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() == 404 && keys.isEmpty() && !lookedUp) {
+                    // the key which has been resolved before not exists anymore (e.g. removed by the cleanup task)
+                    lookedUp = true;
+                    key = layerKey = cacheItemRepository().findRestoreKey(this.key, restoreKeys);
+                    if (key == null) {
+                        return notFound(true);
+                    }
+                    continue;
+                }
+                if (e.getStatusCode() == 404 && !keys.isEmpty()) {
+                    return new ResultBuilder()
+                            .withInfo(format("Cache not restored (parent %s of %s not found)", layerKey, keys.get(keys.size() - 1)))
+                            .build();
+                }
+                throw e;
+            }
+            // note: an alias is an additional key on top of the layers
+            if (keys.size() > MAX_LAYERS + 1) {
+                throw new IOException(format("Too many layers (%s)", key));
+            }
+            Layer layer = metadata.getUserMetadata().containsKey(LAYER) ? cacheItemRepository().readLayer(layerKey) : null;
+            keys.add(layerKey);
+            metadataList.add(metadata);
+            layers.add(layer);
+            layerKey = layer == null ? null : layer.getParent();
         }
+        Collections.reverse(keys);
+        Collections.reverse(metadataList);
+        Collections.reverse(layers);
 
-        // update last access timestamp
-        cacheItemRepository().updateLastAccess(key);
+        // do restore (from the local cache if it holds an up-to-date copy, otherwise from S3)
+        boolean empty = isEmpty(path);
+        LocalCache localCache = localCache();
+        List<String> localCacheInfos = new ArrayList<>();
+        long size = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            ObjectMetadata metadata = metadataList.get(i);
+            if (metadata.getUserMetadata().containsKey(ALIAS)) {
+                // nothing to extract
+                continue;
+            }
+            String localCacheInfo = extract(keys.get(i), metadata, localCache, path);
+            if (localCacheInfo != null) {
+                localCacheInfos.add(localCacheInfo);
+            }
+            if (layers.get(i) != null) {
+                delete(path, layers.get(i).getDeletions());
+            }
+            size += isManifest(metadata) ? Long.parseLong(metadata.getUserMetadata().get(MANIFEST)) : metadata.getContentLength();
+        }
 
-        return new ResultBuilder()
+        // the access is recorded in the catalog by the controller (parents are accessed as well), the cache items are not modified
+        ResultBuilder result = new ResultBuilder()
                 .withInfo(format("Cache restored successfully (%s)", key))
-                .withInfo(performanceString(key, startNanoTime))
-                .build();
+                .withInfo(performanceString(size, startNanoTime))
+                .withRestoredKey(key);
+        keys.forEach(result::withAccessedKey);
+
+        if (keys.size() > 1) {
+            result.withInfo(format("Cache restored from %d layer(s) (%s)", keys.size(), String.join(", ", keys)));
+        }
+        localCacheInfos.forEach(result::withInfo);
+        if (lookedUp) {
+            result.withResolvedKey(key);
+        }
+
+        // take a snapshot, so that the next backup can find out what has been changed (only if the path contains nothing but the cache)
+        if (empty) {
+            File snapshot = File.createTempFile("pipeline-cache-", ".snapshot");
+            TreeSnapshot.of(path).write(snapshot);
+            result.withSnapshot(snapshot.getAbsolutePath());
+        }
+
+        return result.build();
+    }
+
+    /**
+     * Creates the result in case no key has been found.
+     * @param lookedUp true if the key and the restore keys have been looked up, false if a key has been provided which was resolved
+     * before
+     */
+    private Result notFound(boolean lookedUp) {
+        ResultBuilder result = new ResultBuilder().withInfo("Cache not restored (no such key found)");
+        if (lookedUp) {
+            result.withResolvedKey(null);
+        }
+
+        return result.build();
+    }
+
+    /**
+     * Extracts the archive of a given cache item to a given path.
+     * @return info about the local cache, or null if the local cache is disabled
+     */
+    private String extract(String key, ObjectMetadata metadata, LocalCache localCache, File path) throws IOException,
+            InterruptedException {
+        File localCopy = localCache == null ? null : localCache.get(key, metadata.getETag());
+
+        if (localCopy != null) {
+            try (InputStream is = decompress(metadata, new FileInputStream(localCopy))) {
+                new FilePath(path).untarFrom(is, FilePath.TarCompression.NONE);
+            }
+            return format("Local cache hit (%s)", key);
+        }
+
+        InputStream content;
+        if (isManifest(metadata)) {
+            content = cacheItemRepository().createChunkedInputStream(
+                    cacheItemRepository().readManifest(key),
+                    config.getDownloadConcurrency());
+        } else {
+            content = cacheItemRepository().createObjectInputStream(
+                    key,
+                    metadata,
+                    config.getDownloadSegmentSize() * 1024 * 1024,
+                    config.getDownloadConcurrency());
+        }
+
+        if (localCache == null) {
+            try (InputStream is = decompress(metadata, content)) {
+                new FilePath(path).untarFrom(is, FilePath.TarCompression.NONE);
+            }
+            return null;
+        }
+
+        // store a copy in the local cache while the archive is extracted
+        try (LocalCache.CachingInputStream caching = localCache.cache(key, metadata.getETag(), content)) {
+            new FilePath(path).untarFrom(decompress(metadata, new CloseShieldInputStream(caching)), FilePath.TarCompression.NONE);
+            caching.complete();
+        }
+        return format("Local cache miss (%s)", key);
+    }
+
+    /**
+     * Removes the files which have been deleted in a layer (files outside of the path are ignored).
+     */
+    private static void delete(File path, List<String> deletions) throws IOException {
+        Path root = path.toPath().toAbsolutePath().normalize();
+        for (String deletion : deletions) {
+            Path file = root.resolve(deletion).normalize();
+            if (file.startsWith(root) && !file.equals(root)) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static boolean isEmpty(File path) {
+        String[] children = path.list();
+        return children == null || children.length == 0;
+    }
+
+    /**
+     * Decompresses the content of an archive (archives without codec are not compressed).
+     */
+    private InputStream decompress(ObjectMetadata metadata, InputStream content) throws IOException {
+        Map<String, String> userMetadata = metadata.getUserMetadata();
+
+        return Compression.of(userMetadata.get(COMPRESSION)).decompress(
+                content,
+                userMetadata.containsKey(COMPRESSION_BLOCKS),
+                Compression.threads(config.getCompressionThreads())
+        );
     }
 
 
@@ -0,0 +1,52 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Fails as soon as more than a given number of bytes are written, so that a backup which exceeds the max size of a cache item is
+ * aborted instead of being uploaded completely. The exception may be wrapped by the writer (e.g. by the tar archiver), that's why
+ * {@link #isExceeded()} should be used to find out whether the limit has been exceeded.
+ */
+class SizeLimitedOutputStream extends FilterOutputStream {
+
+    private final long maxSize;
+    private long size;
+    private boolean exceeded;
+
+    /**
+     * @param maxSize max number of bytes (0 means no limit)
+     */
+    SizeLimitedOutputStream(OutputStream out, long maxSize) {
+        super(out);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        count(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        count(len);
+        out.write(b, off, len);
+    }
+
+    /**
+     * @return true if the limit has been exceeded, otherwise false
+     */
+    boolean isExceeded() {
+        return exceeded;
+    }
+
+    private void count(int len) throws IOException {
+        size += len;
+        if (maxSize > 0 && size > maxSize) {
+            exceeded = true;
+            throw new IOException(String.format("Max size of %s bytes exceeded", maxSize));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size and last modification time of each file of a directory tree. A snapshot is taken right after a cache has been restored, so that the
+ * backup can find out which files have been changed since then. Note: The content of the files is not hashed, because this would mean to
+ * read the whole tree twice. A file is considered as changed if its size or its last modification time differs (like rsync or git do).
+ */
+class TreeSnapshot {
+
+    private static final int VERSION = 1;
+
+    /**
+     * Relative path (separated by '/') to size and last modification time.
+     */
+    private final Map<String, long[]> files;
+
+    private TreeSnapshot(Map<String, long[]> files) {
+        this.files = files;
+    }
+
+    /**
+     * Takes a snapshot of a given directory (symbolic links are not followed).
+     */
+    static TreeSnapshot of(File dir) throws IOException {
+        Map<String, long[]> files = new HashMap<>();
+        Path root = dir.toPath();
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isDirectory()) {
+                    files.put(relativize(root, file), new long[] {attrs.size(), attrs.lastModifiedTime().toMillis()});
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return new TreeSnapshot(files);
+    }
+
+    /**
+     * Returns true if a given file has the same size and last modification time as in the snapshot, otherwise false.
+     * @param relativePath relative path of the file (separated by '/')
+     */
+    boolean isUnchanged(String relativePath, File file) throws IOException {
+        long[] stat = files.get(relativePath);
+        if (stat == null) {
+            return false;
+        }
+
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return attrs.size() == stat[0] && attrs.lastModifiedTime().toMillis() == stat[1];
+    }
+
+    /**
+     * @return relative paths of all the files in the snapshot (separated by '/')
+     */
+    Set<String> getPaths() {
+        return files.keySet();
+    }
+
+    void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (Map.Entry<String, long[]> entry : files.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        }
+    }
+
+    static TreeSnapshot read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported snapshot format");
+            }
+
+            int count = in.readInt();
+            Map<String, long[]> files = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                files.put(in.readUTF(), new long[] {in.readLong(), in.readLong()});
+            }
+            return new TreeSnapshot(files);
+        }
+    }
+
+    /**
+     * Provides the relative path of a file (separated by '/', regardless of the platform).
+     */
+    static String relativize(Path root, Path file) {
+        return normalize(root.relativize(file).toString());
+    }
+
+    /**
+     * Replaces the platform specific separator of a given relative path by '/'.
+     */
+    static String normalize(String relativePath) {
+        return File.separatorChar == '/' ? relativePath : relativePath.replace(File.separatorChar, '/');
+    }
+}
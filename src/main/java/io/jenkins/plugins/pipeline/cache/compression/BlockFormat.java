@@ -0,0 +1,124 @@
+package io.jenkins.plugins.pipeline.cache.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Block format which allows compressing and decompressing an archive in parallel. The archive is split into blocks of a fixed size and each
+ * block is compressed independently (one complete frame per block, e.g. one gzip member or one zstd frame). The compressed blocks are
+ * stored in the same order as they have been written, each one is prefixed by a header:
+ * <pre>
+ * +--------------------+--------------------------+------------------------------+
+ * | raw size (4 bytes) | compressed size (4 bytes) | compressed data (n bytes)    |
+ * +--------------------+--------------------------+------------------------------+
+ * </pre>
+ * The end of the archive is marked by a header where both sizes are 0. The compression and the decompression of the blocks is executed
+ * on a {@link ForkJoinPool}, which is shared by all the archives in the JVM (one thread per core). Each archive limits the number of its
+ * blocks which are processed at the same time to the configured number of threads (see {@link #permits(int)}).
+ *
+ * @see ParallelCompressorOutputStream
+ * @see ParallelDecompressorInputStream
+ */
+final class BlockFormat {
+
+    /**
+     * Raw size of one block (default: 1 MB).
+     */
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static ForkJoinPool pool;
+
+    private BlockFormat() {
+    }
+
+    /**
+     * Provides the pool which is used to compress/decompress the blocks (one thread per core).
+     */
+    static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Provides the max number of blocks which are held in memory by one stream (processed or waiting to be written/read), based on the
+     * given number of threads.
+     */
+    static int maxBlocksInFlight(int threads) {
+        return threads + 2;
+    }
+
+    /**
+     * Provides the permits which limit the number of blocks of one stream which are processed at the same time to the given number of
+     * threads (a permit is acquired before a block is submitted to the pool and released as soon as the block has been processed).
+     */
+    static Semaphore permits(int threads) {
+        return new Semaphore(Math.max(1, threads));
+    }
+
+    /**
+     * Acquires a permit (see {@link #permits(int)}).
+     */
+    static void acquire(Semaphore permits) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a compression thread");
+        }
+    }
+
+    static void writeHeader(OutputStream out, int rawSize, int compressedSize) throws IOException {
+        byte[] header = new byte[8];
+        writeInt(header, 0, rawSize);
+        writeInt(header, 4, compressedSize);
+        out.write(header);
+    }
+
+    /**
+     * Reads the header of the next block.
+     * @return raw size and compressed size of the next block (both 0 if the end of the archive is reached)
+     * @throws EOFException if the stream ends unexpectedly
+     */
+    static int[] readHeader(InputStream in) throws IOException {
+        byte[] header = readFully(in, 8);
+        int rawSize = readInt(header, 0);
+        int compressedSize = readInt(header, 4);
+
+        if (rawSize < 0 || rawSize > BLOCK_SIZE * 64 || compressedSize < 0) {
+            throw new IOException("Invalid block header (archive is corrupted)");
+        }
+
+        return new int[]{rawSize, compressedSize};
+    }
+
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int n = in.read(data, off, length - off);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of the archive (archive is truncated)");
+            }
+            off += n;
+        }
+        return data;
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | b[off + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,234 @@
+package io.jenkins.plugins.pipeline.cache.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+/**
+ * Compression codecs which can be applied to the tar archive of a cache item. The codec is stored as metadata of the cache item, so that
+ * the archive can be decompressed when the cache gets restored.
+ */
+public enum Compression {
+
+    /**
+     * No compression at all.
+     */
+    NONE(0, 0, 0) {
+        @Override
+        public OutputStream compress(OutputStream out, int level) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    },
+
+    /**
+     * GZIP (levels 1-9, default: 6).
+     */
+    GZIP(1, 9, 6) {
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    },
+
+    /**
+     * Zstandard (levels 1-22, default: 3).
+     */
+    ZSTD(1, 22, 3) {
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException {
+            return new ZstdOutputStream(out, level);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new ZstdInputStream(in);
+        }
+    },
+
+    /**
+     * LZ4 frame format (no levels, optimized for speed).
+     */
+    LZ4(0, 0, 0) {
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException {
+            return new LZ4FrameOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new LZ4FrameInputStream(in);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int minLevel;
+    private final int maxLevel;
+    private final int defaultLevel;
+
+    Compression(int minLevel, int maxLevel, int defaultLevel) {
+        this.minLevel = minLevel;
+        this.maxLevel = maxLevel;
+        this.defaultLevel = defaultLevel;
+    }
+
+    /**
+     * Wraps a given {@link OutputStream}, so that the data written to the returned stream gets compressed. Closing the returned stream
+     * also closes the given stream.
+     * @param out the stream where the compressed data is written to
+     * @param level compression level (see {@link Setting})
+     */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Wraps a given {@link InputStream}, so that the data read from the returned stream is decompressed.
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Wraps a given {@link InputStream}, so that the data read from the returned stream is decompressed.
+     * @param in the stream which provides the compressed data
+     * @param blocks true if the data has been compressed in parallel (see {@link ParallelCompressorOutputStream}), otherwise false
+     * @param threads max number of threads which are used to decompress the blocks in parallel
+     */
+    public InputStream decompress(InputStream in, boolean blocks, int threads) throws IOException {
+        return blocks ? new ParallelDecompressorInputStream(in, this, threads) : decompress(in);
+    }
+
+    /**
+     * Provides the number of threads which are used to compress/decompress an archive in parallel.
+     * @param threads configured number of threads (0 or less means one thread per core)
+     */
+    public static int threads(int threads) {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Provides the codec by name (case-insensitive). If the name is null or empty, then {@link #NONE} is returned.
+     * @throws IllegalArgumentException if there is no such codec
+     */
+    public static Compression of(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return NONE;
+        }
+
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Unknown compression '%s' (supported: none, gzip, zstd, lz4)", name), e);
+        }
+    }
+
+    /**
+     * Codec and level, e.g. <i>zstd</i> or <i>zstd:19</i>.
+     */
+    public static final class Setting implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Compression codec;
+        private final int level;
+
+        private Setting(Compression codec, int level) {
+            this.codec = codec;
+            this.level = level;
+        }
+
+        /**
+         * Parses a given setting which has the format <i>codec[:level]</i> (e.g. <i>gzip</i>, <i>zstd:19</i> or <i>none</i>). If the
+         * level is omitted then the default level of the codec is used. If the setting is null or empty, then no compression is used.
+         * @throws IllegalArgumentException if the setting is invalid
+         */
+        public static Setting parse(String setting) {
+            if (setting == null || setting.trim().isEmpty()) {
+                return new Setting(NONE, 0);
+            }
+
+            String[] parts = setting.trim().split(":", 2);
+            Compression codec = of(parts[0]);
+
+            if (parts.length == 1) {
+                return new Setting(codec, codec.defaultLevel);
+            }
+
+            int level;
+            try {
+                level = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid compression level '%s'", parts[1]), e);
+            }
+
+            if (level < codec.minLevel || level > codec.maxLevel) {
+                throw new IllegalArgumentException(codec.minLevel == codec.maxLevel
+                        ? String.format("Compression %s doesn't support levels", codec.name().toLowerCase(Locale.ENGLISH))
+                        : String.format("Compression level of %s must be between %d and %d",
+                        codec.name().toLowerCase(Locale.ENGLISH), codec.minLevel, codec.maxLevel));
+            }
+
+            return new Setting(codec, level);
+        }
+
+        public Compression getCodec() {
+            return codec;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @see Compression#compress(OutputStream, int)
+         */
+        public OutputStream compress(OutputStream out) throws IOException {
+            return codec.compress(out, level);
+        }
+
+        /**
+         * @param threads number of threads which are available for the compression
+         * @return true if the archive gets compressed in parallel, otherwise false
+         */
+        public boolean isParallel(int threads) {
+            return codec != NONE && threads > 1;
+        }
+
+        /**
+         * Wraps a given {@link OutputStream}, so that the data written to the returned stream gets compressed. If more than one thread is
+         * available, then the data is compressed in parallel (see {@link ParallelCompressorOutputStream}).
+         * @param out the stream where the compressed data is written to
+         * @param threads number of threads which are available for the compression
+         */
+        public OutputStream compress(OutputStream out, int threads) throws IOException {
+            return isParallel(threads) ? new ParallelCompressorOutputStream(out, this, threads) : compress(out);
+        }
+
+        @Override
+        public String toString() {
+            String name = codec.name().toLowerCase(Locale.ENGLISH);
+            return codec.minLevel == codec.maxLevel ? name : name + ":" + level;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package io.jenkins.plugins.pipeline.cache.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link OutputStream} which compresses the written data in parallel. The data is split into blocks, each block is compressed
+ * independently on a shared pool and the compressed blocks are written to the underlying stream in order (see {@link BlockFormat}). At
+ * most the given number of threads compress blocks of this stream at the same time. The number of blocks in flight is limited as well,
+ * if the limit is reached then the writer is blocked until the oldest block has been written.
+ */
+public class ParallelCompressorOutputStream extends OutputStream {
+
+    /**
+     * Raw size of one block in bytes.
+     */
+    public static final int BLOCK_SIZE = BlockFormat.BLOCK_SIZE;
+
+    private final OutputStream out;
+    private final Compression.Setting compression;
+    private final int maxBlocksInFlight;
+
+    /**
+     * Limits the number of blocks which are compressed at the same time (see {@link BlockFormat#permits(int)}).
+     */
+    private final Semaphore permits;
+
+    /**
+     * Blocks which are compressed currently (in the order they have been written).
+     */
+    private final Deque<Future<Block>> pending = new ArrayDeque<>();
+
+    private byte[] buf = new byte[BlockFormat.BLOCK_SIZE];
+    private int count;
+    private boolean open = true;
+
+    /**
+     * @param out the stream where the compressed blocks are written to
+     * @param compression codec and level which is used to compress the blocks
+     * @param threads max number of threads which compress blocks of this stream at the same time
+     */
+    public ParallelCompressorOutputStream(OutputStream out, Compression.Setting compression, int threads) {
+        this.out = out;
+        this.compression = compression;
+        this.maxBlocksInFlight = BlockFormat.maxBlocksInFlight(threads);
+        this.permits = BlockFormat.permits(threads);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count >= buf.length) {
+            submit();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > buf.length - count) {
+            int size = buf.length - count;
+            System.arraycopy(b, off, buf, count, size);
+            off += size;
+            len -= size;
+            count += size;
+            submit();
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Hands over the current block to the pool and continues with a new one.
+     */
+    private void submit() throws IOException {
+        if (count <= 0) {
+            return;
+        }
+
+        while (pending.size() >= maxBlocksInFlight) {
+            writeBlock(pending.poll());
+        }
+
+        byte[] data = buf;
+        int size = count;
+        BlockFormat.acquire(permits);
+        pending.add(BlockFormat.pool().submit(() -> {
+            try {
+                return compress(data, size);
+            } finally {
+                permits.release();
+            }
+        }));
+
+        buf = new byte[BlockFormat.BLOCK_SIZE];
+        count = 0;
+    }
+
+    private Block compress(byte[] data, int size) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 2);
+        try (OutputStream c = compression.compress(compressed)) {
+            c.write(data, 0, size);
+        }
+        return new Block(size, compressed);
+    }
+
+    /**
+     * Waits until a given block is compressed and writes it to the underlying stream.
+     */
+    private void writeBlock(Future<Block> future) throws IOException {
+        Block block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a block");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression of a block has been failed!", e.getCause());
+        }
+
+        BlockFormat.writeHeader(out, block.rawSize, block.compressed.size());
+        block.compressed.writeTo(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+
+        try {
+            submit();
+            while (!pending.isEmpty()) {
+                writeBlock(pending.poll());
+            }
+            BlockFormat.writeHeader(out, 0, 0);
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+            out.close();
+        }
+    }
+
+    private static class Block {
+        private final int rawSize;
+        private final ByteArrayOutputStream compressed;
+
+        private Block(int rawSize, ByteArrayOutputStream compressed) {
+            this.rawSize = rawSize;
+            this.compressed = compressed;
+        }
+    }
+}
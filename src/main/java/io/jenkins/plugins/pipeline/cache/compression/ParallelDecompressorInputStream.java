@@ -0,0 +1,157 @@
+package io.jenkins.plugins.pipeline.cache.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * {@link InputStream} which decompresses an archive in parallel, which has been created by the {@link ParallelCompressorOutputStream}.
+ * The compressed blocks are read from the underlying stream in order and decompressed on a shared pool, at most the given number of threads
+ * decompress blocks of this stream at the same time. The number of blocks in flight is limited, so the blocks are read ahead only as far
+ * as needed to keep the threads busy.
+ */
+public class ParallelDecompressorInputStream extends InputStream {
+
+    private final InputStream in;
+    private final Compression codec;
+    private final int maxBlocksInFlight;
+
+    /**
+     * Limits the number of blocks which are decompressed at the same time (see {@link BlockFormat#permits(int)}).
+     */
+    private final Semaphore permits;
+
+    /**
+     * Blocks which are decompressed currently (in the order they have been read).
+     */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] current = new byte[0];
+    private int pos;
+    private boolean endOfArchive;
+
+    /**
+     * @param in the stream which provides the compressed blocks
+     * @param codec codec which has been used to compress the blocks
+     * @param threads max number of threads which decompress blocks of this stream at the same time
+     */
+    public ParallelDecompressorInputStream(InputStream in, Compression codec, int threads) {
+        this.in = in;
+        this.codec = codec;
+        this.maxBlocksInFlight = BlockFormat.maxBlocksInFlight(threads);
+        this.permits = BlockFormat.permits(threads);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - pos;
+    }
+
+    /**
+     * Makes sure that the current block has remaining data.
+     * @return true if there is data available, false if the end of the archive is reached
+     */
+    private boolean ensureData() throws IOException {
+        while (pos >= current.length) {
+            readAhead();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            current = get(pending.poll());
+            pos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Reads compressed blocks and submits them to the pool until the max number of blocks in flight is reached.
+     */
+    private void readAhead() throws IOException {
+        while (!endOfArchive && pending.size() < maxBlocksInFlight) {
+            // don't wait for a thread if there are blocks already which can be consumed in the meantime
+            if (!pending.isEmpty() && permits.availablePermits() == 0) {
+                return;
+            }
+
+            int[] header;
+            try {
+                header = BlockFormat.readHeader(in);
+            } catch (EOFException e) {
+                throw new EOFException("Unexpected end of the archive (end marker is missing)");
+            }
+
+            if (header[0] == 0 && header[1] == 0) {
+                endOfArchive = true;
+                return;
+            }
+
+            int rawSize = header[0];
+            byte[] compressed = BlockFormat.readFully(in, header[1]);
+            BlockFormat.acquire(permits);
+            pending.add(BlockFormat.pool().submit(() -> {
+                try {
+                    return decompress(compressed, rawSize);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+    }
+
+    private byte[] decompress(byte[] compressed, int rawSize) throws IOException {
+        try (InputStream d = codec.decompress(new ByteArrayInputStream(compressed))) {
+            byte[] data = BlockFormat.readFully(d, rawSize);
+            if (d.read() != -1) {
+                throw new IOException("Block is larger than expected (archive is corrupted)");
+            }
+            return data;
+        }
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing a block");
+        } catch (ExecutionException e) {
+            throw new IOException("Decompression of a block has been failed!", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        pending.forEach(f -> f.cancel(true));
+        pending.clear();
+        in.close();
+    }
+}
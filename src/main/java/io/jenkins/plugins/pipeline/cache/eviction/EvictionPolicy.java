@@ -0,0 +1,57 @@
+package io.jenkins.plugins.pipeline.cache.eviction;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+
+/**
+ * Defines the order in which the cache items are removed by the cleanup task when the threshold or a quota (see {@link PrefixQuota}) is
+ * exceeded. The policy is selected by its name in the global configuration, other plugins can contribute further policies by
+ * implementing this extension point.
+ */
+public abstract class EvictionPolicy implements ExtensionPoint {
+
+    /**
+     * Name of the default policy (see {@link LruEvictionPolicy}).
+     */
+    public static final String DEFAULT = LruEvictionPolicy.NAME;
+
+    /**
+     * @return name of the policy which is used in the configuration (e.g. <i>lru</i>)
+     */
+    public abstract String getName();
+
+    /**
+     * Provides the order in which the cache items are removed (the first one is removed first).
+     * @param now Unix time in ms of the cleanup
+     */
+    public abstract Comparator<Catalog.Entry> getEvictionOrder(long now);
+
+    /**
+     * Provides the policy of a given name (case insensitive).
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    public static EvictionPolicy get(String name) {
+        return all().stream()
+                .filter(policy -> policy.getName().equalsIgnoreCase(name.trim()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException(
+                        String.format("Unknown eviction policy '%s' (supported: %s)", name, String.join(", ", getNames()))));
+    }
+
+    /**
+     * @return names of all the available policies
+     */
+    public static List<String> getNames() {
+        return all().stream().map(EvictionPolicy::getName).collect(Collectors.toList());
+    }
+
+    private static List<EvictionPolicy> all() {
+        return ExtensionList.lookup(EvictionPolicy.class);
+    }
+
+}
@@ -0,0 +1,25 @@
+package io.jenkins.plugins.pipeline.cache.eviction;
+
+import java.util.Comparator;
+
+import hudson.Extension;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+
+/**
+ * Removes the least frequently used cache items first (LFU), based on the number of restores recorded in the {@link Catalog}. Cache items
+ * with the same number of restores are removed in LRU order.
+ */
+@Extension
+public class LfuEvictionPolicy extends EvictionPolicy {
+
+    @Override
+    public String getName() {
+        return "lfu";
+    }
+
+    @Override
+    public Comparator<Catalog.Entry> getEvictionOrder(long now) {
+        return Comparator.comparingLong(Catalog.Entry::getHits).thenComparingLong(Catalog.Entry::getLastAccess);
+    }
+
+}
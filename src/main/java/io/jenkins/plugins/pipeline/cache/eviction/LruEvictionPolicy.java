@@ -0,0 +1,26 @@
+package io.jenkins.plugins.pipeline.cache.eviction;
+
+import java.util.Comparator;
+
+import hudson.Extension;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+
+/**
+ * Removes the least recently used cache items first (LRU).
+ */
+@Extension
+public class LruEvictionPolicy extends EvictionPolicy {
+
+    static final String NAME = "lru";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Comparator<Catalog.Entry> getEvictionOrder(long now) {
+        return Comparator.comparingLong(Catalog.Entry::getLastAccess);
+    }
+
+}
@@ -0,0 +1,74 @@
+package io.jenkins.plugins.pipeline.cache.eviction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Max size of all the cache items whose key starts with a given prefix. The cleanup task removes cache items of the prefix (in the order
+ * of the {@link EvictionPolicy}) until the quota is not exceeded anymore, regardless of the global threshold.
+ */
+public class PrefixQuota {
+
+    private final String prefix;
+    private final long size;
+
+    /**
+     * @param prefix prefix of the keys
+     * @param size max size in bytes
+     */
+    public PrefixQuota(String prefix, long size) {
+        this.prefix = prefix;
+        this.size = size;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return max size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Parses the quotas of the configuration. Each non-empty line has the format <code>prefix=size</code> where the size is in megabyte
+     * (e.g. <code>node_modules-=2000</code>).
+     * @throws IllegalArgumentException if a line is invalid
+     */
+    public static List<PrefixQuota> parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<PrefixQuota> quotas = new ArrayList<>();
+        for (String line : value.split("\\r?\\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            int separator = line.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException(String.format("Invalid quota '%s' (expected prefix=size)", line.trim()));
+            }
+            try {
+                long size = Long.parseLong(line.substring(separator + 1).trim());
+                if (size < 0) {
+                    throw new IllegalArgumentException(String.format("Invalid quota '%s' (size must not be negative)", line.trim()));
+                }
+                quotas.add(new PrefixQuota(line.substring(0, separator).trim(), size * 1024 * 1024));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid quota '%s' (size is not an integer)", line.trim()));
+            }
+        }
+
+        return quotas;
+    }
+
+    @Override
+    public String toString() {
+        return prefix + "=" + size;
+    }
+}
@@ -0,0 +1,38 @@
+package io.jenkins.plugins.pipeline.cache.eviction;
+
+import java.util.Comparator;
+
+import hudson.Extension;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+
+/**
+ * Size-aware policy in the style of GDSF (Greedy-Dual-Size-Frequency). The priority of a cache item is its number of restores divided by
+ * its size, so large cache items which are rarely restored are removed first and small cache items which are restored often are kept.
+ * Instead of the inflation value of GDSF (which requires state across the evictions), the priority is halved every
+ * {@link #HALF_LIFE} since the last access, so that cache items which have been popular once don't stay forever.
+ */
+@Extension
+public class SizeAwareEvictionPolicy extends EvictionPolicy {
+
+    /**
+     * Time in ms after which the priority of a cache item which has not been accessed is halved.
+     */
+    static final double HALF_LIFE = 7 * 24 * 60 * 60 * 1000d; // 7 days
+
+    @Override
+    public String getName() {
+        return "gdsf";
+    }
+
+    @Override
+    public Comparator<Catalog.Entry> getEvictionOrder(long now) {
+        return Comparator.comparingDouble((Catalog.Entry entry) -> getPriority(entry, now))
+                .thenComparingLong(Catalog.Entry::getLastAccess);
+    }
+
+    static double getPriority(Catalog.Entry entry, long now) {
+        double age = Math.max(now - entry.getLastAccess(), 0);
+        return (entry.getHits() + 1) / (double) Math.max(entry.getSize(), 1) * Math.pow(0.5, age / HALF_LIFE);
+    }
+
+}
@@ -0,0 +1,106 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link InputStream} which reads the remaining bytes of one or more {@link ByteBuffer}s (one after the other). The stream can be reset at
+ * any time (e.g. when the S3 client retries a request).
+ */
+class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer[] buffers;
+
+    /**
+     * Index of the buffer which is read currently.
+     */
+    private int index;
+
+    /**
+     * Index of the buffer which holds the mark.
+     */
+    private int markIndex;
+
+    /**
+     * @param buffers the buffers to read from (position and limit of the given buffers are not modified)
+     */
+    ByteBufferInputStream(ByteBuffer... buffers) {
+        this.buffers = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            this.buffers[i] = buffers[i].duplicate();
+            this.buffers[i].mark();
+        }
+    }
+
+    /**
+     * @return the current buffer, or null if all the buffers have been read
+     */
+    private ByteBuffer current() {
+        while (index < buffers.length && !buffers[index].hasRemaining()) {
+            index++;
+        }
+        return index < buffers.length ? buffers[index] : null;
+    }
+
+    @Override
+    public int read() {
+        ByteBuffer buffer = current();
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+            return 0;
+        }
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        int available = 0;
+        for (int i = index; i < buffers.length; i++) {
+            available += buffers[i].remaining();
+        }
+        return available;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        // the following buffers have not been read yet, so their mark is set as well
+        markIndex = index;
+        for (int i = index; i < buffers.length; i++) {
+            buffers[i].mark();
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int i = markIndex; i < buffers.length; i++) {
+            buffers[i].reset();
+        }
+        index = markIndex;
+    }
+}
@@ -0,0 +1,31 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.io.OutputStream;
+
+/**
+ * {@link OutputStream} which writes the content of a new cache item. The cache item is created when the stream gets closed, or discarded
+ * if the stream gets aborted.
+ */
+public abstract class CacheItemOutputStream extends OutputStream {
+
+    /**
+     * Discards the content written so far, so that no (incomplete) cache item is created.
+     */
+    public abstract void abort();
+
+    /**
+     * @return ETag of the cache item, or null if the stream has not been closed successfully yet
+     */
+    public abstract String getETag();
+
+    /**
+     * @return MD5 checksum (hex encoded) of the stored object, or null if the stream has not been closed successfully yet
+     */
+    public abstract String getChecksum();
+
+    /**
+     * @return total time in nanoseconds the writer had to wait for buffers from the pool (see {@link PartBufferPool})
+     */
+    public abstract long getBufferWaitNanos();
+
+}
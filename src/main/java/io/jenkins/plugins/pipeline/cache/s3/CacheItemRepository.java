@@ -1,80 +1,369 @@
 package io.jenkins.plugins.pipeline.cache.s3;
 
-import static java.util.stream.Stream.concat;
-
-import java.io.OutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.HeadBucketRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import io.jenkins.plugins.pipeline.cache.compression.Compression;
+
 public class CacheItemRepository {
 
     static final String LAST_ACCESS = "LAST_ACCESS";
     static final String CREATION = "CREATION";
-    private static final long TIME_THRESHOLD = 5 * 60 * 1000L; // 5 minutes
+    static final String CHECKSUM = "CHECKSUM";
+
+    /**
+     * Metadata which holds the compression codec of the archive (see {@link io.jenkins.plugins.pipeline.cache.compression.Compression}).
+     */
+    public static final String COMPRESSION = "COMPRESSION";
+
+    /**
+     * Metadata which is present if the archive has been compressed in parallel (holds the block size, see
+     * {@link io.jenkins.plugins.pipeline.cache.compression.ParallelCompressorOutputStream}).
+     */
+    public static final String COMPRESSION_BLOCKS = "COMPRESSION_BLOCKS";
+
+    /**
+     * Metadata which is present if the object is the {@link Manifest} of a chunked cache item (holds the size of the archive).
+     */
+    public static final String MANIFEST = "MANIFEST";
+
+    /**
+     * Prefix of the objects which are managed by the plugin itself and are not cache items (e.g. chunks).
+     */
+    public static final String SYSTEM_PREFIX = ".pipeline-cache/";
+
+    /**
+     * Prefix of the chunks, the key of a chunk is the prefix followed by the SHA-256 hash of the content.
+     */
+    public static final String CHUNK_PREFIX = SYSTEM_PREFIX + "chunks/";
+
+    /**
+     * Prefix of the layers of incremental cache items, the key of a layer is the prefix followed by the key of the cache item.
+     */
+    public static final String LAYER_PREFIX = SYSTEM_PREFIX + "layers/";
+
+    /**
+     * Prefix of the creation markers, the key of a marker is the prefix followed by the key of the cache item, a slash and the creation
+     * timestamp (see {@link #writeCreationMarker(String)}).
+     */
+    public static final String CREATION_PREFIX = SYSTEM_PREFIX + "creations/";
+
+    /**
+     * Key of the {@link Catalog} snapshot.
+     */
+    public static final String CATALOG = SYSTEM_PREFIX + "catalog";
+
+    /**
+     * Prefix of the {@link Catalog} segments, the key of a segment is the prefix followed by the creation timestamp and a random suffix.
+     */
+    public static final String CATALOG_SEGMENT_PREFIX = SYSTEM_PREFIX + "catalog-segments/";
+
+    /**
+     * Metadata which is present if the cache item is incremental (holds the number of layers on top of the full cache item, see
+     * {@link Layer}).
+     */
+    public static final String LAYER = "LAYER";
+
+    /**
+     * Metadata which is present if the cache item is an alias of another cache item (the cache item has no content, the other cache item
+     * is stored as parent in its {@link Layer}).
+     */
+    public static final String ALIAS = "ALIAS";
+
+    /**
+     * Min time in milliseconds an object under the system prefix is kept, even if it is not referenced anymore (e.g. chunks which are not
+     * referenced by any manifest). This protects the objects of backups in progress.
+     */
+    public static final long GRACE_PERIOD = 24 * 60 * 60 * 1000L; // 24 hours
+
+    /**
+     * Existing chunks which are reused by a backup get a new last modification timestamp if they are older than that.
+     */
+    static final long CHUNK_LEASE_RENEWAL = GRACE_PERIOD / 2;
+
+    /**
+     * Max number of existence checks and prefix lookups which are executed in parallel (see {@link #findRestoreKey(String, String...)}).
+     */
+    private static final int MAX_LOOKUP_PARALLELISM = 8;
+
+    /**
+     * Executes the lookups of the restore keys (shared by all the repositories of the JVM, idle threads are released).
+     */
+    private static final ExecutorService LOOKUP_EXECUTOR = createLookupExecutor();
+
+    /**
+     * Max number of keys per delete request (limit of S3).
+     */
+    public static final int DELETE_BATCH_SIZE = 1000;
+
+    /**
+     * Max number of delete requests which are executed in parallel.
+     */
+    private static final int DELETE_PARALLELISM = 4;
+
+    /**
+     * Max number of attempts to remove an object.
+     */
+    private static final int DELETE_ATTEMPTS = 3;
+
+    /**
+     * Delay in milliseconds before a failed delete is retried (multiplied by the number of attempts).
+     */
+    private static final long DELETE_RETRY_DELAY = 500;
 
     private final AmazonS3 s3;
     private final String bucket;
 
     public CacheItemRepository(String username, String password, String region, String endpoint, String bucket) {
-        this.s3 = createS3Client(username, password, endpoint, region);
+        this(username, password, region, endpoint, bucket, ClientSettings.DEFAULT);
+    }
+
+    /**
+     * @param settings connection settings of the S3 client (the client is shared with other repositories, see {@link S3ClientRegistry})
+     */
+    public CacheItemRepository(String username, String password, String region, String endpoint, String bucket, ClientSettings settings) {
+        this.s3 = createS3Client(username, password, endpoint, region, settings);
         this.bucket = bucket;
     }
 
-    protected AmazonS3 createS3Client(String username, String password, String endpoint, String region) {
-        return AmazonS3ClientBuilder
-                .standard()
-                .withPathStyleAccessEnabled(true)
-                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(username, password)))
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region))
-                .build();
+    protected AmazonS3 createS3Client(String username, String password, String endpoint, String region, ClientSettings settings) {
+        return S3ClientRegistry.get(username, password, endpoint, region, settings);
     }
 
     /**
-     * Provides the total size of all cache items.
+     * Provides a stream of all cache items.
      */
-    public long getTotalCacheSize() {
-        return Stream.of(s3.listObjects(bucket))
-                .flatMap(this::flatMapObjectSummaries)
-                .map(S3ObjectSummary::getSize)
-                .reduce(Long::sum)
-                .orElse(0L);
+    public Stream<CacheItem> findAll() {
+        return flatMapObjectSummaries(s3.listObjects(bucket))
+                .filter(s -> !s.getKey().startsWith(SYSTEM_PREFIX))
+                .map(this::mapToCacheItem);
     }
 
     /**
-     * Provides a stream of all cache items.
+     * Provides a stream of all chunks (see {@link ChunkedOutputStream}).
      */
-    public Stream<CacheItem> findAll() {
-        return flatMapObjectSummaries(s3.listObjects(bucket)).map(this::mapToCacheItem);
+    public Stream<CacheItem> findChunks() {
+        return flatMapObjectSummaries(s3.listObjects(bucket, CHUNK_PREFIX)).map(this::mapToCacheItem);
     }
 
     /**
-     * Removes items from the cache.
+     * Provides the multipart uploads which have been initiated before a given time and which have not been completed or aborted yet (e.g.
+     * the agent died during a backup). The parts of such an upload are not visible in the listing of the bucket, but they are stored
+     * anyway.
+     * @param initiatedBefore Unix time in ms
+     */
+    public Stream<MultipartUpload> findIncompleteUploads(long initiatedBefore) {
+        List<MultipartUpload> uploads = new ArrayList<>();
+        ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(bucket);
+        MultipartUploadListing listing;
+        do {
+            listing = s3.listMultipartUploads(request);
+            listing.getMultipartUploads().stream()
+                    .filter(upload -> upload.getInitiated().getTime() < initiatedBefore)
+                    .forEach(uploads::add);
+            request.setKeyMarker(listing.getNextKeyMarker());
+            request.setUploadIdMarker(listing.getNextUploadIdMarker());
+        } while (listing.isTruncated());
+
+        return uploads.stream();
+    }
+
+    /**
+     * Provides the number of bytes which have been uploaded by a given multipart upload so far (sum of the parts).
+     */
+    public long getUploadedBytes(MultipartUpload upload) {
+        long bytes = 0;
+        ListPartsRequest request = new ListPartsRequest(bucket, upload.getKey(), upload.getUploadId());
+        PartListing listing;
+        do {
+            listing = s3.listParts(request);
+            bytes += listing.getParts().stream().mapToLong(PartSummary::getSize).sum();
+            request.setPartNumberMarker(listing.getNextPartNumberMarker());
+        } while (listing.isTruncated());
+
+        return bytes;
+    }
+
+    /**
+     * Aborts a given multipart upload, the uploaded parts are removed.
+     */
+    public void abort(MultipartUpload upload) {
+        s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, upload.getKey(), upload.getUploadId()));
+    }
+
+    /**
+     * Returns true if a given object is the manifest of a chunked cache item, otherwise false.
+     */
+    public static boolean isManifest(ObjectMetadata metadata) {
+        return metadata.getUserMetadata().containsKey(MANIFEST);
+    }
+
+    /**
+     * Reads the {@link Manifest} of a chunked cache item.
+     */
+    public Manifest readManifest(String key) throws IOException {
+        try (S3Object object = s3.getObject(bucket, key); InputStream in = object.getObjectContent()) {
+            return Manifest.read(in);
+        }
+    }
+
+    /**
+     * Determines the chunks of the cache items the {@link Catalog} doesn't know the chunks of yet (e.g. created by an older version). The
+     * backups record the chunks in the catalog, so only the manifests of such cache items are read (once, the chunks are kept in the
+     * snapshot afterwards).
+     */
+    public void resolveChunks(Catalog catalog) {
+        List<String> keys = catalog.findUnresolved().map(Catalog.Entry::getKey).collect(Collectors.toList());
+
+        for (String key : keys) {
+            try {
+                if (isManifest(getObjectMetadata(key))) {
+                    catalog.setChunks(key, readManifest(key).getChunks().stream()
+                            .map(Manifest.Chunk::getHash)
+                            .distinct()
+                            .collect(Collectors.toList()));
+                } else {
+                    catalog.setChunks(key, Collections.emptyList());
+                }
+            } catch (AmazonServiceException e) {
+                // removed in the meantime
+                if (e.getStatusCode() == 404) {
+                    continue;
+                }
+                throw e;
+            } catch (IOException e) {
+                // an unreadable manifest would make its chunks look unreferenced -> keep all the chunks this time
+                throw new IllegalStateException("Unable to read manifest " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Removes objects from the bucket. The keys are removed in batches (max {@link #DELETE_BATCH_SIZE} keys per request) and in
+     * parallel, the keys which could not be removed are retried a few times. A failed batch doesn't affect the other batches.
      * @param keys Stream of keys which should be removed
-     * @return count of removed items
+     * @return the keys which have been removed and the ones which could not be removed
      */
-    public int delete(Stream<String> keys) {
-        return s3.deleteObjects(new DeleteObjectsRequest(bucket)
-                .withKeys(keys.toArray(String[]::new))
-        ).getDeletedObjects()
-                .size();
+    public DeleteResult delete(Stream<String> keys) {
+        List<List<String>> batches = new ArrayList<>();
+        keys.forEach(key -> {
+            if (batches.isEmpty() || batches.get(batches.size() - 1).size() >= DELETE_BATCH_SIZE) {
+                batches.add(new ArrayList<>(DELETE_BATCH_SIZE));
+            }
+            batches.get(batches.size() - 1).add(key);
+        });
+
+        DeleteResult result = new DeleteResult();
+        if (batches.isEmpty()) {
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(batches.size(), DELETE_PARALLELISM), r -> {
+            Thread t = new Thread(r, "CacheItemRepository-delete");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<DeleteResult>> futures = batches.stream()
+                    .map(batch -> executor.submit(() -> deleteBatch(batch)))
+                    .collect(Collectors.toList());
+            for (Future<DeleteResult> future : futures) {
+                result.merge(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while removing objects", e);
+        } catch (ExecutionException e) {
+            // not expected, deleteBatch reports the failures in the result
+            throw new IllegalStateException("Delete has been failed!", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes the objects of one batch, the keys which could not be removed are retried.
+     */
+    private DeleteResult deleteBatch(List<String> keys) {
+        DeleteResult result = new DeleteResult();
+        List<String> pending = keys;
+
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            Map<String, String> errors = new HashMap<>();
+            try {
+                s3.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(pending.toArray(new String[0])))
+                        .getDeletedObjects()
+                        .forEach(deleted -> result.addDeleted(deleted.getKey()));
+            } catch (MultiObjectDeleteException e) {
+                e.getDeletedObjects().forEach(deleted -> result.addDeleted(deleted.getKey()));
+                e.getErrors().forEach(error -> errors.put(error.getKey(), error.getCode() + ": " + error.getMessage()));
+            } catch (AmazonClientException e) {
+                pending.forEach(key -> errors.put(key, String.valueOf(e.getMessage())));
+            }
+
+            if (errors.isEmpty() || attempt >= DELETE_ATTEMPTS) {
+                errors.forEach(result::addFailed);
+                break;
+            }
+            pending = new ArrayList<>(errors.keySet());
+
+            try {
+                Thread.sleep(attempt * DELETE_RETRY_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.forEach(result::addFailed);
+                break;
+            }
+        }
+
+        return result;
     }
 
     /**
@@ -85,30 +374,193 @@ public class CacheItemRepository {
     }
 
     /**
-     * Provides the {@link S3Object} assigned to a given key or null if it not exists.
+     * Provides the last modification timestamp of an object, or 0 if the object not exists.
      */
-    public S3Object getS3Object(String key) {
-        return s3.getObject(new GetObjectRequest(bucket, key));
+    public long getLastModified(String key) {
+        try {
+            return s3.getObjectMetadata(bucket, key).getLastModified().getTime();
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return 0;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Provides the metadata of a cache item (e.g. size, ETag and user metadata).
+     */
+    public ObjectMetadata getObjectMetadata(String key) {
+        return s3.getObjectMetadata(bucket, key);
+    }
+
+    /**
+     * Creates an {@link InputStream} for a given object. The content is downloaded in segments and in parallel.
+     * @param key key of the object
+     * @param metadata metadata of the object (see {@link #getObjectMetadata(String)})
+     * @param segmentSize size of one segment in bytes
+     * @param parallelism max number of segments which are downloaded in parallel
+     */
+    public InputStream createObjectInputStream(String key, ObjectMetadata metadata, int segmentSize, int parallelism) {
+        return new S3InputStream(s3, bucket, key, metadata.getETag(), metadata.getContentLength(), segmentSize, parallelism);
+    }
+
+    /**
+     * Provides a stream of all layers (see {@link Layer}), the key of the layer is the prefix followed by the key of the cache item.
+     */
+    public Stream<CacheItem> findLayers() {
+        return flatMapObjectSummaries(s3.listObjects(bucket, LAYER_PREFIX)).map(this::mapToCacheItem);
+    }
+
+    /**
+     * Reads the {@link Layer} of an incremental cache item.
+     */
+    public Layer readLayer(String key) throws IOException {
+        try (S3Object object = s3.getObject(bucket, LAYER_PREFIX + key); InputStream in = object.getObjectContent()) {
+            return Layer.read(in);
+        }
+    }
+
+    /**
+     * Stores the {@link Layer} of an incremental cache item (must be stored before the cache item itself).
+     */
+    public void writeLayer(String key, Layer layer) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        layer.write(content);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.size());
+        s3.putObject(new PutObjectRequest(bucket, LAYER_PREFIX + key, new ByteArrayInputStream(content.toByteArray()), metadata));
+    }
+
+    /**
+     * Stores an empty marker object for a given cache item which holds the creation timestamp in its key. This allows to find the latest
+     * cache item for a given prefix by listing the markers only, instead of requesting the metadata of each cache item.
+     */
+    public void writeCreationMarker(String key) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(0);
+        s3.putObject(new PutObjectRequest(bucket, CREATION_PREFIX + key + "/" + System.currentTimeMillis(),
+                new ByteArrayInputStream(new byte[0]), metadata));
+    }
+
+    /**
+     * Provides a stream of all creation markers (see {@link #writeCreationMarker(String)}).
+     */
+    public Stream<CacheItem> findCreationMarkers() {
+        return flatMapObjectSummaries(s3.listObjects(bucket, CREATION_PREFIX)).map(this::mapToCacheItem);
+    }
+
+    /**
+     * Provides the key of the cache item a given creation marker belongs to.
+     */
+    public static String getKeyOfCreationMarker(String marker) {
+        return marker.substring(CREATION_PREFIX.length(), marker.lastIndexOf('/'));
+    }
+
+    /**
+     * Appends the given events to the {@link Catalog} (stored as a new segment).
+     */
+    public void appendToCatalog(Catalog.Event... events) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        Catalog.writeSegment(content, Arrays.asList(events));
+        String segment = String.format("%s%013d-%s", CATALOG_SEGMENT_PREFIX, System.currentTimeMillis(), UUID.randomUUID());
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.size());
+        s3.putObject(new PutObjectRequest(bucket, segment, new ByteArrayInputStream(content.toByteArray()), metadata));
+    }
+
+    /**
+     * Reads the {@link Catalog}, the snapshot and the segments which have not been merged into the snapshot yet.
+     * @return the catalog, or null if there is no snapshot yet (see {@link #rebuildCatalog(Catalog)})
+     */
+    public Catalog readCatalog() throws IOException {
+        Catalog catalog;
+        try (S3Object object = s3.getObject(bucket, CATALOG); InputStream in = object.getObjectContent()) {
+            catalog = Catalog.read(in);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+
+        mergeCatalogSegments(catalog);
+        return catalog;
     }
 
     /**
-     * Updates the last access timestamp of a given cache item by key. <b>Note: As a side effect this also changes the last modification
-     * timestamp, which means that last modification and last access can be considered as equals</b>
+     * Aligns a given {@link Catalog} with the listing of the bucket (the catalog may miss cache items which have been created by older
+     * versions or removed by someone else). The number of hits is kept for the existing cache items.
+     * @param catalog the current catalog, or null to create the catalog from scratch
      */
-    public void updateLastAccess(String key) {
-        ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
-        long lastAccessTime = Long.parseLong(metadata.getUserMetadata().getOrDefault(LAST_ACCESS, "0"));
-        long currentTime = System.currentTimeMillis();
+    public Catalog rebuildCatalog(Catalog catalog) throws IOException {
+        long now = System.currentTimeMillis();
+        Catalog result = catalog == null ? new Catalog(now) : catalog;
+        result.reconcile(findAll(), now);
+
+        // the events of the cache items which have been listed just now are applied afterwards (e.g. accesses)
+        if (catalog == null) {
+            mergeCatalogSegments(result);
+        }
 
-        if (currentTime - lastAccessTime > TIME_THRESHOLD) {
-            // workaround for GCS: create a new metadata object and don't reuse the existing one
-            ObjectMetadata newMetadata = new ObjectMetadata();
-            newMetadata.setUserMetadata(metadata.getUserMetadata());
-            newMetadata.addUserMetadata(LAST_ACCESS, Long.toString(currentTime));
+        return result;
+    }
+
+    /**
+     * Stores a given {@link Catalog} as snapshot and removes the segments which have been merged into it.
+     */
+    public void compactCatalog(Catalog catalog) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        catalog.write(content);
 
-            // HACK: the only way to change the metadata of an existing object is to create a copy to itself
-            s3.copyObject(new CopyObjectRequest(bucket, key, bucket, key).withNewObjectMetadata(newMetadata));
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.size());
+        s3.putObject(new PutObjectRequest(bucket, CATALOG, new ByteArrayInputStream(content.toByteArray()), metadata));
+
+        if (!catalog.getSegments().isEmpty()) {
+            delete(catalog.getSegments().stream());
+        }
+    }
+
+    private void mergeCatalogSegments(Catalog catalog) throws IOException {
+        List<String> segments = flatMapObjectSummaries(s3.listObjects(bucket, CATALOG_SEGMENT_PREFIX))
+                .map(S3ObjectSummary::getKey)
+                .collect(Collectors.toList());
+        catalog.retainSegments(segments);
+
+        Map<String, List<Catalog.Event>> events = new HashMap<>();
+        for (String segment : segments) {
+            if (catalog.getSegments().contains(segment)) {
+                continue;
+            }
+            try (S3Object object = s3.getObject(bucket, segment); InputStream in = object.getObjectContent()) {
+                events.put(segment, Catalog.readSegment(in));
+            } catch (AmazonServiceException e) {
+                // removed in the meantime (merged by someone else)
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+            }
         }
+        catalog.merge(events);
+    }
+
+    /**
+     * Creates an {@link InputStream} for a chunked cache item. The chunks are downloaded in parallel.
+     * @param manifest manifest of the cache item (see {@link #readManifest(String)})
+     * @param parallelism max number of chunks which are downloaded in parallel
+     */
+    public InputStream createChunkedInputStream(Manifest manifest, int parallelism) {
+        return new ChunkedInputStream(s3, bucket, manifest, parallelism);
+    }
+
+    /**
+     * Provides the {@link S3Object} assigned to a given key or null if it not exists.
+     */
+    public S3Object getS3Object(String key) {
+        return s3.getObject(new GetObjectRequest(bucket, key));
     }
 
     /**
@@ -119,32 +571,63 @@ public class CacheItemRepository {
      *   <li>if an existing key starts with one of the restoreKeys then the existing key is returned</li>
      *   <li>otherwise null is returned</li>
      * </ol>
+     * The key is checked first (the common case), the existence checks and prefix lookups of the restore keys are then executed in
+     * parallel. The candidates are evaluated in the order above, so the first match is returned as soon as all the candidates before have
+     * been resolved (the remaining lookups are cancelled).
      */
     public String findRestoreKey(String key, String... restoreKeys) {
+        // 1.
         if (key != null && exists(key)) {
-            // 1.
             return key;
         }
 
-        if (restoreKeys == null) {
+        List<Callable<String>> candidates = new ArrayList<>();
+        if (restoreKeys != null) {
+            Arrays.stream(restoreKeys)
+                    .filter(Objects::nonNull)
+                    .forEach(restoreKey -> candidates.add(() -> exists(restoreKey) ? restoreKey : null)); // 2.
+            Arrays.stream(restoreKeys)
+                    .forEach(restoreKey -> candidates.add(() -> findKeyByPrefix(restoreKey))); // 3.
+        }
+
+        if (candidates.isEmpty()) {
             // 4.
             return null;
         }
 
-        for (String restoreKey : restoreKeys) {
-            if (exists(restoreKey)) {
-                // 2.
-                return restoreKey;
+        List<Future<String>> lookups = candidates.stream().map(LOOKUP_EXECUTOR::submit).collect(Collectors.toList());
+        try {
+            for (Future<String> lookup : lookups) {
+                String match = lookup.get();
+                if (match != null) {
+                    return match;
+                }
+            }
+
+            // 4.
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resolving the restore key", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new IllegalStateException("Restore key lookup has been failed!", e.getCause());
+        } finally {
+            lookups.forEach(lookup -> lookup.cancel(true));
         }
+    }
 
-        return Arrays.stream(restoreKeys)
-                .map(this::findKeyByPrefix)
-                .filter(Objects::nonNull)
-                // 3.
-                .findFirst()
-                // 4.
-                .orElse(null);
+    private static ExecutorService createLookupExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LOOKUP_PARALLELISM, MAX_LOOKUP_PARALLELISM, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "CacheItemRepository-lookup");
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
@@ -155,11 +638,27 @@ public class CacheItemRepository {
     }
 
     /**
-     * Creates an {@link java.io.OutputStream} for a given key. This can be used to write data directly to a new object in S3. Note that
-     * the md5 must be provided as 32 character string and not as a hex value.
+     * Creates an {@link java.io.OutputStream} for a given key. This can be used to write data directly to a new object in S3. The object
+     * is created when the stream gets closed, or discarded if the stream gets aborted (see {@link S3OutputStream#abort()}).
+     * @param metadata additional user metadata which is assigned to the object
+     * @param pool provides the buffers which hold the parts
+     * @param parallelism max number of parts which are uploaded in parallel
      */
-    public OutputStream createObjectOutputStream(String key, byte[] md5) {
-        return new S3OutputStream(s3, bucket, key, Base64.getEncoder().encodeToString(md5));
+    public S3OutputStream createObjectOutputStream(String key, Map<String, String> metadata, PartBufferPool pool, int parallelism) {
+        return new S3OutputStream(s3, bucket, key, metadata, pool, parallelism);
+    }
+
+    /**
+     * Creates an {@link java.io.OutputStream} for a given key, which stores the content as deduplicated chunks and a manifest (see
+     * {@link ChunkedOutputStream}). The cache item is created when the stream gets closed.
+     * @param metadata additional user metadata which is assigned to the manifest
+     * @param pool provides the buffer which holds the manifest
+     * @param compression compression which is applied to each chunk
+     * @param parallelism max number of chunks which are uploaded in parallel
+     */
+    public ChunkedOutputStream createChunkedOutputStream(String key, Map<String, String> metadata, PartBufferPool pool,
+                                                         Compression.Setting compression, int parallelism) {
+        return new ChunkedOutputStream(s3, bucket, key, metadata, pool, compression, parallelism);
     }
 
     /**
@@ -179,12 +678,30 @@ public class CacheItemRepository {
 
     /**
      * Collects the {@link S3ObjectSummary}s from a given {@link ObjectListing} and returns them as a {@link Stream}. If the
-     * {@link ObjectListing} is truncated (one batch of many) then the truncated ones are resolved and added to the {@link Stream} as well.
+     * {@link ObjectListing} is truncated (one batch of many) then the following batches are requested while the {@link Stream} is
+     * consumed, so that only one batch is held in memory at a time.
      */
     private Stream<S3ObjectSummary> flatMapObjectSummaries(ObjectListing listing) {
-        Stream<S3ObjectSummary> result = listing.getObjectSummaries().stream();
+        Iterator<List<S3ObjectSummary>> batches = new Iterator<List<S3ObjectSummary>>() {
+            private ObjectListing next = listing;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
 
-        return listing.isTruncated() ? concat(result, flatMapObjectSummaries(s3.listNextBatchOfObjects(listing))) : result;
+            @Override
+            public List<S3ObjectSummary> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                ObjectListing current = next;
+                next = current.isTruncated() ? s3.listNextBatchOfObjects(current) : null;
+                return current.getObjectSummaries();
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED), false).flatMap(List::stream);
     }
 
     /**
@@ -194,8 +711,8 @@ public class CacheItemRepository {
         return new CacheItem(
                 s3ObjectSummary.getKey(),
                 s3ObjectSummary.getSize(),
-                // we just use the last modified timestamp here as last access time (assumption: last access and last modified are equals
-                // anyway), this saves one extra request (last access timestamp is stored as metadata)
+                // we just use the last modified timestamp here as last access time, the accesses are recorded in the catalog (see
+                // Catalog.Event#accessed) and the object itself is never modified
                 s3ObjectSummary.getLastModified().getTime()
         );
     }
@@ -205,21 +722,37 @@ public class CacheItemRepository {
             return null;
         }
 
+        // objects which are managed by the plugin itself are not cache items
+        if (prefix.startsWith(SYSTEM_PREFIX)) {
+            return null;
+        }
+
         ObjectListing listing = s3.listObjects(bucket, prefix);
+        List<S3ObjectSummary> summaries = listing.getObjectSummaries().stream()
+                .filter(s -> !s.getKey().startsWith(SYSTEM_PREFIX))
+                .collect(Collectors.toList());
 
         // 1. no key with the same prefix exists
-        if (listing.getObjectSummaries().isEmpty()) {
+        if (summaries.isEmpty() && !listing.isTruncated()) {
             return null;
         }
 
         // 2. one key with the same prefix exists
-        if (listing.getObjectSummaries().size() == 1) {
-            return listing.getObjectSummaries().get(0).getKey();
+        if (summaries.size() == 1 && !listing.isTruncated()) {
+            return summaries.get(0).getKey();
         }
 
-        // 3. more than one key with the same prefix exists -> return the latest one
+        // 3. more than one key with the same prefix exists -> return the latest one (the creation markers are listed, only cache items
+        // without marker require an extra request)
+        Map<String, Long> creations = new HashMap<>();
+        flatMapObjectSummaries(s3.listObjects(bucket, CREATION_PREFIX + prefix)).forEach(marker -> creations.merge(
+                getKeyOfCreationMarker(marker.getKey()),
+                Long.parseLong(marker.getKey().substring(marker.getKey().lastIndexOf('/') + 1)),
+                Math::max));
+
         return flatMapObjectSummaries(listing)
-                .map(this::mapToKeyCreation)
+                .filter(s -> !s.getKey().startsWith(SYSTEM_PREFIX))
+                .map(s -> creations.containsKey(s.getKey()) ? new KeyCreation(s.getKey(), creations.get(s.getKey())) : mapToKeyCreation(s))
                 .max(Comparator.comparing(KeyCreation::getCreation))
                 .map(KeyCreation::getKey)
                 .orElse(null);
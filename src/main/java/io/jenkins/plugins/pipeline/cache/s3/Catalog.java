@@ -0,0 +1,443 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of all cache items (key, size, creation, last access, number of hits, MD5 checksum and the chunks a chunked cache item refers
+ * to, see {@link Manifest}). The catalog is stored in the bucket as a snapshot
+ * (see {@link CacheItemRepository#CATALOG}) and a number of segments (see {@link CacheItemRepository#CATALOG_SEGMENT_PREFIX}). Each segment
+ * holds the {@link Event}s of one backup or restore, so the catalog is updated without reading or replacing the snapshot. The segments are
+ * merged into the snapshot by the cleanup task periodically (see {@link CacheItemRepository#compactCatalog(Catalog)}), the
+ * snapshot remembers the merged segments until they have been removed.
+ */
+public class Catalog {
+
+    private static final String HEADER_V1 = "pipeline-cache-catalog 1";
+    private static final String HEADER_V2 = "pipeline-cache-catalog 2";
+    private static final String HEADER = "pipeline-cache-catalog 3";
+    private static final String SEGMENT_HEADER_V1 = "pipeline-cache-catalog-segment 1";
+    private static final String SEGMENT_HEADER_V2 = "pipeline-cache-catalog-segment 2";
+    private static final String SEGMENT_HEADER = "pipeline-cache-catalog-segment 3";
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Set<String> segments = new HashSet<>();
+    private long rebuilt;
+
+    /**
+     * Hashes of the referenced chunks, so that each hash is held only once (most chunks are shared by several cache items).
+     */
+    private final Map<String, String> hashes = new HashMap<>();
+
+    /**
+     * @param rebuilt Unix time in ms when the catalog has been rebuilt from the bucket listing
+     */
+    Catalog(long rebuilt) {
+        this.rebuilt = rebuilt;
+    }
+
+    /**
+     * Provides a stream of all cache items.
+     */
+    public Stream<CacheItem> findAll() {
+        return entries.values().stream().map(e -> new CacheItem(e.key, e.size, e.lastAccess));
+    }
+
+    /**
+     * Provides the entry of a given cache item, or null if the catalog doesn't contain it.
+     */
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return total size of all cache items in bytes
+     */
+    public long getTotalSize() {
+        return entries.values().stream().mapToLong(Entry::getSize).sum();
+    }
+
+    /**
+     * @return Unix time in ms when the catalog has been rebuilt from the bucket listing
+     */
+    public long getRebuilt() {
+        return rebuilt;
+    }
+
+    /**
+     * @return keys of the segments which have been merged into this catalog
+     */
+    public Set<String> getSegments() {
+        return Collections.unmodifiableSet(segments);
+    }
+
+    /**
+     * Applies a given event to the catalog.
+     */
+    public void apply(Event event) {
+        Entry entry = entries.get(event.key);
+
+        switch (event.type) {
+            case CREATED:
+                if (entry == null) {
+                    entries.put(event.key, new Entry(event.key, event.size, event.time, event.time, 0, intern(event.chunks),
+                            event.checksum));
+                } else if (entry.creation <= event.time) {
+                    long lastAccess = Math.max(entry.lastAccess, event.time);
+                    entries.put(event.key, new Entry(event.key, event.size, event.time, lastAccess, entry.hits, intern(event.chunks),
+                            event.checksum));
+                }
+                break;
+            case ACCESSED:
+                if (entry != null) {
+                    entry.lastAccess = Math.max(entry.lastAccess, event.time);
+                    entry.hits++;
+                }
+                break;
+            case DELETED:
+                if (entry != null && entry.creation <= event.time) {
+                    entries.remove(event.key);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unsupported event " + event.type);
+        }
+    }
+
+    /**
+     * Stores the chunks a given cache item refers to (see {@link Entry#getChunks()}), e.g. after the manifest has been read.
+     * @param chunks hashes of the chunks (empty if the cache item is not chunked)
+     */
+    void setChunks(String key, List<String> chunks) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.chunks = intern(chunks);
+        }
+    }
+
+    /**
+     * Provides the entries whose chunks are not known yet (e.g. created by an older version).
+     */
+    Stream<Entry> findUnresolved() {
+        return entries.values().stream().filter(entry -> entry.chunks == null);
+    }
+
+    private List<String> intern(List<String> chunks) {
+        if (chunks == null || chunks.isEmpty()) {
+            return chunks == null ? null : Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(chunks.size());
+        chunks.forEach(hash -> result.add(hashes.computeIfAbsent(hash, h -> h)));
+        return result;
+    }
+
+    /**
+     * Merges the events of the given segments into the catalog (segments which have been merged before are ignored). The events are
+     * applied in chronological order.
+     */
+    void merge(Map<String, List<Event>> segments) {
+        segments.entrySet().stream()
+                .filter(segment -> this.segments.add(segment.getKey()))
+                .flatMap(segment -> segment.getValue().stream())
+                .sorted(Comparator.comparingLong(Event::getTime))
+                .forEach(this::apply);
+    }
+
+    /**
+     * Forgets the merged segments which not exist anymore (they have been removed after the catalog has been stored).
+     */
+    void retainSegments(Collection<String> existing) {
+        segments.retainAll(existing);
+    }
+
+    /**
+     * Aligns the catalog with a given listing of the bucket. Cache items which are not listed are removed and listed cache items which
+     * are missing are added (the last modification is used as creation and as last access then).
+     */
+    void reconcile(Stream<CacheItem> listed, long rebuilt) {
+        Set<String> keys = new HashSet<>();
+        listed.forEach(item -> {
+            keys.add(item.getKey());
+            entries.computeIfAbsent(item.getKey(), key -> new Entry(key, item.getContentLength(), item.getLastAccess(),
+                    item.getLastAccess(), 0, null, null));
+        });
+
+        entries.keySet().retainAll(keys);
+        this.rebuilt = rebuilt;
+        this.hashes.clear();
+        entries.values().forEach(entry -> entry.chunks = intern(entry.chunks));
+    }
+
+    void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeUTF(HEADER);
+        data.writeLong(rebuilt);
+        data.writeInt(segments.size());
+        for (String segment : segments) {
+            data.writeUTF(segment);
+        }
+        data.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            data.writeUTF(entry.key);
+            data.writeLong(entry.size);
+            data.writeLong(entry.creation);
+            data.writeLong(entry.lastAccess);
+            data.writeLong(entry.hits);
+            writeChunks(data, entry.chunks);
+            writeChecksum(data, entry.checksum);
+        }
+        data.flush();
+    }
+
+    static Catalog read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        String header = data.readUTF();
+        if (!HEADER.equals(header) && !HEADER_V2.equals(header) && !HEADER_V1.equals(header)) {
+            throw new IOException("Unsupported catalog format");
+        }
+        // the first version doesn't know the chunks, the first two versions don't know the checksums
+        boolean chunks = !HEADER_V1.equals(header);
+        boolean checksums = HEADER.equals(header);
+
+        Catalog catalog = new Catalog(data.readLong());
+        int segments = data.readInt();
+        for (int i = 0; i < segments; i++) {
+            catalog.segments.add(data.readUTF());
+        }
+        int entries = data.readInt();
+        for (int i = 0; i < entries; i++) {
+            Entry entry = new Entry(data.readUTF(), data.readLong(), data.readLong(), data.readLong(), data.readLong(), null,
+                    null);
+            entry.chunks = chunks ? catalog.intern(readChunks(data)) : null;
+            entry.checksum = checksums ? readChecksum(data) : null;
+            catalog.entries.put(entry.key, entry);
+        }
+
+        return catalog;
+    }
+
+    static void writeSegment(OutputStream out, List<Event> events) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeUTF(SEGMENT_HEADER);
+        data.writeInt(events.size());
+        for (Event event : events) {
+            data.writeUTF(event.type.name());
+            data.writeUTF(event.key);
+            data.writeLong(event.size);
+            data.writeLong(event.time);
+            writeChunks(data, event.chunks);
+            writeChecksum(data, event.checksum);
+        }
+        data.flush();
+    }
+
+    static List<Event> readSegment(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        String header = data.readUTF();
+        if (!SEGMENT_HEADER.equals(header) && !SEGMENT_HEADER_V2.equals(header) && !SEGMENT_HEADER_V1.equals(header)) {
+            throw new IOException("Unsupported catalog segment format");
+        }
+        // the first version doesn't know the chunks, the first two versions don't know the checksums
+        boolean chunks = !SEGMENT_HEADER_V1.equals(header);
+        boolean checksums = SEGMENT_HEADER.equals(header);
+
+        int count = data.readInt();
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new Event(Event.Type.valueOf(data.readUTF()), data.readUTF(), data.readLong(), data.readLong(),
+                    chunks ? readChunks(data) : null, checksums ? readChecksum(data) : null));
+        }
+
+        return events;
+    }
+
+    /**
+     * Writes the hashes of the chunks (-1 if they are not known).
+     */
+    private static void writeChunks(DataOutputStream data, List<String> chunks) throws IOException {
+        if (chunks == null) {
+            data.writeInt(-1);
+            return;
+        }
+        data.writeInt(chunks.size());
+        for (String hash : chunks) {
+            data.writeUTF(hash);
+        }
+    }
+
+    private static List<String> readChunks(DataInputStream data) throws IOException {
+        int count = data.readInt();
+        if (count < 0) {
+            return null;
+        }
+        List<String> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(data.readUTF());
+        }
+        return chunks;
+    }
+
+    /**
+     * Writes the checksum (empty if it is not known).
+     */
+    private static void writeChecksum(DataOutputStream data, String checksum) throws IOException {
+        data.writeUTF(checksum == null ? "" : checksum);
+    }
+
+    private static String readChecksum(DataInputStream data) throws IOException {
+        String checksum = data.readUTF();
+        return checksum.isEmpty() ? null : checksum;
+    }
+
+    /**
+     * Entry of one cache item.
+     */
+    public static class Entry {
+        private final String key;
+        private final long size;
+        private final long creation;
+        private long lastAccess;
+        private long hits;
+        private List<String> chunks;
+        private String checksum;
+
+        Entry(String key, long size, long creation, long lastAccess, long hits, List<String> chunks, String checksum) {
+            this.key = key;
+            this.size = size;
+            this.creation = creation;
+            this.lastAccess = lastAccess;
+            this.hits = hits;
+            this.chunks = chunks;
+            this.checksum = checksum;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCreation() {
+            return creation;
+        }
+
+        public long getLastAccess() {
+            return lastAccess;
+        }
+
+        /**
+         * @return number of times the cache item has been restored
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return hashes of the chunks the cache item refers to (each one once), empty if the cache item is not chunked or the chunks are
+         * not known (see {@link CacheItemRepository#resolveChunks(Catalog)})
+         */
+        public List<String> getChunks() {
+            return chunks == null ? Collections.emptyList() : Collections.unmodifiableList(chunks);
+        }
+
+        /**
+         * @return MD5 checksum (hex encoded) of the stored object (the manifest in case of a chunked cache item), or null if it is not
+         * known (e.g. created by an older version)
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Change of a cache item.
+     */
+    public static class Event {
+
+        /**
+         * Type of the change.
+         */
+        public enum Type {
+            CREATED, ACCESSED, DELETED
+        }
+
+        private final Type type;
+        private final String key;
+        private final long size;
+        private final long time;
+
+        /**
+         * Hashes of the chunks of a created cache item (empty if the cache item is not chunked), null if not known.
+         */
+        private final List<String> chunks;
+
+        /**
+         * MD5 checksum (hex encoded) of a created cache item, null if not known.
+         */
+        private final String checksum;
+
+        private Event(Type type, String key, long size, long time, List<String> chunks, String checksum) {
+            this.type = type;
+            this.key = key;
+            this.size = size;
+            this.time = time;
+            this.chunks = chunks;
+            this.checksum = checksum;
+        }
+
+        /**
+         * The cache item has been created.
+         * @param manifest the manifest of a chunked cache item, or null if the cache item is not chunked
+         */
+        public static Event created(String key, long size, Manifest manifest) {
+            return created(key, size, manifest, null);
+        }
+
+        /**
+         * The cache item has been created.
+         * @param manifest the manifest of a chunked cache item, or null if the cache item is not chunked
+         * @param checksum MD5 checksum (hex encoded) of the stored object (see {@link CacheItemOutputStream#getChecksum()}), or null
+         */
+        public static Event created(String key, long size, Manifest manifest, String checksum) {
+            List<String> chunks = manifest == null ? Collections.emptyList() : manifest.getChunks().stream()
+                    .map(Manifest.Chunk::getHash)
+                    .distinct()
+                    .collect(Collectors.toList());
+            return new Event(Type.CREATED, key, size, System.currentTimeMillis(), chunks, checksum);
+        }
+
+        /**
+         * The cache item has been restored.
+         */
+        public static Event accessed(String key) {
+            return new Event(Type.ACCESSED, key, 0, System.currentTimeMillis(), null, null);
+        }
+
+        /**
+         * The cache item has been removed.
+         */
+        public static Event deleted(String key) {
+            return new Event(Type.DELETED, key, 0, System.currentTimeMillis(), null, null);
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.COMPRESSION;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+
+import io.jenkins.plugins.pipeline.cache.compression.Compression;
+
+/**
+ * {@link InputStream} which allows reading a chunked cache item (see {@link ChunkedOutputStream}). The chunks listed in the
+ * {@link Manifest} are downloaded in parallel, decompressed and verified (SHA-256), and provided in order. The number of chunks in
+ * flight is limited, as soon as the reading of a chunk starts, the download of the next one is scheduled.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    /**
+     * Max number of attempts to download a chunk.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final List<Manifest.Chunk> chunks;
+
+    /**
+     * Downloads in flight, the download of chunk n is stored at n % downloads.length.
+     */
+    private final Future<byte[]>[] downloads;
+
+    private final ExecutorService executor;
+
+    /**
+     * Index of the chunk which is read currently.
+     */
+    private int chunk = -1;
+
+    /**
+     * Index of the next chunk which gets downloaded.
+     */
+    private int nextChunk;
+
+    private byte[] buf = new byte[0];
+    private int pos;
+    private boolean open = true;
+
+    /**
+     * Creates a new input stream to read a chunked cache item.
+     * @param s3 the AmazonS3 client
+     * @param bucket name of the bucket
+     * @param manifest manifest of the cache item
+     * @param parallelism max number of chunks which are downloaded in parallel
+     */
+    @SuppressWarnings("unchecked")
+    public ChunkedInputStream(AmazonS3 s3, String bucket, Manifest manifest, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism <= 0");
+        }
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.chunks = manifest.getChunks();
+
+        int ringSize = Math.max(1, Math.min(parallelism, chunks.size()));
+        this.downloads = new Future[ringSize];
+        this.executor = Executors.newFixedThreadPool(ringSize, r -> {
+            Thread t = new Thread(r, "ChunkedInputStream");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // fill the ring
+        while (nextChunk < chunks.size() && nextChunk < ringSize) {
+            scheduleNextChunk();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(len, buf.length - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buf.length - pos;
+    }
+
+    /**
+     * Makes sure that the current chunk has remaining data.
+     * @return true if there is data available, false if the end of the cache item is reached
+     */
+    private boolean ensureData() throws IOException {
+        if (!open) {
+            throw new IOException("Stream closed");
+        }
+
+        while (pos >= buf.length) {
+            if (chunk + 1 >= chunks.size()) {
+                return false;
+            }
+
+            chunk++;
+            buf = await(downloads[chunk % downloads.length]);
+            pos = 0;
+
+            // the slot of the current chunk is free again -> use it for the next chunk
+            if (nextChunk < chunks.size()) {
+                scheduleNextChunk();
+            }
+        }
+        return true;
+    }
+
+    private void scheduleNextChunk() {
+        Manifest.Chunk next = chunks.get(nextChunk);
+        downloads[nextChunk % downloads.length] = executor.submit(() -> download(next));
+        nextChunk++;
+    }
+
+    /**
+     * Downloads a chunk (retries if the download fails).
+     * @return the content of the chunk (decompressed)
+     */
+    private byte[] download(Manifest.Chunk chunk) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return downloadSecure(chunk);
+            } catch (IOException | SdkClientException e) {
+                if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private byte[] downloadSecure(Manifest.Chunk chunk) throws IOException {
+        // download the chunk completely before it gets decompressed (the connection can be reused then)
+        byte[] compressed;
+        Compression codec;
+        try (S3Object object = s3.getObject(bucket, chunk.getKey())) {
+            codec = Compression.of(object.getObjectMetadata().getUserMetadata().get(COMPRESSION));
+            compressed = IOUtils.toByteArray(object.getObjectContent());
+        }
+
+        byte[] content = new byte[chunk.getSize()];
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed))) {
+            int off = 0;
+            while (off < content.length) {
+                int n = in.read(content, off, content.length - off);
+                if (n < 0) {
+                    throw new EOFException(String.format("Unexpected end of chunk (%s)", chunk.getKey()));
+                }
+                off += n;
+            }
+        }
+
+        if (!DigestUtils.sha256Hex(content).equals(chunk.getHash())) {
+            throw new IOException(String.format("Checksum mismatch (%s)", chunk.getKey()));
+        }
+
+        return content;
+    }
+
+    private static byte[] await(Future<byte[]> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk");
+        } catch (ExecutionException e) {
+            throw new IOException("Download of a chunk has been failed!", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,484 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.CHUNK_LEASE_RENEWAL;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.COMPRESSION;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.LAST_ACCESS;
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.MANIFEST;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import io.jenkins.plugins.pipeline.cache.compression.Compression;
+
+/**
+ * {@link OutputStream} which stores the content as chunks and a {@link Manifest}. The content is split into chunks by content-defined
+ * chunking (see {@link Chunker}), each chunk is stored under its SHA-256 hash and only uploaded if there is no such chunk yet. The chunks
+ * are compressed individually and uploaded in parallel (the number of chunks in flight is limited). The manifest is stored under the key
+ * of the cache item when the stream gets closed.<br><br>
+ * The chunks in flight are held in buffers which are borrowed from the {@link PartBufferPool} (like the parts of a multipart upload), so
+ * that the memory used by all the uploads on an agent stays bounded. The raw buffers are returned as soon as a chunk has been compressed,
+ * so only the chunks which are uploaded currently are held a second time (compressed).
+ */
+public class ChunkedOutputStream extends CacheItemOutputStream {
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final Map<String, String> userMetadata;
+    private final PartBufferPool pool;
+    private final Compression.Setting compression;
+
+    /**
+     * Limits the number of chunks in flight (one permit per chunk).
+     */
+    private final Semaphore window;
+
+    private final ExecutorService executor;
+
+    private final Chunker chunker = new Chunker();
+
+    /**
+     * Holds the bytes of the current chunk (grows up to the max size of a chunk).
+     */
+    private byte[] buf = new byte[Chunker.MIN_SIZE * 2];
+
+    /**
+     * Number of valid bytes in the buffer.
+     */
+    private int count;
+
+    /**
+     * Total time in nanoseconds the writer had to wait for buffers.
+     */
+    private long bufferWaitNanos;
+
+    private final Manifest manifest = new Manifest();
+
+    /**
+     * Hashes of the chunks which have been handled already (a chunk can occur more than once in the same archive).
+     */
+    private final Set<String> hashes = new HashSet<>();
+
+    /**
+     * Uploads in flight, provides the number of bytes uploaded (0 if the chunk exists already).
+     */
+    private final List<Future<Long>> uploads = new ArrayList<>();
+
+    /**
+     * Chunks of the uploads (their buffers are returned to the pool by the upload, or by {@link #shutdown()} if the upload never starts).
+     */
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    private boolean open = true;
+    private String eTag;
+    private String checksum;
+    private int uploadedChunks;
+    private long uploadedBytes;
+
+    /**
+     * Creates a new output stream which stores the content as chunks and a manifest.
+     * @param s3 the AmazonS3 client
+     * @param bucket name of the bucket
+     * @param key key of the cache item (the manifest is stored under this key)
+     * @param userMetadata additional user metadata which is assigned to the manifest
+     * @param pool provides the buffers which hold the chunks in flight and the manifest
+     * @param compression compression which is applied to each chunk
+     * @param parallelism max number of chunks which are uploaded in parallel
+     */
+    public ChunkedOutputStream(AmazonS3 s3, String bucket, String key, Map<String, String> userMetadata, PartBufferPool pool,
+                               Compression.Setting compression, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism <= 0");
+        }
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.userMetadata = userMetadata;
+        this.pool = pool;
+        this.compression = compression;
+        this.window = new Semaphore(parallelism);
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "ChunkedOutputStream-" + key);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            // cut off the current chunk as soon as it is complete
+            int n = chunker.next(b, off, len);
+            int size = n < 0 ? len : n;
+            append(b, off, size);
+            off += size;
+            len -= size;
+            if (n >= 0) {
+                flushChunk();
+            }
+        }
+    }
+
+    /**
+     * Appends the given bytes to the current chunk.
+     */
+    private void append(byte[] b, int off, int len) {
+        if (count + len > buf.length) {
+            buf = Arrays.copyOf(buf, Math.min(Chunker.MAX_SIZE, Math.max(count + len, buf.length * 2)));
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Uploads the current chunk in the background (if it not exists yet) and continues with a new one.
+     */
+    private void flushChunk() throws IOException {
+        int size = count;
+        count = 0;
+
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        sha256.update(buf, 0, size);
+        String hash = Hex.encodeHexString(sha256.digest());
+        manifest.add(hash, size);
+        if (!hashes.add(hash)) {
+            return;
+        }
+
+        // wait until a slot is available (back-pressure)
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk upload");
+        }
+
+        // fail fast if one of the previous chunks could not be uploaded
+        for (Future<Long> upload : uploads) {
+            if (upload.isDone()) {
+                await(upload);
+            }
+        }
+
+        Chunk chunk;
+        try {
+            chunk = copy(size);
+        } catch (IOException e) {
+            window.release();
+            throw e;
+        }
+
+        String chunkKey = CacheItemRepository.CHUNK_PREFIX + hash;
+        chunks.add(chunk);
+        uploads.add(executor.submit(() -> {
+            if (!chunk.start()) {
+                return 0L;
+            }
+            try {
+                return exists(chunkKey) ? 0L : upload(chunkKey, chunk);
+            } finally {
+                chunk.release();
+                window.release();
+            }
+        }));
+    }
+
+    /**
+     * Copies the given number of bytes of the current chunk into buffers which are borrowed from the pool.
+     */
+    private Chunk copy(int size) throws IOException {
+        int bufferSize = pool.getBufferSize();
+        List<ByteBuffer> buffers;
+        long start = System.nanoTime();
+        try {
+            buffers = pool.borrow((size + bufferSize - 1) / bufferSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        } finally {
+            bufferWaitNanos += System.nanoTime() - start;
+        }
+
+        int off = 0;
+        for (ByteBuffer buffer : buffers) {
+            int n = Math.min(buffer.remaining(), size - off);
+            buffer.put(buf, off, n);
+            buffer.flip();
+            off += n;
+        }
+        return new Chunk(buffers, size);
+    }
+
+    /**
+     * Returns true if a given chunk exists. If the chunk has not been modified for a while, then the last modification timestamp gets
+     * renewed, so that the chunk is not removed by the cleanup while it gets referenced by the new manifest.
+     */
+    private boolean exists(String chunkKey) {
+        ObjectMetadata metadata;
+        try {
+            metadata = s3.getObjectMetadata(bucket, chunkKey);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+
+        if (System.currentTimeMillis() - metadata.getLastModified().getTime() > CHUNK_LEASE_RENEWAL) {
+            ObjectMetadata newMetadata = new ObjectMetadata();
+            newMetadata.setUserMetadata(metadata.getUserMetadata());
+            newMetadata.addUserMetadata(LAST_ACCESS, Long.toString(System.currentTimeMillis()));
+            try {
+                s3.copyObject(new CopyObjectRequest(bucket, chunkKey, bucket, chunkKey).withNewObjectMetadata(newMetadata));
+            } catch (AmazonServiceException e) {
+                // removed by the cleanup in the meantime
+                if (e.getStatusCode() == 404) {
+                    return false;
+                }
+                throw e;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compresses and uploads a given chunk.
+     * @return number of bytes uploaded
+     */
+    private long upload(String chunkKey, Chunk chunk) throws IOException {
+        InputStream content;
+        long length;
+        byte[] md5;
+
+        if (compression.getCodec() == Compression.NONE) {
+            // uploaded right from the buffers
+            content = chunk.newInputStream();
+            length = chunk.size;
+            md5 = chunk.md5();
+        } else {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(chunk.size / 2);
+            try (InputStream in = chunk.newInputStream(); OutputStream out = compression.compress(compressed)) {
+                IOUtils.copy(in, out);
+            }
+
+            // the raw bytes are not needed anymore, the buffers are returned before the upload
+            chunk.release();
+            byte[] bytes = compressed.toByteArray();
+            content = new ByteArrayInputStream(bytes);
+            length = bytes.length;
+            md5 = DigestUtils.md5(bytes);
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(length);
+        metadata.setContentMD5(Base64.getEncoder().encodeToString(md5));
+        metadata.addUserMetadata(COMPRESSION, compression.getCodec().name());
+        s3.putObject(new PutObjectRequest(bucket, chunkKey, content, metadata));
+
+        return length;
+    }
+
+    private long await(Future<Long> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk upload");
+        } catch (ExecutionException e) {
+            throw new IOException("Upload of a chunk has been failed!", e.getCause());
+        }
+    }
+
+    /**
+     * @return the manifest of the content written so far
+     */
+    public synchronized Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return number of chunks which have been uploaded (the others exist already)
+     */
+    public synchronized int getUploadedChunks() {
+        return uploadedChunks;
+    }
+
+    /**
+     * @return number of bytes which have been uploaded (compressed)
+     */
+    public synchronized long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    @Override
+    public synchronized long getBufferWaitNanos() {
+        return bufferWaitNanos;
+    }
+
+    @Override
+    public synchronized String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return MD5 checksum (hex encoded) of the stored manifest, or null if the stream has not been closed successfully yet (the chunks
+     * are verified by their hashes)
+     */
+    @Override
+    public synchronized String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Discards the content written so far. The chunks which have been uploaded already are not referenced by any manifest, they are
+     * removed by the cleanup later on.
+     */
+    @Override
+    public synchronized void abort() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        buf = null;
+        shutdown();
+    }
+
+    /**
+     * Stops the uploads and returns the buffers of the chunks which have not been uploaded yet. The buffers of the uploads which are
+     * running are returned by the uploads themselves (they are still read).
+     */
+    private void shutdown() {
+        executor.shutdownNow();
+        chunks.forEach(Chunk::discard);
+        chunks.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+
+        try {
+            // the remaining bytes are the last chunk
+            if (count > 0) {
+                flushChunk();
+            }
+            buf = null;
+
+            for (Future<Long> upload : uploads) {
+                long size = await(upload);
+                if (size > 0) {
+                    uploadedChunks++;
+                    uploadedBytes += size;
+                }
+            }
+        } finally {
+            shutdown();
+        }
+
+        // store the manifest (the cache item becomes visible)
+        Map<String, String> metadata = new HashMap<>(userMetadata);
+        metadata.put(MANIFEST, Long.toString(manifest.getSize()));
+        S3OutputStream out = new S3OutputStream(s3, bucket, key, metadata, pool, 1);
+        try {
+            manifest.write(out);
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+        eTag = out.getETag();
+        checksum = out.getChecksum();
+    }
+
+    /**
+     * Bytes of a chunk in flight, which are held in buffers borrowed from the pool.
+     */
+    private final class Chunk {
+        private List<ByteBuffer> buffers;
+        private final int size;
+        private boolean started;
+        private boolean discarded;
+
+        private Chunk(List<ByteBuffer> buffers, int size) {
+            this.buffers = buffers;
+            this.size = size;
+        }
+
+        private InputStream newInputStream() {
+            return new ByteBufferInputStream(buffers.toArray(new ByteBuffer[0]));
+        }
+
+        private byte[] md5() {
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            buffers.forEach(buffer -> md5.update(buffer.duplicate()));
+            return md5.digest();
+        }
+
+        /**
+         * Marks the upload of the chunk as started.
+         * @return false if the chunk has been discarded already (the upload must not start)
+         */
+        private synchronized boolean start() {
+            started = !discarded;
+            return started;
+        }
+
+        /**
+         * Returns the buffers to the pool if the upload of the chunk has not been started yet.
+         */
+        private synchronized void discard() {
+            if (!started) {
+                discarded = true;
+                release();
+            }
+        }
+
+        /**
+         * Returns the buffers to the pool (only once).
+         */
+        private synchronized void release() {
+            if (buffers != null) {
+                buffers.forEach(pool::release);
+                buffers = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.util.Random;
+
+/**
+ * Content-defined chunking based on a gear hash (see FastCDC). The chunk boundaries depend on the content only, so that an insertion or
+ * a deletion changes only the chunks around it and not all the following ones (as it would be the case with fixed-size chunks). The
+ * chunks are at least {@link #MIN_SIZE} and at most {@link #MAX_SIZE} bytes long, the average size is about 4 MB.
+ */
+class Chunker {
+
+    /**
+     * Min size of a chunk (512 KB).
+     */
+    static final int MIN_SIZE = 1024 * 512;
+
+    /**
+     * Max size of a chunk (16 MB).
+     */
+    static final int MAX_SIZE = 1024 * 1024 * 16;
+
+    /**
+     * 22 bits (boundary every 4 MB on average), the upper bits are used because they depend on the last 64 bytes, the lower ones only on
+     * the last few bytes.
+     */
+    private static final long MASK = 0x3FFFFFL << 40;
+
+    /**
+     * Random value per byte value, the seed is fixed because the boundaries must be the same on each agent and in each version.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6A33745F63646321L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private long hash;
+
+    /**
+     * Number of bytes of the current chunk which have been scanned so far.
+     */
+    private int position;
+
+    /**
+     * Scans the given bytes, which follow the bytes scanned so far, for the end of the current chunk. The bytes don't need to be kept,
+     * so the caller can pass the data as it is written.
+     * @param b the data
+     * @param off the start offset in the data
+     * @param len the number of bytes to scan
+     * @return number of the given bytes which belong to the current chunk if a boundary has been found (a new chunk starts after them),
+     * otherwise -1 (all the given bytes belong to the current chunk)
+     */
+    int next(byte[] b, int off, int len) {
+        // the bytes before the min size cannot be a boundary, they are skipped
+        int skip = Math.min(len, Math.max(0, MIN_SIZE - position));
+        position += skip;
+
+        for (int i = skip; i < len; i++) {
+            hash = (hash << 1) + GEAR[b[off + i] & 0xFF];
+            if ((hash & MASK) == 0 || ++position >= MAX_SIZE) {
+                hash = 0;
+                position = 0;
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+}
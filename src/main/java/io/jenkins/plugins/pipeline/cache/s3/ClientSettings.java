@@ -0,0 +1,68 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.util.Objects;
+
+import com.amazonaws.ClientConfiguration;
+
+/**
+ * Connection settings of an S3 client (see {@link S3ClientRegistry}).
+ */
+public final class ClientSettings {
+
+    /**
+     * Default max number of open connections per client.
+     */
+    public static final int MAX_CONNECTIONS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+
+    /**
+     * Default socket timeout in seconds.
+     */
+    public static final int SOCKET_TIMEOUT = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT / 1000;
+
+    /**
+     * Default settings.
+     */
+    public static final ClientSettings DEFAULT = new ClientSettings(MAX_CONNECTIONS, SOCKET_TIMEOUT, false);
+
+    private final int maxConnections;
+    private final int socketTimeout;
+    private final boolean tcpKeepAlive;
+
+    /**
+     * @param maxConnections max number of open connections per client
+     * @param socketTimeout socket timeout in seconds
+     * @param tcpKeepAlive true if TCP keep-alive should be enabled on the connections, otherwise false
+     */
+    public ClientSettings(int maxConnections, int socketTimeout, boolean tcpKeepAlive) {
+        this.maxConnections = maxConnections;
+        this.socketTimeout = socketTimeout;
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    /**
+     * Creates the client configuration of the AWS SDK.
+     */
+    ClientConfiguration toClientConfiguration() {
+        return new ClientConfiguration()
+                .withMaxConnections(maxConnections)
+                .withSocketTimeout(socketTimeout * 1000)
+                .withTcpKeepAlive(tcpKeepAlive);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ClientSettings that = (ClientSettings) o;
+        return maxConnections == that.maxConnections && socketTimeout == that.socketTimeout && tcpKeepAlive == that.tcpKeepAlive;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxConnections, socketTimeout, tcpKeepAlive);
+    }
+}
@@ -0,0 +1,66 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of a delete operation (see {@link CacheItemRepository#delete(java.util.stream.Stream)}).
+ */
+public class DeleteResult {
+
+    private final Set<String> deleted = new HashSet<>();
+    private final Map<String, String> failed = new HashMap<>();
+    private int batches;
+    private int failedBatches;
+
+    /**
+     * @return keys of the objects which have been removed
+     */
+    public Set<String> getDeleted() {
+        return Collections.unmodifiableSet(deleted);
+    }
+
+    /**
+     * @return keys of the objects which could not be removed, along with the reason
+     */
+    public Map<String, String> getFailed() {
+        return Collections.unmodifiableMap(failed);
+    }
+
+    /**
+     * @return number of delete requests (batches) which have been executed
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return number of batches where at least one object could not be removed
+     */
+    public int getFailedBatches() {
+        return failedBatches;
+    }
+
+    void addDeleted(String key) {
+        deleted.add(key);
+    }
+
+    void addFailed(String key, String reason) {
+        failed.put(key, reason);
+    }
+
+    void merge(DeleteResult batch) {
+        deleted.addAll(batch.deleted);
+        failed.putAll(batch.failed);
+        batches += Math.max(batch.batches, 1);
+        failedBatches += batch.failed.isEmpty() ? batch.failedBatches : Math.max(batch.failedBatches, 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d deleted, %d failed in %d batch(es)", deleted.size(), failed.size(), batches);
+    }
+}
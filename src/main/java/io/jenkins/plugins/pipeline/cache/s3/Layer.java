@@ -0,0 +1,73 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes an incremental cache item (delta layer). The archive of such an item contains only the files which have been added or
+ * changed relative to the parent, the files which have been deleted are listed here. The layer is stored next to the cache item (see
+ * {@link CacheItemRepository#LAYER_PREFIX}), the cache item itself is marked with {@link CacheItemRepository#LAYER}.
+ */
+public class Layer {
+
+    private static final String HEADER = "pipeline-cache-layer 1";
+
+    private final String parent;
+    private final List<String> deletions;
+
+    /**
+     * @param parent key of the parent cache item
+     * @param deletions relative paths of the files which have been deleted (separated by '/')
+     */
+    public Layer(String parent, List<String> deletions) {
+        this.parent = parent;
+        this.deletions = new ArrayList<>(deletions);
+    }
+
+    /**
+     * @return key of the parent cache item
+     */
+    public String getParent() {
+        return parent;
+    }
+
+    /**
+     * @return relative paths of the files which have been deleted (separated by '/')
+     */
+    public List<String> getDeletions() {
+        return Collections.unmodifiableList(deletions);
+    }
+
+    void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeUTF(HEADER);
+        data.writeUTF(parent);
+        data.writeInt(deletions.size());
+        for (String deletion : deletions) {
+            data.writeUTF(deletion);
+        }
+        data.flush();
+    }
+
+    static Layer read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (!HEADER.equals(data.readUTF())) {
+            throw new IOException("Unsupported layer format");
+        }
+
+        String parent = data.readUTF();
+        int count = data.readInt();
+        List<String> deletions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            deletions.add(data.readUTF());
+        }
+
+        return new Layer(parent, deletions);
+    }
+}
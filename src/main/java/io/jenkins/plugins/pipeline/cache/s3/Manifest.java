@@ -0,0 +1,112 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Manifest of a chunked cache item. The manifest is stored instead of the archive and lists the chunks of the archive in order. The chunks
+ * are stored once under their hash (see {@link CacheItemRepository#CHUNK_PREFIX}), so that they can be shared by several cache items.
+ * The format is line based, the first line is a header and each following line holds the SHA-256 hash and the size of one chunk.
+ */
+public class Manifest {
+
+    private static final String HEADER = "pipeline-cache-manifest 1";
+
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    /**
+     * Adds a chunk to the end of the manifest.
+     */
+    void add(String hash, int size) {
+        chunks.add(new Chunk(hash, size));
+    }
+
+    /**
+     * @return the chunks of the archive in order
+     */
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * @return size of the archive in bytes (uncompressed)
+     */
+    public long getSize() {
+        return chunks.stream().mapToLong(Chunk::getSize).sum();
+    }
+
+    void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Chunk chunk : chunks) {
+            writer.write(chunk.hash);
+            writer.write(' ');
+            writer.write(Integer.toString(chunk.size));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    static Manifest read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IOException("Unsupported manifest format");
+        }
+
+        Manifest manifest = new Manifest();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(" ");
+            if (fields.length != 2) {
+                throw new IOException("Invalid manifest entry: " + line);
+            }
+            manifest.add(fields[0], Integer.parseInt(fields[1]));
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Chunk of an archive.
+     */
+    public static class Chunk {
+        private final String hash;
+        private final int size;
+
+        private Chunk(String hash, int size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+        /**
+         * @return SHA-256 hash of the content (hex encoded)
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return size of the content in bytes (uncompressed)
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return key of the chunk object
+         */
+        public String getKey() {
+            return CacheItemRepository.CHUNK_PREFIX + hash;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of reusable buffers which are used by the {@link S3OutputStream} to hold the parts of a multipart upload and by the
+ * {@link ChunkedOutputStream} to hold the chunks in flight. There is only one pool per JVM (see {@link #get(long, int, boolean)}), which
+ * means that all the uploads on an agent share the same buffers. The total size of the buffers is limited, if all the buffers are in use,
+ * then the caller is blocked until a buffer is returned to the pool.
+ */
+public class PartBufferPool {
+
+    private static final Logger LOGGER = Logger.getLogger(PartBufferPool.class.getName());
+
+    private static PartBufferPool instance;
+
+    /**
+     * Size of one buffer in bytes.
+     */
+    private final int bufferSize;
+
+    /**
+     * true if the buffers are allocated outside the heap (see {@link ByteBuffer#allocateDirect(int)}), otherwise false.
+     */
+    private final boolean direct;
+
+    /**
+     * Max number of buffers which can be allocated by this pool.
+     */
+    private final int maxBuffers;
+
+    /**
+     * Buffers which are allocated but not in use.
+     */
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+    /**
+     * Number of buffers allocated by this pool.
+     */
+    private int allocated;
+
+    private long borrowCount;
+    private long waitCount;
+    private long waitNanos;
+
+    /**
+     * @param capacity max size of all the buffers in bytes (at least one buffer is allocated)
+     * @param bufferSize size of one buffer in bytes
+     * @param direct true if the buffers should be allocated outside the heap, otherwise false
+     */
+    public PartBufferPool(long capacity, int bufferSize, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxBuffers = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity / bufferSize));
+    }
+
+    /**
+     * Provides the pool of the current JVM. A new pool is created if there is no pool yet or if the settings have been changed.
+     * @param capacity max size of all the buffers in bytes
+     * @param bufferSize size of one buffer in bytes
+     * @param direct true if the buffers should be allocated outside the heap, otherwise false
+     */
+    public static synchronized PartBufferPool get(long capacity, int bufferSize, boolean direct) {
+        PartBufferPool pool = new PartBufferPool(capacity, bufferSize, direct);
+
+        if (instance == null
+                || instance.bufferSize != pool.bufferSize
+                || instance.direct != pool.direct
+                || instance.maxBuffers != pool.maxBuffers) {
+            instance = pool;
+        }
+
+        return instance;
+    }
+
+    /**
+     * Provides a cleared buffer from the pool. Blocks until a buffer is available if all the buffers are in use.
+     */
+    public synchronized ByteBuffer borrow() throws InterruptedException {
+        borrowCount++;
+
+        if (free.isEmpty() && allocated >= maxBuffers) {
+            long start = System.nanoTime();
+            waitCount++;
+            try {
+                while (free.isEmpty()) {
+                    wait();
+                }
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        if (!free.isEmpty()) {
+            return free.pop();
+        }
+
+        return allocate();
+    }
+
+    /**
+     * Provides a given number of cleared buffers from the pool. The buffers are handed out all at once, so callers which need more than
+     * one buffer don't block each other while holding a part of them. Blocks until enough buffers are available. If more buffers are
+     * requested than the pool can hold, then the caller waits until all the buffers have been returned and the missing buffers are
+     * allocated temporarily (they are dropped when they are returned).
+     */
+    public synchronized List<ByteBuffer> borrow(int count) throws InterruptedException {
+        borrowCount++;
+
+        int needed = Math.min(count, maxBuffers);
+        if (available() < needed) {
+            long start = System.nanoTime();
+            waitCount++;
+            try {
+                while (available() < needed) {
+                    wait();
+                }
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        List<ByteBuffer> buffers = new ArrayList<>(count);
+        while (buffers.size() < count) {
+            buffers.add(free.isEmpty() ? allocate() : free.pop());
+        }
+        return buffers;
+    }
+
+    /**
+     * @return number of buffers which can be borrowed without waiting
+     */
+    private int available() {
+        return free.size() + Math.max(0, maxBuffers - allocated);
+    }
+
+    private ByteBuffer allocate() {
+        allocated++;
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a given buffer to the pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (allocated > maxBuffers) {
+            // temporary buffer (see borrow(int))
+            allocated--;
+        } else {
+            buffer.clear();
+            free.push(buffer);
+        }
+        notifyAll();
+
+        if (LOGGER.isLoggable(Level.FINE) && allocated == free.size()) {
+            LOGGER.fine(toString());
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return how often a buffer has been requested
+     */
+    public synchronized long getBorrowCount() {
+        return borrowCount;
+    }
+
+    /**
+     * @return how often a caller had to wait for a buffer (because all the buffers were in use)
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * @return total time in nanoseconds the callers had to wait for a buffer
+     */
+    public synchronized long getWaitNanos() {
+        return waitNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PartBufferPool[buffers=%d/%d, size=%d, direct=%s, borrows=%d, waits=%d, waitTime=%.2f secs]",
+                allocated, maxBuffers, bufferSize, direct, borrowCount, waitCount, waitNanos / 1000000000D);
+    }
+}
@@ -0,0 +1,91 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+/**
+ * Provides the S3 clients of the current JVM. An S3 client holds a connection pool, so it is created only once per endpoint and region
+ * and then shared by all the repositories (e.g. all the cache steps which are executed on an agent), so that the connections are reused
+ * instead of being opened again for each step. If the credentials or the {@link ClientSettings} of an endpoint change (e.g. the
+ * configuration has been changed), then the client is replaced and the previous one is shut down after {@link #SHUTDOWN_DELAY}, so that
+ * the requests which are still running can finish. The credentials are not kept in plain text, only a hash of them.
+ */
+public final class S3ClientRegistry {
+
+    /**
+     * Time in minutes after which a replaced client is shut down.
+     */
+    static final long SHUTDOWN_DELAY = 60;
+
+    private static final Map<List<String>, Client> CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * Shuts down the replaced clients.
+     */
+    private static final ScheduledExecutorService SHUTDOWN = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "S3ClientRegistry-shutdown");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private S3ClientRegistry() {
+    }
+
+    /**
+     * Provides the S3 client for the given parameters (created if it not exists yet or if the credentials or the settings have been
+     * changed).
+     */
+    public static AmazonS3 get(String username, String password, String endpoint, String region, ClientSettings settings) {
+        String credentials = DigestUtils.sha256Hex(username + '\0' + password);
+        Client[] replaced = new Client[1];
+
+        Client client = CLIENTS.compute(Arrays.asList(endpoint, region), (k, current) -> {
+            if (current != null && current.credentials.equals(credentials) && current.settings.equals(settings)) {
+                return current;
+            }
+            replaced[0] = current;
+            return new Client(credentials, settings, AmazonS3ClientBuilder
+                    .standard()
+                    .withPathStyleAccessEnabled(true)
+                    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(username, password)))
+                    .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region))
+                    .withClientConfiguration(settings.toClientConfiguration())
+                    .build());
+        });
+
+        if (replaced[0] != null) {
+            SHUTDOWN.schedule(replaced[0].s3::shutdown, SHUTDOWN_DELAY, TimeUnit.MINUTES);
+        }
+
+        return client.s3;
+    }
+
+    /**
+     * S3 client along with the hash of the credentials and the settings it has been created with.
+     */
+    private static final class Client {
+        private final String credentials;
+        private final ClientSettings settings;
+        private final AmazonS3 s3;
+
+        private Client(String credentials, ClientSettings settings, AmazonS3 s3) {
+            this.credentials = credentials;
+            this.settings = settings;
+            this.s3 = s3;
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * {@link InputStream} which allows reading an object from S3 directly. The object is split into segments of a fixed size, which are
+ * downloaded in parallel via ranged GET requests. The segments are stored in a ring of buffers (one buffer per download in flight) and
+ * provided in order. As soon as a segment has been read completely, the download of the next segment into the same buffer starts.
+ */
+public class S3InputStream extends InputStream {
+
+    /**
+     * Segment size (default: 8 MB).
+     */
+    public static final int SEGMENT_SIZE = 1024 * 1024 * 8;
+
+    /**
+     * Max number of segments which are downloaded in parallel (default: 4).
+     */
+    public static final int PARALLELISM = 4;
+
+    /**
+     * Max number of attempts to download a segment.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final long contentLength;
+    private final int segmentSize;
+    private final int segments;
+
+    /**
+     * Ring of buffers, the segment n is stored in buffer n % buffers.length.
+     */
+    private final byte[][] buffers;
+
+    /**
+     * Downloads in flight, the download of segment n is stored at n % downloads.length (provides the size of the segment).
+     */
+    private final Future<Integer>[] downloads;
+
+    private final ExecutorService executor;
+
+    /**
+     * Index of the segment which is read currently.
+     */
+    private int segment = -1;
+
+    /**
+     * Index of the next segment which gets downloaded.
+     */
+    private int nextSegment;
+
+    private int pos;
+    private int limit;
+    private boolean open = true;
+
+    /**
+     * Creates a new input stream to read an object from S3.
+     * @param s3 the AmazonS3 client
+     * @param bucket name of the bucket
+     * @param key key of the object within the bucket
+     * @param eTag ETag of the object (makes sure that all segments belong to the same object), or null
+     * @param contentLength size of the object in bytes
+     * @param segmentSize size of one segment in bytes
+     * @param parallelism max number of segments which are downloaded in parallel
+     */
+    @SuppressWarnings("unchecked")
+    public S3InputStream(AmazonS3 s3, String bucket, String key, String eTag, long contentLength, int segmentSize, int parallelism) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size <= 0");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism <= 0");
+        }
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.eTag = eTag;
+        this.contentLength = contentLength;
+        this.segmentSize = segmentSize;
+        this.segments = (int) ((contentLength + segmentSize - 1) / segmentSize);
+
+        int ringSize = Math.max(1, Math.min(parallelism, segments));
+        this.buffers = new byte[ringSize][];
+        this.downloads = new Future[ringSize];
+        this.executor = Executors.newFixedThreadPool(ringSize, r -> {
+            Thread t = new Thread(r, "S3InputStream-" + key);
+            t.setDaemon(true);
+            return t;
+        });
+
+        // fill the ring
+        while (nextSegment < segments && nextSegment < ringSize) {
+            scheduleNextSegment();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return buffers[segment % buffers.length][pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffers[segment % buffers.length], pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    /**
+     * Makes sure that the current segment has remaining data.
+     * @return true if there is data available, false if the end of the object is reached
+     */
+    private boolean ensureData() throws IOException {
+        if (!open) {
+            throw new IOException("Stream closed");
+        }
+
+        while (pos >= limit) {
+            // the buffer of the current segment is free again -> reuse it for the next segment
+            if (segment >= 0 && nextSegment < segments) {
+                scheduleNextSegment();
+            }
+
+            if (segment + 1 >= segments) {
+                return false;
+            }
+
+            segment++;
+            limit = await(downloads[segment % downloads.length]);
+            pos = 0;
+        }
+        return true;
+    }
+
+    private void scheduleNextSegment() {
+        int index = nextSegment++;
+        int slot = index % buffers.length;
+        long start = (long) index * segmentSize;
+        int size = (int) Math.min(segmentSize, contentLength - start);
+
+        if (buffers[slot] == null) {
+            buffers[slot] = new byte[Math.min(segmentSize, (int) Math.min(Integer.MAX_VALUE, contentLength))];
+        }
+
+        byte[] buffer = buffers[slot];
+        downloads[slot] = executor.submit(() -> download(buffer, start, size));
+    }
+
+    /**
+     * Downloads a segment into a given buffer (retries if the download fails).
+     * @return size of the segment
+     */
+    private int download(byte[] buffer, long start, int size) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadSecure(buffer, start, size);
+                return size;
+            } catch (IOException | SdkClientException e) {
+                if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void downloadSecure(byte[] buffer, long start, int size) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, start + size - 1);
+        if (eTag != null) {
+            request.withMatchingETagConstraint(eTag);
+        }
+
+        try (S3Object object = s3.getObject(request)) {
+            if (object == null) {
+                throw new IOException(String.format("%s has been modified while reading", key));
+            }
+
+            try (InputStream in = object.getObjectContent()) {
+                int off = 0;
+                while (off < size) {
+                    int n = in.read(buffer, off, size - off);
+                    if (n < 0) {
+                        throw new EOFException(String.format("Unexpected end of segment (%s, offset %d)", key, start + off));
+                    }
+                    off += n;
+                }
+            }
+        }
+    }
+
+    private static int await(Future<Integer> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a segment");
+        } catch (ExecutionException e) {
+            throw new IOException("Download of a segment has been failed!", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        executor.shutdownNow();
+    }
+}
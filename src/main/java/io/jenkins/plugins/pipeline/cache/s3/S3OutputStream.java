@@ -1,14 +1,32 @@
 package io.jenkins.plugins.pipeline.cache.s3;
 
+import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.CHECKSUM;
 import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.CREATION;
 import static io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository.LAST_ACCESS;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
@@ -16,19 +34,35 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.UploadPartRequest;
-import com.amazonaws.services.s3.model.UploadPartResult;
 
 /**
  * {@link OutputStream} which allows writing an object to S3 directly. If the content size is not greater than 10 MB then it is uploaded at
- * once, otherwise in chunks (default: 10 MB).
+ * once, otherwise in chunks (default: 10 MB). The MD5 checksum of each chunk is calculated on the fly and sent along with the chunk (see
+ * Content-MD5), so that S3 can verify the integrity of the uploaded data without reading the content twice. The MD5 checksum of the whole
+ * object is calculated along the way (each part is added before it is handed over), see {@link #getChecksum()}.<br><br>
+ * In case of a multipart upload, the chunks are uploaded in parallel. Each filled buffer is handed over to a small pool of upload threads
+ * and the writer continues with a new buffer. The number of chunks in flight is limited (see parallelism), if the limit is reached then
+ * the writer is blocked until one of the uploads has been finished. This keeps the memory usage bounded.<br><br>
+ * The buffers are borrowed from a {@link PartBufferPool} and returned as soon as the upload of the part has been finished. If the upload
+ * of a part or the completion fails, then the multipart upload is aborted right away, so that no parts are left in the bucket.
  */
-public class S3OutputStream extends OutputStream {
+public class S3OutputStream extends CacheItemOutputStream {
 
     /**
      * Buffer size (default: 10 MB, minimum: 5 MB).
      */
     public static final int BUFFER_SIZE = 1024 * 1024 * 10;
 
+    /**
+     * Max number of chunks which are uploaded in parallel (default: 4).
+     */
+    public static final int PARALLELISM = 4;
+
+    /**
+     * Max time in seconds to wait for the running part uploads before a multipart upload is aborted.
+     */
+    private static final long ABORT_TIMEOUT = 60;
+
     /**
      * S3 client which is used to upload the content.
      */
@@ -45,67 +79,97 @@ public class S3OutputStream extends OutputStream {
     private final String key;
 
     /**
-     * MD5 checksum of the object.
-     * @see ObjectMetadata#setContentMD5(String)
+     * Additional user metadata which is assigned to the object.
+     */
+    private final Map<String, String> userMetadata;
+
+    /**
+     * Max number of chunks which are uploaded in parallel.
+     */
+    private final int parallelism;
+
+    /**
+     * Limits the number of chunks in flight (one permit per chunk).
+     */
+    private final Semaphore window;
+
+    /**
+     * Provides the buffers where data is stored.
      */
-    private final String md5;
+    private final PartBufferPool pool;
 
     /**
-     * The internal buffer where data is stored.
+     * The internal buffer where data is stored (null if no buffer has been borrowed from the pool yet). The position of the buffer is
+     * the number of valid bytes in the buffer.
      */
-    protected byte[] buf;
+    protected ByteBuffer buf;
 
     /**
-     * The number of valid bytes in the buffer. This value is always
-     * in the range <tt>0</tt> through <tt>buf.length</tt>; elements
-     * <tt>buf[0]</tt> through <tt>buf[count-1]</tt> contain valid
-     * byte data.
+     * Total time in nanoseconds the writer had to wait for a buffer.
      */
-    protected int count;
+    private long bufferWaitNanos;
 
     /**
-     * Holds the part IDs in case of a multipart upload.
+     * Holds the part IDs in case of a multipart upload (in the same order as the parts have been written).
      */
-    protected List<PartETag> partIDs = new ArrayList<>();
+    protected List<Future<PartETag>> partIDs = new ArrayList<>();
 
     /**
      * true indicates that the stream is still open, otherwise false.
      */
     protected boolean open = true;
 
+    /**
+     * true if the multipart upload has been aborted (the parts which have not been started yet are skipped then).
+     */
+    private volatile boolean aborted;
+
     /**
      * Holds the result of the initial upload in case of a multipart upload.
      */
     private InitiateMultipartUploadResult multipartUpload;
 
     /**
-     * Creates a new buffered output stream to write data to S3.
-     * @param s3 the AmazonS3 client
-     * @param bucket name of the bucket
-     * @param key key of the object within the bucket
-     * @param md5 MD5 checksum of the object (128bit, base64 encoded)
+     * Executes the part uploads in case of a multipart upload.
      */
-    public S3OutputStream(AmazonS3 s3, String bucket, String key, String md5) {
-        this(s3, bucket, key, md5, BUFFER_SIZE);
-    }
+    private ExecutorService executor;
+
+    /**
+     * ETag of the object (null until the stream has been closed successfully).
+     */
+    private String eTag;
+
+    /**
+     * MD5 checksum of the content written so far (each part is added before it is uploaded).
+     */
+    private final MessageDigest digest = DigestUtils.getMd5Digest();
+
+    /**
+     * MD5 checksum of the object, hex encoded (null until the stream has been closed successfully).
+     */
+    private String checksum;
 
     /**
      * Creates a new buffered output stream to write data to S3.
      * @param s3 the AmazonS3 client
      * @param bucket name of the bucket
      * @param key key of the object within the bucket
-     * @param md5 MD5 checksum of the object (128bit, base64 encoded)
-     * @param size size of the buffer
+     * @param userMetadata additional user metadata which is assigned to the object
+     * @param pool provides the buffers (the buffer size is the size of the chunks)
+     * @param parallelism max number of chunks which are uploaded in parallel
      */
-    public S3OutputStream(AmazonS3 s3, String bucket, String key, String md5, int size) {
-        if (size <= 0) {
-            throw new IllegalArgumentException("Buffer size <= 0");
+    public S3OutputStream(AmazonS3 s3, String bucket, String key, Map<String, String> userMetadata, PartBufferPool pool,
+                          int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism <= 0");
         }
         this.s3 = s3;
         this.bucket = bucket;
         this.key = key;
-        this.md5 = md5;
-        this.buf = new byte[size];
+        this.userMetadata = userMetadata;
+        this.pool = pool;
+        this.parallelism = parallelism;
+        this.window = new Semaphore(parallelism);
     }
 
     /**
@@ -113,11 +177,14 @@ public class S3OutputStream extends OutputStream {
      *
      * @param b the byte to be written.
      */
-    public synchronized void write(int b) {
-        if (count >= buf.length) {
+    public synchronized void write(int b) throws IOException {
+        ensureOpen();
+        ensureBuffer();
+        if (!buf.hasRemaining()) {
             flushAndReset();
+            ensureBuffer();
         }
-        buf[count++] = (byte)b;
+        buf.put((byte) b);
     }
 
     /**
@@ -127,21 +194,64 @@ public class S3OutputStream extends OutputStream {
      * @param off the start offset in the data.
      * @param len the number of bytes to write.
      */
-    public synchronized void write(byte[] b, int off, int len) {
-        while (count + len > buf.length) {
-            int size = buf.length - count;
-            System.arraycopy(b, off, buf, count, size);
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        ensureBuffer();
+        while (len > buf.remaining()) {
+            int size = buf.remaining();
+            buf.put(b, off, size);
             off += size;
             len -= size;
-            count += size;
             flushAndReset();
+            ensureBuffer();
+        }
+        buf.put(b, off, len);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Borrows a buffer from the pool if there is no buffer yet.
+     */
+    private void ensureBuffer() throws IOException {
+        if (buf != null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            buf = pool.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        } finally {
+            bufferWaitNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns the current buffer to the pool (if any).
+     */
+    private void releaseBuffer() {
+        if (buf != null) {
+            pool.release(buf);
+            buf = null;
         }
-        System.arraycopy(b, off, buf, count, len);
-        count += len;
     }
 
-    private void flushAndReset() {
-        if (count <= 0) {
+    /**
+     * @return the number of valid bytes in the current buffer
+     */
+    private int count() {
+        return buf == null ? 0 : buf.position();
+    }
+
+    private void flushAndReset() throws IOException {
+        if (count() <= 0) {
             return;
         }
 
@@ -149,54 +259,241 @@ public class S3OutputStream extends OutputStream {
             // initialize partial upload
             multipartUpload = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)
                     .withObjectMetadata(createMetadata(true)));
+            executor = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread t = new Thread(r, "S3OutputStream-" + key);
+                t.setDaemon(true);
+                return t;
+            });
         }
 
-        // upload part
-        UploadPartResult uploadResult = s3.uploadPart(new UploadPartRequest()
-                .withBucketName(bucket)
-                .withKey(key)
-                .withUploadId(multipartUpload.getUploadId())
-                .withInputStream(new ByteArrayInputStream(buf, 0, count))
-                .withPartNumber(partIDs.size() + 1)
-                .withPartSize(count));
+        // wait until a slot is available (back-pressure)
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part upload");
+        }
 
-        // store part ID (required for the final step)
-        partIDs.add(uploadResult.getPartETag());
+        // fail fast if one of the previous parts could not be uploaded (the upload is aborted right away, so that no parts are left)
+        for (Future<PartETag> part : partIDs) {
+            if (part.isDone()) {
+                try {
+                    getPartETag(part);
+                } catch (IOException e) {
+                    window.release();
+                    abortMultipartUpload(e);
+                    throw e;
+                }
+            }
+        }
 
-        // reset count
-        count = 0;
+        // upload part in the background and return the buffer to the pool afterwards
+        ByteBuffer data = buf;
+        data.flip();
+        digest.update(data.duplicate());
+        int partNumber = partIDs.size() + 1;
+        partIDs.add(executor.submit(() -> {
+            try {
+                if (aborted) {
+                    throw new IOException("Upload has been aborted");
+                }
+                return s3.uploadPart(new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(multipartUpload.getUploadId())
+                        .withInputStream(new ByteBufferInputStream(data))
+                        .withPartNumber(partNumber)
+                        .withPartSize(data.remaining())
+                        .withMD5Digest(md5(data))
+                ).getPartETag();
+            } finally {
+                pool.release(data);
+                window.release();
+            }
+        }));
+
+        // continue with a new buffer (borrowed with the next write)
+        buf = null;
+    }
+
+    /**
+     * Waits until the upload of a given part is finished and provides the part ID.
+     */
+    private PartETag getPartETag(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part upload");
+        } catch (ExecutionException e) {
+            throw new IOException("Upload of a part has been failed!", e.getCause());
+        }
+    }
+
+    @Override
+    public synchronized long getBufferWaitNanos() {
+        return bufferWaitNanos;
+    }
+
+    @Override
+    public synchronized String getETag() {
+        return eTag;
+    }
+
+    @Override
+    public synchronized String getChecksum() {
+        return checksum;
     }
 
+    /**
+     * Discards the content written so far. If a multipart upload has been started already, then it gets aborted, so that the uploaded
+     * parts are removed and no (incomplete) object is created.
+     */
     @Override
-    public void close() {
+    public synchronized void abort() {
+        if (multipartUpload == null) {
+            open = false;
+            releaseBuffer();
+            return;
+        }
+
+        abortMultipartUpload(null);
+    }
+
+    /**
+     * Aborts the multipart upload (because of a given failure) and closes the stream, nothing happens if the stream is closed already.
+     * The running part uploads are stopped first, a part which is stored after the abort would remain in the bucket. If the upload cannot
+     * be aborted, then the exception is attached to the failure (the parts are removed by the cleanup later on, see
+     * {@link CacheItemRepository#findIncompleteUploads}).
+     * @param failure the failure, or null to throw the exception
+     */
+    private void abortMultipartUpload(Exception failure) {
         if (!open) {
             return;
         }
         open = false;
+        releaseBuffer();
+
+        // the thread may have been interrupted (e.g. the build has been aborted), the upload is aborted anyway
+        boolean interrupted = Thread.interrupted();
+        try {
+            // the parts which have not been started yet are skipped right here, so that they return their buffers to the pool
+            aborted = true;
+            executor.shutdownNow().forEach(Runnable::run);
+            interrupted |= !awaitTermination(executor);
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, multipartUpload.getUploadId()));
+        } catch (RuntimeException e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until the (interrupted) tasks of a given executor are finished, but not longer than {@link #ABORT_TIMEOUT}.
+     * @return false if the current thread has been interrupted while waiting, otherwise true
+     */
+    private static boolean awaitTermination(ExecutorService executor) {
+        try {
+            executor.awaitTermination(ABORT_TIMEOUT, TimeUnit.SECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
 
         // complete partial upload
         if (multipartUpload != null) {
-            flushAndReset();
-            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, multipartUpload.getUploadId(), partIDs));
+            try {
+                flushAndReset();
+
+                List<PartETag> partETags = new ArrayList<>(partIDs.size());
+                for (Future<PartETag> part : partIDs) {
+                    partETags.add(getPartETag(part));
+                }
+
+                eTag = s3.completeMultipartUpload(
+                        new CompleteMultipartUploadRequest(bucket, key, multipartUpload.getUploadId(), partETags)
+                ).getETag();
+                checksum = Hex.encodeHexString(digest.digest());
+            } catch (IOException | RuntimeException e) {
+                // make sure that the uploaded parts don't remain in the bucket (unless a failed part has aborted the upload already)
+                abortMultipartUpload(e);
+                throw e;
+            } finally {
+                releaseBuffer();
+                executor.shutdownNow();
+            }
         }
 
         // or upload content at once (content <= buffer size)
         else {
-            s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buf, 0, count), createMetadata(false)));
+            try {
+                ObjectMetadata metadata = createMetadata(false);
+                InputStream content = buf == null ? new ByteArrayInputStream(new byte[0]) : new ByteBufferInputStream(flip(buf));
+                eTag = s3.putObject(new PutObjectRequest(bucket, key, content, metadata)).getETag();
+                checksum = metadata.getUserMetaDataOf(CHECKSUM);
+            } finally {
+                releaseBuffer();
+            }
         }
+
+        // the stream is closed only if the object has been stored, so that a failed upload can still be aborted (see abort())
+        open = false;
     }
 
     private ObjectMetadata createMetadata(boolean multipart) {
         ObjectMetadata metadata = new ObjectMetadata();
-        metadata.setContentMD5(md5);
+        userMetadata.forEach(metadata::addUserMetadata);
         metadata.addUserMetadata(CREATION, Long.toString(System.currentTimeMillis()));
         metadata.addUserMetadata(LAST_ACCESS, Long.toString(System.currentTimeMillis()));
 
+        // the content is known in advance only if it is uploaded at once (the whole object is in the buffer then, so the checksum is
+        // calculated only once), otherwise the parts carry their own checksum and the checksum of the object is known on completion only
+        // (see getChecksum())
         if (!multipart) {
-            metadata.setContentLength(count);
+            byte[] md5 = digest(buf == null ? ByteBuffer.allocate(0) : flip(buf.duplicate()));
+            metadata.setContentLength(count());
+            metadata.setContentMD5(Base64.getEncoder().encodeToString(md5));
+            metadata.addUserMetadata(CHECKSUM, Hex.encodeHexString(md5));
         }
 
         return metadata;
     }
 
+    /**
+     * Flips a given buffer, so that the valid bytes can be read.
+     */
+    private static ByteBuffer flip(ByteBuffer buffer) {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Calculates the MD5 checksum (128bit, base64 encoded) of the remaining bytes of a given buffer (without changing its position).
+     */
+    private static String md5(ByteBuffer buffer) {
+        return Base64.getEncoder().encodeToString(digest(buffer));
+    }
+
+    /**
+     * Calculates the MD5 checksum (128bit) of the remaining bytes of a given buffer (without changing its position).
+     */
+    private static byte[] digest(ByteBuffer buffer) {
+        MessageDigest md5 = DigestUtils.getMd5Digest();
+        md5.update(buffer.duplicate());
+        return md5.digest();
+    }
+
 }
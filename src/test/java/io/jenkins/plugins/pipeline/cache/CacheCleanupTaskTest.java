@@ -1,12 +1,17 @@
 package io.jenkins.plugins.pipeline.cache;
 
+import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.IntStream.range;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
@@ -20,6 +25,11 @@ import org.jvnet.hudson.test.JenkinsRule;
 
 import hudson.util.Secret;
 import hudson.util.StreamTaskListener;
+import io.jenkins.plugins.pipeline.cache.eviction.LruEvictionPolicy;
+import io.jenkins.plugins.pipeline.cache.s3.CacheItem;
+import io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository;
+import io.jenkins.plugins.pipeline.cache.s3.PartBufferPool;
+import io.jenkins.plugins.pipeline.cache.s3.S3OutputStream;
 
 /**
  * Checks that the cache eviction works as expected. Each test starts with an empty bucket.
@@ -53,6 +63,9 @@ public class CacheCleanupTaskTest {
         config.setBucket(bucket);
         config.setRegion("us-west-1");
         config.setEndpoint(minio.getExternalAddress());
+        config.setEvictionPolicy(null);
+        config.setMaxAge(0);
+        config.setQuotas(null);
     }
 
     @Test
@@ -101,13 +114,230 @@ public class CacheCleanupTaskTest {
         assertThat(range(0, 10).filter(i -> mc.containsKey(bucket, keys.get(i))).toArray(), is(new int[]{6, 7, 8, 9}));
     }
 
-    private String createCacheItem(int sizeInMB) {
+    /**
+     * Checks that the cache items which have been restored least often are removed first (LFU).
+     */
+    @Test
+    public void testLfuEvictionPolicy() {
+        // GIVEN threshold: 2MB, policy: lfu
+        CacheConfiguration.get().setThreshold(2);
+        CacheConfiguration.get().setEvictionPolicy("lfu");
+
+        // GIVEN 3 cache items (each ~1.1MB), a is restored twice, then b once (so a is not the most recently used one)
+        List<String> keys = range(0, 3)
+                .mapToObj(i -> createCacheItem(1))
+                .collect(toList());
+        restoreCacheItem(keys.get(0));
+        restoreCacheItem(keys.get(0));
+        restoreCacheItem(keys.get(1));
+
+        // WHEN
+        new CacheCleanupTask().execute(StreamTaskListener.fromStdout());
+
+        // THEN expect the items without and with less restores are removed
+        assertThat(range(0, 3).filter(i -> mc.containsKey(bucket, keys.get(i))).toArray(), is(new int[]{0}));
+    }
+
+    /**
+     * Checks that large cache items are removed before small ones with the same number of restores (GDSF).
+     */
+    @Test
+    public void testSizeAwareEvictionPolicyBySize() {
+        // GIVEN threshold: 3MB, policy: gdsf
+        CacheConfiguration.get().setThreshold(3);
+        CacheConfiguration.get().setEvictionPolicy("gdsf");
+
+        // GIVEN 2 small cache items (each ~1.1MB) and a newer large one (~3.3MB)
+        List<String> small = range(0, 2)
+                .mapToObj(i -> createCacheItem(1))
+                .collect(toList());
+        String large = createCacheItem(3);
+
+        // WHEN
+        new CacheCleanupTask().execute(StreamTaskListener.fromStdout());
+
+        // THEN expect only the large one is removed
+        assertThat(mc.containsKey(bucket, large), is(false));
+        assertThat(range(0, 2).filter(i -> mc.containsKey(bucket, small.get(i))).toArray(), is(new int[]{0, 1}));
+    }
+
+    /**
+     * Checks that a cache item which is restored often is kept, even if it is larger than the others (GDSF).
+     */
+    @Test
+    public void testSizeAwareEvictionPolicyByHits() {
+        // GIVEN threshold: 3MB, policy: gdsf
+        CacheConfiguration.get().setThreshold(3);
+        CacheConfiguration.get().setEvictionPolicy("gdsf");
+
+        // GIVEN a cache item (~2.2MB) which is restored 3 times and 2 newer small ones (each ~1.1MB) which are never restored
+        String popular = createCacheItem(2);
+        range(0, 3).forEach(i -> restoreCacheItem(popular));
+        List<String> small = range(0, 2)
+                .mapToObj(i -> createCacheItem(1))
+                .collect(toList());
+
+        // WHEN
+        new CacheCleanupTask().execute(StreamTaskListener.fromStdout());
+
+        // THEN expect the small ones are removed
+        assertThat(mc.containsKey(bucket, popular), is(true));
+        assertThat(range(0, 2).filter(i -> mc.containsKey(bucket, small.get(i))).toArray(), is(new int[0]));
+    }
+
+    /**
+     * Checks that cache items which have not been accessed within the max age are removed, even if the threshold is not reached.
+     */
+    @Test
+    public void testMaxAge() throws Exception {
+        // GIVEN an old and a new cache item
+        String old = createCacheItem(1);
+        Thread.sleep(3000);
+        String young = createCacheItem(1);
+        CacheItemRepository repo = new CacheItemRepository(minio.accessKey(), minio.secretKey(), "us-west-1",
+                minio.getExternalAddress(), bucket);
+        CatalogAccessBuffer.get().flush(repo);
+
+        // WHEN max age: 2s (the configuration is in days)
+        new CacheCleanupTask().cleanup(repo, repo.rebuildCatalog(repo.readCatalog()), new LruEvictionPolicy(), 0, 2000,
+                Collections.emptyList());
+
+        // THEN
+        assertThat(mc.containsKey(bucket, old), is(false));
+        assertThat(mc.containsKey(bucket, young), is(true));
+    }
+
+    /**
+     * Checks that a prefix which exceeds its quota doesn't evict the cache items of other prefixes.
+     */
+    @Test
+    public void testPrefixQuota() {
+        // GIVEN threshold: 100MB, quota of prefix 'big-': 3MB
+        CacheConfiguration.get().setThreshold(100);
+        CacheConfiguration.get().setQuotas("big-=3");
+
+        // GIVEN 3 cache items of prefix 'big-' and 1 other cache item (each ~1.1MB)
+        String small = createCacheItem(1, "small-");
+        List<String> big = range(0, 3)
+                .mapToObj(i -> createCacheItem(1, "big-"))
+                .collect(toList());
+
+        // WHEN
+        new CacheCleanupTask().execute(StreamTaskListener.fromStdout());
+
+        // THEN expect only the oldest item of the prefix is removed
+        assertThat(mc.containsKey(bucket, small), is(true));
+        assertThat(range(0, 3).filter(i -> mc.containsKey(bucket, big.get(i))).toArray(), is(new int[]{1, 2}));
+    }
+
+    /**
+     * Checks that a prefix within its quota keeps its cache items and doesn't stop the rest of the cleanup.
+     */
+    @Test
+    public void testPrefixQuotaNotExceeded() {
+        // GIVEN threshold: 2MB, quota of prefix 'big-': 5MB
+        CacheConfiguration.get().setThreshold(2);
+        CacheConfiguration.get().setQuotas("big-=5");
+
+        // GIVEN 1 other cache item and 2 cache items of prefix 'big-' (each ~1.1MB)
+        String small = createCacheItem(1, "small-");
+        List<String> big = range(0, 2)
+                .mapToObj(i -> createCacheItem(1, "big-"))
+                .collect(toList());
+
+        // WHEN
+        new CacheCleanupTask().execute(StreamTaskListener.fromStdout());
+
+        // THEN expect the threshold is still applied (the oldest items are removed)
+        assertThat(mc.containsKey(bucket, small), is(false));
+        assertThat(mc.containsKey(bucket, big.get(0)), is(false));
+        assertThat(mc.containsKey(bucket, big.get(1)), is(true));
+    }
+
+    /**
+     * Checks that multipart uploads which have never been completed are aborted.
+     */
+    @Test
+    public void testAbortIncompleteUploads() throws Exception {
+        // GIVEN an upload which has never been completed (e.g. the agent died during a backup)
+        CacheItemRepository repo = new CacheItemRepository(minio.accessKey(), minio.secretKey(), "us-west-1",
+                minio.getExternalAddress(), bucket);
+        PartBufferPool pool = new PartBufferPool(S3OutputStream.BUFFER_SIZE * 2L, S3OutputStream.BUFFER_SIZE, false);
+        S3OutputStream out = repo.createObjectOutputStream("incomplete", new HashMap<>(), pool, 1);
+        out.write(new byte[S3OutputStream.BUFFER_SIZE + 1]);
+        Thread.sleep(1000);
+        assertThat(repo.findIncompleteUploads(System.currentTimeMillis()).count(), is(1L));
+
+        // WHEN
+        CacheCleanupTask.abortIncompleteUploads(repo, 0);
+
+        // THEN
+        assertThat(repo.findIncompleteUploads(System.currentTimeMillis()).count(), is(0L));
+        assertThat(mc.containsKey(bucket, "incomplete"), is(false));
+    }
+
+    @Test
+    public void testSelectCandidatesNothingToRemove() {
+        // GIVEN
+        List<CacheItem> items = asList(new CacheItem("a", 10, 1), new CacheItem("b", 20, 2));
+
+        // WHEN no bytes have to be released THEN
+        assertThat(selectCandidates(items, Collections.emptySet(), 0), is(Collections.emptyList()));
+        assertThat(selectCandidates(items, Collections.emptySet(), -5), is(Collections.emptyList()));
+    }
+
+    @Test
+    public void testSelectCandidatesAtBoundary() {
+        // GIVEN
+        List<CacheItem> items = asList(new CacheItem("c", 30, 3), new CacheItem("a", 10, 1), new CacheItem("b", 20, 2));
+
+        // WHEN the bytes are exactly the size of the first items THEN expect only those
+        assertThat(selectCandidates(items, Collections.emptySet(), 10), is(asList("a")));
+        assertThat(selectCandidates(items, Collections.emptySet(), 30), is(asList("a", "b")));
+
+        // WHEN one byte more is needed THEN expect the next item as well
+        assertThat(selectCandidates(items, Collections.emptySet(), 31), is(asList("a", "b", "c")));
+
+        // WHEN more bytes are needed than available THEN expect all the items
+        assertThat(selectCandidates(items, Collections.emptySet(), 100), is(asList("a", "b", "c")));
+
+        // WHEN an item is excluded (e.g. marked for deletion already) THEN
+        assertThat(selectCandidates(items, Collections.singleton("a"), 20), is(asList("b")));
+    }
+
+    private static List<String> selectCandidates(List<CacheItem> items, Set<String> excluded, long bytes) {
+        return CacheCleanupTask.selectCandidates(items.stream(), excluded, bytes, Comparator.comparingLong(CacheItem::getLastAccess))
+                .stream()
+                .map(CacheItem::getKey)
+                .collect(toList());
+    }
+
+    private String createCacheItem(int sizeInMB, String prefix) {
+        try {
+            return createCacheItemSecure(sizeInMB, prefix + UUID.randomUUID());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void restoreCacheItem(String key) {
         try {
-            return createCacheItemSecure(sizeInMB, UUID.randomUUID().toString());
+            WorkflowJob job = j.createProject(WorkflowJob.class);
+            job.setDefinition(new CpsFlowDefinition("node {\n" +
+                    "  cache(path: '.', key: '" + key + "'){}\n" +
+                    "}", true));
+
+            WorkflowRun result = job.scheduleBuild2(0).waitForStart();
+            j.waitForCompletion(result);
+            j.assertBuildStatusSuccess(result);
+            j.assertLogContains("Cache restored successfully (" + key + ")", result);
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
+    }
 
+    private String createCacheItem(int sizeInMB) {
+        return createCacheItem(sizeInMB, "");
     }
 
     private String createCacheItemSecure(int sizeInMB, String key) throws Exception {
@@ -1,8 +1,15 @@
 package io.jenkins.plugins.pipeline.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -13,8 +20,13 @@ import org.junit.Test;
 import org.jvnet.hudson.test.BuildWatcher;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import com.amazonaws.services.s3.model.S3Object;
+
 import hudson.model.Result;
 import hudson.util.Secret;
+import io.jenkins.plugins.pipeline.cache.s3.CacheItemRepository;
+import io.jenkins.plugins.pipeline.cache.s3.Catalog;
+import io.jenkins.plugins.pipeline.cache.s3.S3OutputStream;
 
 /**
  * Checks that the cache step works as expected in pipelines. Each test starts with an empty bucket and the cache is also registered to
@@ -55,6 +67,10 @@ public class CacheStepTest {
         config.setRegion("us-west-1");
         config.setEndpoint(minio.getExternalAddress());
         config.setThreshold(0);
+        config.setLocalCacheDirectory(null);
+        config.setDeduplication(false);
+        config.setIncrementalBackups(false);
+        config.setMaxItemSize(0);
     }
 
     @Test
@@ -85,6 +101,41 @@ public class CacheStepTest {
         j.assertLogContains("Cache not saved (1234 already exists)", b2);
     }
 
+    @Test
+    public void testRestoreDoesNotModifyCacheItem() throws Exception {
+        // GIVEN
+        WorkflowJob p1 = createWorkflow("node {\n" +
+                "  cache(path: '.', key: 'access-1') {\n" +
+                "    sh 'echo expected-content > file'\n" +
+                "  }\n" +
+                "}");
+        WorkflowJob p2 = createWorkflow("node {\n" +
+                "  cache(path: '.', key: 'access-1') {\n" +
+                "    sh 'cat file'\n" +
+                "  }\n" +
+                "}");
+        CacheConfiguration config = CacheConfiguration.get();
+        CacheItemRepository repo = new CacheItemRepository(config.getUsername(), config.getPassword().getPlainText(),
+                config.getRegion(), config.getEndpoint(), config.getBucket());
+        j.assertBuildStatusSuccess(executeWorkflow(p1));
+        long lastModified = repo.getLastModified("access-1");
+
+        // the last modification timestamp has a resolution of one second
+        Thread.sleep(1500);
+
+        // WHEN
+        WorkflowRun b2 = executeWorkflow(p2);
+
+        // THEN expect the cache item is not rewritten, the access is recorded in the catalog instead
+        j.assertBuildStatusSuccess(b2);
+        j.assertLogContains("expected-content", b2);
+        assertEquals(lastModified, repo.getLastModified("access-1"));
+        CatalogAccessBuffer.get().flush(repo);
+        Catalog.Entry entry = repo.rebuildCatalog(repo.readCatalog()).get("access-1");
+        assertEquals(1, entry.getHits());
+        assertTrue(entry.getLastAccess() > lastModified);
+    }
+
     @Test
     public void testBackupIsSkippedOnError() throws Exception {
         // GIVEN
@@ -129,6 +180,29 @@ public class CacheStepTest {
         j.assertBuildStatus(Result.SUCCESS, b1);
     }
 
+    @Test
+    public void testStreamedMultipartBackup() throws Exception {
+        // GIVEN
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  sh 'mkdir a && dd if=/dev/urandom of=a/f1 bs=1048576 count=25'\n" +
+                "  cache(path: 'a', key: 'multipart-1') {}\n" +
+                "}");
+        CacheConfiguration config = CacheConfiguration.get();
+        CacheItemRepository repo = new CacheItemRepository(config.getUsername(), config.getPassword().getPlainText(),
+                config.getRegion(), config.getEndpoint(), config.getBucket());
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN expect the checksum of the whole object is recorded in the catalog (the metadata is fixed before the content is known)
+        j.assertBuildStatusSuccess(b);
+        assertTrue(repo.getContentLength("multipart-1") > S3OutputStream.BUFFER_SIZE);
+        Catalog.Entry entry = repo.rebuildCatalog(repo.readCatalog()).get("multipart-1");
+        try (S3Object object = repo.getS3Object("multipart-1")) {
+            assertEquals(DigestUtils.md5Hex(object.getObjectContent()), entry.getChecksum());
+        }
+    }
+
     @Test
     public void testRestoreKey() throws Exception {
         // GIVEN
@@ -301,6 +375,60 @@ public class CacheStepTest {
         j.assertLogContains("Cache saved successfully (cache-c80a4fa9fc4e0041feb5240f35a74105)", b);
     }
 
+    @Test
+    public void testHashFilesAlgorithm() throws Exception {
+        // GIVEN
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  sh 'echo v1 > pom.xml'\n" +
+                "  cache(path: '.', key: \"cache-${hashFiles(pattern: '**/pom.xml', algorithm: 'sha256')}\") {}\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache saved successfully (cache-ce8a62bdaddc0b404a5748fb4ea6172c3edc312a0dfa52a06b34306a68e808bc)", b);
+    }
+
+    @Test
+    public void testHashFilesExcludes() throws Exception {
+        // GIVEN
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  sh 'echo v1 > pom.xml'\n" +
+                "  sh 'mkdir -p node_modules/a && echo v2 > node_modules/a/pom.xml'\n" +
+                "  cache(path: '.', key: \"cache-${hashFiles(pattern: '**/pom.xml', excludes: '**/node_modules/**')}\") {}\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN expect the same hash as if there is only the root pom
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache saved successfully (cache-4f98f59e877ecb84ff75ef0fab45bac5)", b);
+    }
+
+    @Test
+    public void testHashFilesChangedFile() throws Exception {
+        // GIVEN a file which is hashed (and remembered, the memo is not used for md5) before it is changed
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  sh 'echo v1 > pom.xml && touch -d 2020-01-01 pom.xml'\n" +
+                "  echo \"first ${hashFiles(pattern: 'pom.xml', algorithm: 'sha256')}\"\n" +
+                "  echo \"second ${hashFiles(pattern: 'pom.xml', algorithm: 'sha256')}\"\n" +
+                "  sh 'echo v2 > pom.xml'\n" +
+                "  echo \"changed ${hashFiles(pattern: 'pom.xml', algorithm: 'sha256')}\"\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN expect the remembered digest only as long as the file is unchanged
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("first ce8a62bdaddc0b404a5748fb4ea6172c3edc312a0dfa52a06b34306a68e808bc", b);
+        j.assertLogContains("second ce8a62bdaddc0b404a5748fb4ea6172c3edc312a0dfa52a06b34306a68e808bc", b);
+        j.assertLogContains("changed aa4340d84e9449579feace8d48b562ad5b93cebec074e96073b388f27ba98b10", b);
+    }
+
     @Test
     public void testHashFilesEmptyResult() throws Exception {
         // GIVEN
@@ -444,6 +572,221 @@ public class CacheStepTest {
         j.assertBuildStatusSuccess(b);
     }
 
+    @Test
+    public void testCompression() throws Exception {
+        // GIVEN
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  sh 'mkdir a && dd if=/dev/urandom of=a/f1 bs=1048576 count=1 && seq 1 1000000 > a/f2'\n" +
+                "  cache(path: 'a', key: 'gzip', compression: 'gzip') {}\n" +
+                "  cache(path: 'a', key: 'zstd', compression: 'zstd:19') {}\n" +
+                "  cache(path: 'a', key: 'lz4', compression: 'lz4') {}\n" +
+                "  cache(path: 'b', key: 'gzip') {}\n" +
+                "  cache(path: 'c', key: 'zstd') {}\n" +
+                "  cache(path: 'd', key: 'lz4') {}\n" +
+                "  assert sha256('a/f1') == sha256('b/f1') && sha256('a/f2') == sha256('b/f2')\n" +
+                "  assert sha256('a/f1') == sha256('c/f1') && sha256('a/f2') == sha256('c/f2')\n" +
+                "  assert sha256('a/f1') == sha256('d/f1') && sha256('a/f2') == sha256('d/f2')\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache restored successfully (gzip)", b);
+        j.assertLogContains("Cache restored successfully (zstd)", b);
+        j.assertLogContains("Cache restored successfully (lz4)", b);
+    }
+
+    @Test
+    public void testLocalCache() throws Exception {
+        // GIVEN
+        CacheConfiguration.get().setLocalCacheDirectory(Files.createTempDirectory("local-cache").toString());
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  cache(path: 'a', key: 'local', compression: 'gzip') {\n" +
+                "    sh 'mkdir -p a && echo expected-content > a/f'\n" +
+                "  }\n" +
+                "  cache(path: 'b', key: 'local') {}\n" +
+                "  sh 'cat b/f'\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache saved successfully (local)", b);
+        j.assertLogContains("Local cache hit (local)", b);
+        j.assertLogContains("expected-content", b);
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        // GIVEN
+        CacheConfiguration.get().setDeduplication(true);
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  sh 'mkdir a && dd if=/dev/urandom of=a/f1 bs=1048576 count=20'\n" +
+                "  cache(path: 'a', key: 'dedup-1', compression: 'zstd') {}\n" +
+                "  sh 'echo changed > a/f2'\n" +
+                "  cache(path: 'a', key: 'dedup-2', compression: 'zstd') {}\n" +
+                "  cache(path: 'b', key: 'dedup-2') {}\n" +
+                "  assert sha256('a/f1') == sha256('b/f1') && sha256('a/f2') == sha256('b/f2')\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache saved successfully (dedup-1)", b);
+        j.assertLogContains("Cache saved successfully (dedup-2)", b);
+        j.assertLogContains("Cache restored successfully (dedup-2)", b);
+
+        // only the changed chunks have been uploaded
+        Matcher m = Pattern.compile("Uploaded (\\d+) of (\\d+) chunk\\(s\\), \\d+ bytes \\(dedup-2\\)").matcher(JenkinsRule.getLog(b));
+        assertTrue(m.find());
+        assertTrue(Integer.parseInt(m.group(1)) < Integer.parseInt(m.group(2)));
+    }
+
+    @Test
+    public void testIncrementalBackup() throws Exception {
+        // GIVEN
+        CacheConfiguration.get().setIncrementalBackups(true);
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  sh 'mkdir a && dd if=/dev/urandom of=a/f1 bs=1048576 count=2 && echo f2 > a/f2 && echo f3 > a/f3'\n" +
+                "  cache(path: 'a', key: 'inc-1') {}\n" +
+                "  cache(path: 'b', key: 'inc-2', restoreKeys: ['inc-']) {\n" +
+                "    sh 'echo f4 > b/f4 && rm b/f3'\n" +
+                "  }\n" +
+                "  cache(path: 'c', key: 'inc-2') {}\n" +
+                "  assert sha256('a/f1') == sha256('c/f1') && sha256('a/f2') == sha256('c/f2')\n" +
+                "  assert fileExists('c/f4') && !fileExists('c/f3')\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache saved incrementally (1 changed and 1 deleted file(s) relative to inc-1)", b);
+        j.assertLogContains("Cache restored successfully (inc-2)", b);
+        j.assertLogContains("Cache restored from 2 layer(s) (inc-1, inc-2)", b);
+    }
+
+    @Test
+    public void testUnchangedBackupIsAlias() throws Exception {
+        // GIVEN
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  cache(path: 'a', key: 'alias-1') {\n" +
+                "    sh 'mkdir -p a && echo expected-content > a/f'\n" +
+                "  }\n" +
+                "  cache(path: 'b', key: 'alias-2', restoreKeys: ['alias-1']) {}\n" +
+                "  cache(path: 'c', key: 'alias-2') {}\n" +
+                "  sh 'cat c/f'\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache saved as alias of alias-1 (no changes since restore)", b);
+        j.assertLogContains("Cache restored successfully (alias-2)", b);
+        j.assertLogContains("expected-content", b);
+    }
+
+    @Test
+    public void testAsyncBackup() throws Exception {
+        // GIVEN
+        WorkflowJob p1 = createWorkflow("node {\n" +
+                "  cacheAwait {\n" +
+                "    cache(path: 'a', key: 'async-1', async: true) {\n" +
+                "      sh 'mkdir -p a && echo expected-content > a/f'\n" +
+                "    }\n" +
+                "    cacheAwait()\n" +
+                "    cache(path: 'b', key: 'async-1') {}\n" +
+                "    cache(path: 'c', key: 'async-2', async: true) {\n" +
+                "      sh 'mkdir -p c && echo more-content > c/f'\n" +
+                "    }\n" +
+                "  }\n" +
+                "}");
+        WorkflowJob p2 = createWorkflow("node {\n" +
+                "  cache(path: 'd', key: 'async-2') {}\n" +
+                "  sh 'cat d/f'\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b1 = executeWorkflow(p1);
+        WorkflowRun b2 = executeWorkflow(p2);
+
+        // THEN
+        j.assertBuildStatusSuccess(b1);
+        j.assertLogContains("Cache upload started in background (async-1)", b1);
+        j.assertLogContains("Cache saved successfully (async-1)", b1);
+        j.assertLogContains("Cache restored successfully (async-1)", b1);
+        j.assertLogContains("Cache upload started in background (async-2)", b1);
+        j.assertLogContains("Cache saved successfully (async-2)", b1);
+        j.assertBuildStatusSuccess(b2);
+        j.assertLogContains("more-content", b2);
+    }
+
+    @Test
+    public void testAsyncBackupWithoutAwaitBlock() throws Exception {
+        // GIVEN
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  cache(path: 'a', key: 'async-3', async: true) {\n" +
+                "    sh 'mkdir -p a && echo expected-content > a/f'\n" +
+                "  }\n" +
+                "  cache(path: 'b', key: 'async-3') {}\n" +
+                "  sh 'cat b/f'\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache uploaded right away (async uploads need an enclosing cacheAwait block)", b);
+        j.assertLogNotContains("Cache upload started in background (async-3)", b);
+        j.assertLogContains("Cache saved successfully (async-3)", b);
+        j.assertLogContains("expected-content", b);
+    }
+
+    @Test
+    public void testMaxItemSize() throws Exception {
+        // GIVEN max item size: 1MB
+        CacheConfiguration.get().setMaxItemSize(1);
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  cache(path: '.', key: 'too-large') {\n" +
+                "    sh 'dd if=/dev/urandom of=file1 bs=1048576 count=2'\n" +
+                "  }\n" +
+                "  cache(path: 'b', key: 'too-large') {}\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatusSuccess(b);
+        j.assertLogContains("Cache not saved (too-large exceeds the max size of 1 MB)", b);
+        j.assertLogContains("Cache not restored (no such key found)", b);
+    }
+
+    @Test
+    public void testCompressionInvalid() throws Exception {
+        // GIVEN
+        WorkflowJob p = createWorkflow("node {\n" +
+                "  cache(path: '.', key: 'a', compression: 'zstd:99') {}\n" +
+                "}");
+
+        // WHEN
+        WorkflowRun b = executeWorkflow(p);
+
+        // THEN
+        j.assertBuildStatus(Result.FAILURE, b);
+        j.assertLogContains("Compression level of zstd must be between 1 and 22", b);
+    }
+
     private WorkflowJob createWorkflow(String script) throws IOException {
         WorkflowJob p = j.createProject(WorkflowJob.class);
         p.setDefinition(new CpsFlowDefinition(script, true));
@@ -0,0 +1,108 @@
+package io.jenkins.plugins.pipeline.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that resolved keys are remembered until they expire or a new cache item may affect them. Each test uses its own bucket, so the
+ * entries of the shared instance don't interfere.
+ */
+public class RestoreKeyCacheTest {
+
+    private final RestoreKeyCache cache = RestoreKeyCache.get();
+
+    private CacheConfiguration config;
+
+    @Before
+    public void setupConfig() {
+        // GIVEN
+        config = createConfig(UUID.randomUUID().toString());
+    }
+
+    @Test
+    public void testPositiveEntryExpires() {
+        // GIVEN
+        long now = System.currentTimeMillis();
+        cache.put(config, "key", new String[]{"prefix-"}, "prefix-1", now);
+
+        // WHEN / THEN expect the resolved key until the entry expires
+        assertThat(cache.lookup(config, "key", new String[]{"prefix-"}, now + RestoreKeyCache.TTL).getResolvedKey(), is("prefix-1"));
+        assertThat(cache.lookup(config, "key", new String[]{"prefix-"}, now + RestoreKeyCache.TTL + 1), is(nullValue()));
+    }
+
+    @Test
+    public void testNegativeEntryExpiresEarlier() {
+        // GIVEN
+        long now = System.currentTimeMillis();
+        cache.put(config, "key", new String[]{"prefix-"}, null, now);
+
+        // WHEN / THEN expect a valid entry without resolved key until the negative entry expires
+        RestoreKeyCache.Resolution resolution = cache.lookup(config, "key", new String[]{"prefix-"}, now + RestoreKeyCache.NEGATIVE_TTL);
+        assertThat(resolution, is(notNullValue()));
+        assertThat(resolution.getResolvedKey(), is(nullValue()));
+        assertThat(cache.lookup(config, "key", new String[]{"prefix-"}, now + RestoreKeyCache.NEGATIVE_TTL + 1), is(nullValue()));
+    }
+
+    @Test
+    public void testDifferentQueries() {
+        // GIVEN
+        cache.put(config, "key", new String[]{"prefix-"}, "prefix-1");
+
+        // WHEN / THEN expect no entry for other restore keys or another bucket
+        assertThat(cache.lookup(config, "key", new String[]{"other-"}), is(nullValue()));
+        assertThat(cache.lookup(config, "key", null), is(nullValue()));
+        assertThat(cache.lookup(createConfig(UUID.randomUUID().toString()), "key", new String[]{"prefix-"}), is(nullValue()));
+        assertThat(cache.lookup(config, "key", new String[]{"prefix-"}).getResolvedKey(), is("prefix-1"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        // GIVEN
+        cache.put(config, "a", new String[]{"prefix-"}, null);
+        cache.put(config, "b", new String[]{"other-"}, "other-1");
+        cache.put(config, "c", null, null);
+
+        // WHEN a new cache item of the prefix is created
+        cache.invalidate(config, "prefix-2");
+
+        // THEN expect only the affected entry is removed
+        assertThat(cache.lookup(config, "a", new String[]{"prefix-"}), is(nullValue()));
+        assertThat(cache.lookup(config, "b", new String[]{"other-"}).getResolvedKey(), is("other-1"));
+        assertThat(cache.lookup(config, "c", null), is(notNullValue()));
+
+        // WHEN a new cache item with the key is created
+        cache.invalidate(config, "c");
+
+        // THEN
+        assertThat(cache.lookup(config, "c", null), is(nullValue()));
+    }
+
+    @Test
+    public void testInvalidateOtherBucket() {
+        // GIVEN
+        cache.put(config, "key", new String[]{"prefix-"}, null);
+
+        // WHEN a new cache item of the prefix is created in another bucket
+        cache.invalidate(createConfig(UUID.randomUUID().toString()), "prefix-1");
+
+        // THEN
+        assertThat(cache.lookup(config, "key", new String[]{"prefix-"}), is(notNullValue()));
+    }
+
+    private static CacheConfiguration createConfig(String bucket) {
+        CacheConfiguration config = mock(CacheConfiguration.class);
+        when(config.getEndpoint()).thenReturn("http://localhost:9000");
+        when(config.getBucket()).thenReturn(bucket);
+        return config;
+    }
+
+}
@@ -0,0 +1,66 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Checks that background uploads are joined by the 'cacheAwait' block which started them and that failed uploads are reported.
+ */
+public class AsyncBackupCallableTest {
+
+    @Test
+    public void testJoinUploadsOfBlock() throws Exception {
+        // GIVEN an upload in each of two blocks
+        new AsyncBackupCallable("block-1", "a", backup("a", null)).invoke(new File("."), null);
+        new AsyncBackupCallable("block-2", "b", backup("b", null)).invoke(new File("."), null);
+
+        // WHEN
+        AbstractMasterToAgentS3Callable.Result result = new AwaitBackupsCallable("block-1").call();
+
+        // THEN expect the upload of the block only (once)
+        assertThat(result.getSavedKeys(), contains("a"));
+        assertThat(result.getFailedKeys(), is(empty()));
+        assertThat(new AwaitBackupsCallable("block-1").call().getSavedKeys(), is(empty()));
+        assertThat(new AwaitBackupsCallable("block-2").call().getSavedKeys(), contains("b"));
+    }
+
+    @Test
+    public void testJoinFailedUpload() throws Exception {
+        // GIVEN a successful and a failed upload
+        new AsyncBackupCallable("block-3", "c", backup("c", null)).invoke(new File("."), null);
+        new AsyncBackupCallable("block-3", "d", backup("d", new IOException("Connection reset"))).invoke(new File("."), null);
+
+        // WHEN
+        AbstractMasterToAgentS3Callable.Result result = new AwaitBackupsCallable("block-3").call();
+
+        // THEN
+        assertThat(result.getSavedKeys(), contains("c"));
+        assertThat(result.getFailedKeys(), contains("d"));
+        assertThat(result.getInfos().contains("Cache not saved (upload of d failed: java.io.IOException: Connection reset)"), is(true));
+    }
+
+    /**
+     * Creates a backup which saves the given key, or fails with the given exception.
+     */
+    private static BackupCallable backup(String key, IOException failure) throws Exception {
+        BackupCallable backup = mock(BackupCallable.class);
+        if (failure != null) {
+            when(backup.invoke(any(), any())).thenThrow(failure);
+        } else {
+            when(backup.invoke(any(), any()))
+                    .thenReturn(new AbstractMasterToAgentS3Callable.ResultBuilder().withSavedKey(key).build());
+        }
+        return backup;
+    }
+
+}
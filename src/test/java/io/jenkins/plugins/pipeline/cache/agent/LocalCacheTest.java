@@ -0,0 +1,153 @@
+package io.jenkins.plugins.pipeline.cache.agent;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the local cache provides committed entries of the same ETag only and removes the least recently used entries if the max
+ * size is exceeded. Each test starts with an empty directory.
+ */
+public class LocalCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setupDirectory() throws IOException {
+        // GIVEN
+        dir = Files.createTempDirectory("local-cache").toFile();
+    }
+
+    @After
+    public void removeDirectory() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testHit() throws IOException {
+        // GIVEN
+        LocalCache cache = new LocalCache(dir, 1024);
+        put(cache, "a", "etag-1", "content-a");
+
+        // WHEN
+        File entry = cache.get("a", "etag-1");
+
+        // THEN
+        assertThat(entry, is(notNullValue()));
+        assertThat(FileUtils.readFileToString(entry, StandardCharsets.UTF_8), is("content-a"));
+    }
+
+    @Test
+    public void testMiss() throws IOException {
+        // GIVEN
+        LocalCache cache = new LocalCache(dir, 1024);
+        put(cache, "a", "etag-1", "content-a");
+
+        // WHEN another key or another ETag is requested THEN
+        assertThat(cache.get("b", "etag-1"), is(nullValue()));
+        assertThat(cache.get("a", "etag-2"), is(nullValue()));
+    }
+
+    @Test
+    public void testCommitReplacesOtherETag() throws IOException {
+        // GIVEN
+        LocalCache cache = new LocalCache(dir, 1024);
+        put(cache, "a", "etag-1", "old");
+
+        // WHEN
+        put(cache, "a", "etag-2", "new");
+
+        // THEN
+        assertThat(cache.get("a", "etag-1"), is(nullValue()));
+        assertThat(FileUtils.readFileToString(cache.get("a", "etag-2"), StandardCharsets.UTF_8), is("new"));
+        assertThat(dir.list().length, is(1));
+    }
+
+    @Test
+    public void testDiscard() throws IOException {
+        // GIVEN
+        LocalCache cache = new LocalCache(dir, 1024);
+        LocalCache.Entry entry = cache.create("a");
+        entry.getOutputStream().write(1);
+
+        // WHEN
+        entry.discard();
+
+        // THEN
+        assertThat(dir.list().length, is(0));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        // GIVEN a is older than b, but has been accessed recently
+        LocalCache cache = new LocalCache(dir, 250);
+        put(cache, "a", "etag", repeat('a', 100));
+        put(cache, "b", "etag", repeat('b', 100));
+        long now = System.currentTimeMillis();
+        assertThat(cache.get("a", "etag").setLastModified(now - 3000), is(true));
+        assertThat(cache.get("b", "etag").setLastModified(now - 2000), is(true));
+        cache.get("a", "etag");
+
+        // WHEN the max size gets exceeded
+        put(cache, "c", "etag", repeat('c', 100));
+
+        // THEN
+        assertThat(cache.get("a", "etag"), is(notNullValue()));
+        assertThat(cache.get("b", "etag"), is(nullValue()));
+        assertThat(cache.get("c", "etag"), is(notNullValue()));
+    }
+
+    @Test
+    public void testCachingInputStream() throws IOException {
+        // GIVEN
+        LocalCache cache = new LocalCache(dir, 1024);
+
+        // WHEN the stream gets completed
+        try (LocalCache.CachingInputStream in = cache.cache("a", "etag", stream("content-a"))) {
+            assertThat(in.read(new byte[4]), is(4));
+            in.complete();
+        }
+
+        // WHEN the stream gets closed without being completed
+        try (InputStream in = cache.cache("b", "etag", stream("content-b"))) {
+            IOUtils.toByteArray(in);
+        }
+
+        // THEN expect only the completed one is stored (the remaining data is read on completion)
+        assertThat(FileUtils.readFileToString(cache.get("a", "etag"), StandardCharsets.UTF_8), is("content-a"));
+        assertThat(cache.get("b", "etag"), is(nullValue()));
+        assertThat(dir.list().length, is(1));
+    }
+
+    private static void put(LocalCache cache, String key, String eTag, String content) throws IOException {
+        LocalCache.Entry entry = cache.create(key);
+        entry.getOutputStream().write(content.getBytes(StandardCharsets.UTF_8));
+        entry.commit(eTag);
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder s = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            s.append(c);
+        }
+        return s.toString();
+    }
+}
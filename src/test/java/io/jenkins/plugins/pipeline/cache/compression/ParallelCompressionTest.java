@@ -0,0 +1,149 @@
+package io.jenkins.plugins.pipeline.cache.compression;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Checks that archives which are compressed in parallel (see {@link BlockFormat}) are restored byte by byte, regardless of how the
+ * writes and the block boundaries are aligned, and that truncated or corrupted archives are refused.
+ */
+public class ParallelCompressionTest {
+
+    private static final int BLOCK_SIZE = BlockFormat.BLOCK_SIZE;
+
+    @Test
+    public void testRoundTripAcrossBlocks() throws IOException {
+        // GIVEN writes of odd sizes which span the block boundaries
+        byte[] content = content(2 * BLOCK_SIZE + BLOCK_SIZE / 2 + 7);
+
+        for (String setting : new String[]{"gzip", "zstd", "lz4"}) {
+            // WHEN
+            byte[] compressed = compress(Compression.Setting.parse(setting), content, 3, 100003);
+            byte[] restored = decompress(Compression.Setting.parse(setting).getCodec(), compressed, 3);
+
+            // THEN
+            assertArrayEquals(setting, content, restored);
+        }
+    }
+
+    @Test
+    public void testRoundTripOfFullBlocks() throws IOException {
+        // GIVEN
+        byte[] content = content(2 * BLOCK_SIZE);
+
+        // WHEN
+        byte[] compressed = compress(Compression.Setting.parse("gzip"), content, 2, BLOCK_SIZE);
+        byte[] restored = decompress(Compression.GZIP, compressed, 4);
+
+        // THEN expect two blocks and the end marker
+        assertArrayEquals(content, restored);
+        InputStream in = new ByteArrayInputStream(compressed);
+        for (int i = 0; i < 2; i++) {
+            int[] header = BlockFormat.readHeader(in);
+            assertThat(header[0], is(BLOCK_SIZE));
+            BlockFormat.readFully(in, header[1]);
+        }
+        assertThat(BlockFormat.readHeader(in), is(new int[]{0, 0}));
+        assertThat(in.read(), is(-1));
+    }
+
+    @Test
+    public void testRoundTripOfEmptyArchive() throws IOException {
+        // WHEN
+        byte[] compressed = compress(Compression.Setting.parse("gzip"), new byte[0], 2, 1);
+
+        // THEN
+        assertThat(compressed.length, is(8));
+        assertThat(decompress(Compression.GZIP, compressed, 2).length, is(0));
+    }
+
+    @Test
+    public void testTruncatedArchive() throws IOException {
+        // GIVEN
+        byte[] compressed = compress(Compression.Setting.parse("gzip"), content(BLOCK_SIZE + 100), 2, 4096);
+
+        // WHEN the end marker is missing THEN
+        assertTruncated(Arrays.copyOf(compressed, compressed.length - 8), "Unexpected end of the archive (end marker is missing)");
+
+        // WHEN the first block is cut off THEN
+        int[] header = BlockFormat.readHeader(new ByteArrayInputStream(compressed));
+        assertTruncated(Arrays.copyOf(compressed, 8 + header[1] / 2), "Unexpected end of the archive (archive is truncated)");
+    }
+
+    @Test
+    public void testCorruptedHeader() throws IOException {
+        // GIVEN a block which claims to be larger than allowed
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        BlockFormat.writeHeader(archive, -1, 10);
+
+        // WHEN
+        try {
+            decompress(Compression.GZIP, archive.toByteArray(), 2);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // THEN
+            assertThat(e.getMessage(), is("Invalid block header (archive is corrupted)"));
+        }
+    }
+
+    private static void assertTruncated(byte[] compressed, String message) throws IOException {
+        try {
+            decompress(Compression.GZIP, compressed, 2);
+            fail("EOFException expected");
+        } catch (EOFException e) {
+            assertThat(e.getMessage(), is(message));
+        }
+    }
+
+    /**
+     * Provides content which is partially compressible (random bytes and repeated lines).
+     */
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        Random random = new Random(size);
+        byte[] line = "the quick brown fox jumps over the lazy dog\n".getBytes();
+        for (int off = 0; off < size; off += 4096) {
+            int len = Math.min(4096, size - off);
+            if (random.nextBoolean()) {
+                byte[] noise = new byte[len];
+                random.nextBytes(noise);
+                System.arraycopy(noise, 0, content, off, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    content[off + i] = line[i % line.length];
+                }
+            }
+        }
+        return content;
+    }
+
+    private static byte[] compress(Compression.Setting compression, byte[] content, int threads, int writeSize) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new ParallelCompressorOutputStream(compressed, compression, threads)) {
+            for (int off = 0; off < content.length; off += writeSize) {
+                out.write(content, off, Math.min(writeSize, content.length - off));
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(Compression codec, byte[] compressed, int threads) throws IOException {
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed), true, threads)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
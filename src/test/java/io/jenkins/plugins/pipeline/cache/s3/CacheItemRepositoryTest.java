@@ -0,0 +1,259 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import io.jenkins.plugins.pipeline.cache.MinioContainer;
+import io.jenkins.plugins.pipeline.cache.MinioMcContainer;
+
+/**
+ * Checks that the objects are removed in batches and that the restore keys are resolved as expected (the lookups use a mocked
+ * client). Each test starts with an empty bucket.
+ */
+public class CacheItemRepositoryTest {
+
+    @ClassRule
+    public static MinioContainer minio = new MinioContainer();
+
+    @ClassRule
+    public static MinioMcContainer mc = new MinioMcContainer(minio);
+
+    private String bucket;
+
+    @Before
+    public void setupBucket() {
+        // GIVEN
+        bucket = UUID.randomUUID().toString();
+        mc.createBucket(bucket);
+    }
+
+    @Test
+    public void testDeleteMoreThanOneBatch() {
+        // GIVEN 2500 small objects
+        CacheItemRepository repo = new CacheItemRepository(minio.accessKey(), minio.secretKey(), "us-west-1",
+                minio.getExternalAddress(), bucket);
+        range(0, 2500).forEach(i -> repo.writeCreationMarker("key-" + i));
+
+        // WHEN
+        DeleteResult result = repo.delete(repo.findCreationMarkers().map(CacheItem::getKey));
+
+        // THEN
+        assertThat(result.getDeleted().size(), is(2500));
+        assertThat(result.getFailed().isEmpty(), is(true));
+        assertThat(result.getBatches(), is(3));
+        assertThat(repo.findCreationMarkers().count(), is(0L));
+    }
+
+    @Test
+    public void testDeletePartialFailure() {
+        // GIVEN key b can never be removed, key c only on the second attempt
+        AmazonS3 s3 = mock(AmazonS3.class);
+        List<String> attempts = new ArrayList<>();
+        when(s3.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+            DeleteObjectsRequest request = invocation.getArgument(0);
+            List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+            List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+            for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+                attempts.add(key.getKey());
+                boolean fails = key.getKey().equals("b") || key.getKey().equals("c") && attempts.stream().filter("c"::equals).count() == 1;
+                if (fails) {
+                    MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                    error.setKey(key.getKey());
+                    error.setCode("AccessDenied");
+                    error.setMessage("Access Denied");
+                    errors.add(error);
+                } else {
+                    DeleteObjectsResult.DeletedObject object = new DeleteObjectsResult.DeletedObject();
+                    object.setKey(key.getKey());
+                    deleted.add(object);
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new MultiObjectDeleteException(errors, deleted);
+            }
+            return new DeleteObjectsResult(deleted);
+        });
+        CacheItemRepository repo = createRepository(s3);
+
+        // WHEN
+        DeleteResult result = repo.delete(range(0, 4).mapToObj(i -> "abcd".substring(i, i + 1)));
+
+        // THEN the failed keys are retried, b is given up after the last attempt
+        assertThat(result.getDeleted(), containsInAnyOrder("a", "c", "d"));
+        assertThat(result.getFailed().keySet(), containsInAnyOrder("b"));
+        assertThat(result.getFailed().get("b").startsWith("AccessDenied"), is(true));
+        assertThat(result.getFailedBatches(), is(1));
+        assertThat(attempts.stream().filter("b"::equals).collect(toList()).size(), is(3));
+        verify(s3, times(3)).deleteObjects(any(DeleteObjectsRequest.class));
+    }
+
+    @Test
+    public void testFindRestoreKeyExactMatch() {
+        // GIVEN the key exists
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.doesObjectExist(bucket, "exact")).thenReturn(true);
+
+        // WHEN
+        String key = createRepository(s3).findRestoreKey("exact", "restore");
+
+        // THEN expect the key without any lookup of the restore keys
+        assertThat(key, is("exact"));
+        verify(s3, never()).doesObjectExist(bucket, "restore");
+        verify(s3, never()).listObjects(anyString(), anyString());
+    }
+
+    @Test
+    public void testFindRestoreKeyPriority() {
+        // GIVEN the first restore key exists, but its lookup answers only after the lookups of the second one have been started
+        AmazonS3 s3 = mock(AmazonS3.class);
+        CountDownLatch started = new CountDownLatch(2);
+        AtomicBoolean parallel = new AtomicBoolean();
+        when(s3.doesObjectExist(bucket, "first")).thenAnswer(invocation -> {
+            parallel.set(started.await(10, TimeUnit.SECONDS));
+            return true;
+        });
+        when(s3.listObjects(bucket, "first")).thenReturn(listing("first-1"));
+        when(s3.doesObjectExist(bucket, "second")).thenAnswer(invocation -> {
+            started.countDown();
+            return true;
+        });
+        when(s3.listObjects(bucket, "second")).thenAnswer(invocation -> {
+            started.countDown();
+            return listing("second-1");
+        });
+
+        // WHEN
+        String key = createRepository(s3).findRestoreKey("missing", "first", "second");
+
+        // THEN expect the first restore key, although the second one has been resolved first
+        assertThat(key, is("first"));
+        assertThat(parallel.get(), is(true));
+    }
+
+    @Test
+    public void testFindRestoreKeyOrder() {
+        // GIVEN the key doesn't exist, the first restore key is a prefix only, the second one exists
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.listObjects(anyString(), anyString())).thenReturn(listing());
+        when(s3.listObjects(bucket, "a-")).thenReturn(listing("a-1"));
+        when(s3.doesObjectExist(bucket, "b-")).thenReturn(true);
+        CacheItemRepository repo = createRepository(s3);
+
+        // WHEN
+        String key = repo.findRestoreKey("missing", "a-", "b-");
+
+        // THEN expect an existing restore key before a prefix match
+        assertThat(key, is("b-"));
+
+        // WHEN
+        key = repo.findRestoreKey("missing", "a-", "c-");
+
+        // THEN expect the prefix match
+        assertThat(key, is("a-1"));
+
+        // WHEN
+        key = repo.findRestoreKey("missing", "c-");
+
+        // THEN
+        assertThat(key, is(nullValue()));
+    }
+
+    @Test
+    public void testFindKeyByPrefixFromCreationMarkers() {
+        // GIVEN 3 cache items of the same prefix, each with a creation marker
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.listObjects(bucket, "app-")).thenReturn(listing("app-1", "app-2", "app-3"));
+        when(s3.listObjects(bucket, CacheItemRepository.CREATION_PREFIX + "app-")).thenReturn(listing(
+                CacheItemRepository.CREATION_PREFIX + "app-1/1000",
+                CacheItemRepository.CREATION_PREFIX + "app-2/3000",
+                CacheItemRepository.CREATION_PREFIX + "app-3/2000"));
+
+        // WHEN
+        String key = createRepository(s3).findRestoreKey(null, "app-");
+
+        // THEN expect the latest one without requesting the metadata of the cache items
+        assertThat(key, is("app-2"));
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void testFindKeyByPrefixWithoutCreationMarker() {
+        // GIVEN 2 cache items of the same prefix, the latest one has been created without creation marker (by a former version)
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.listObjects(bucket, "app-")).thenReturn(listing("app-1", "app-2"));
+        when(s3.listObjects(bucket, CacheItemRepository.CREATION_PREFIX + "app-")).thenReturn(listing(
+                CacheItemRepository.CREATION_PREFIX + "app-1/1000"));
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.addUserMetadata(CacheItemRepository.CREATION, "2000");
+        when(s3.getObjectMetadata(bucket, "app-2")).thenReturn(metadata);
+
+        // WHEN
+        String key = createRepository(s3).findRestoreKey(null, "app-");
+
+        // THEN expect the metadata is requested for the cache item without marker only
+        assertThat(key, is("app-2"));
+        verify(s3).getObjectMetadata(bucket, "app-2");
+        verify(s3, never()).getObjectMetadata(bucket, "app-1");
+    }
+
+    @Test
+    public void testGetKeyOfCreationMarker() {
+        assertThat(CacheItemRepository.getKeyOfCreationMarker(CacheItemRepository.CREATION_PREFIX + "app-1/1600000000000"), is("app-1"));
+        assertThat(CacheItemRepository.getKeyOfCreationMarker(CacheItemRepository.CREATION_PREFIX + "a/b/c/1600000000000"), is("a/b/c"));
+    }
+
+    private CacheItemRepository createRepository(AmazonS3 s3) {
+        return new CacheItemRepository("username", "password", "us-west-1", "http://localhost", bucket) {
+            @Override
+            protected AmazonS3 createS3Client(String username, String password, String endpoint, String region, ClientSettings settings) {
+                return s3;
+            }
+        };
+    }
+
+    private ObjectListing listing(String... keys) {
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(bucket);
+        for (String key : keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(bucket);
+            summary.setKey(key);
+            summary.setLastModified(new Date());
+            listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+    }
+
+}
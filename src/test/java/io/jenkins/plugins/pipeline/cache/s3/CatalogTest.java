@@ -0,0 +1,210 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/**
+ * Checks that the catalog merges, reconciles and stores the cache items as expected.
+ */
+public class CatalogTest {
+
+    @Test
+    public void testMerge() {
+        // GIVEN
+        Catalog catalog = new Catalog(0);
+        Map<String, List<Catalog.Event>> segments = new LinkedHashMap<>();
+        segments.put("s1", asList(Catalog.Event.created("a", 10, null), Catalog.Event.created("b", 20, null)));
+        segments.put("s2", asList(Catalog.Event.accessed("a"), Catalog.Event.accessed("a"), Catalog.Event.deleted("b")));
+
+        // WHEN
+        catalog.merge(segments);
+
+        // THEN
+        assertThat(keys(catalog), containsInAnyOrder("a"));
+        assertThat(catalog.get("a").getSize(), is(10L));
+        assertThat(catalog.get("a").getHits(), is(2L));
+        assertThat(catalog.getTotalSize(), is(10L));
+        assertThat(catalog.getSegments(), containsInAnyOrder("s1", "s2"));
+    }
+
+    @Test
+    public void testMergeSegmentOnce() {
+        // GIVEN
+        Catalog catalog = new Catalog(0);
+        catalog.merge(segment("s1", Catalog.Event.created("a", 10, null)));
+        catalog.merge(segment("s2", Catalog.Event.accessed("a")));
+
+        // WHEN the same segments are merged again (e.g. listed by the next run before they have been removed)
+        catalog.merge(segment("s1", Catalog.Event.created("a", 10, null)));
+        catalog.merge(segment("s2", Catalog.Event.accessed("a")));
+
+        // THEN
+        assertThat(catalog.get("a").getHits(), is(1L));
+        assertThat(catalog.getSegments(), containsInAnyOrder("s1", "s2"));
+    }
+
+    @Test
+    public void testRetainSegments() {
+        // GIVEN
+        Catalog catalog = new Catalog(0);
+        catalog.merge(segment("s1", Catalog.Event.created("a", 10, null)));
+        catalog.merge(segment("s2", Catalog.Event.created("b", 10, null)));
+
+        // WHEN s1 has been removed after the catalog has been stored
+        catalog.retainSegments(singletonList("s2"));
+
+        // THEN
+        assertThat(catalog.getSegments(), containsInAnyOrder("s2"));
+        assertThat(keys(catalog), containsInAnyOrder("a", "b"));
+    }
+
+    @Test
+    public void testReconcile() {
+        // GIVEN
+        Catalog catalog = new Catalog(0);
+        catalog.merge(segment("s1", Catalog.Event.created("a", 10, null), Catalog.Event.created("b", 20, null),
+                Catalog.Event.accessed("a")));
+
+        // WHEN b has been removed and c has been created by someone else
+        catalog.reconcile(Stream.of(new CacheItem("a", 10, 1), new CacheItem("c", 30, 2)), 42);
+
+        // THEN the hits of a are kept
+        assertThat(keys(catalog), containsInAnyOrder("a", "c"));
+        assertThat(catalog.get("a").getHits(), is(1L));
+        assertThat(catalog.get("c").getSize(), is(30L));
+        assertThat(catalog.get("c").getLastAccess(), is(2L));
+        assertThat(catalog.getRebuilt(), is(42L));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        // GIVEN
+        Catalog catalog = new Catalog(42);
+        catalog.merge(segment("s1", Catalog.Event.created("a", 10, null, "5d41402a"), Catalog.Event.created("b", 20, null),
+                Catalog.Event.created("c", 30, null), Catalog.Event.accessed("a")));
+        catalog.setChunks("b", asList("h1", "h2"));
+        catalog.reconcile(Stream.of(new CacheItem("a", 10, 1), new CacheItem("b", 20, 2), new CacheItem("c", 30, 3),
+                new CacheItem("d", 40, 4)), 43);
+
+        // WHEN
+        Catalog read = writeAndRead(catalog);
+
+        // THEN
+        assertThat(read.getRebuilt(), is(43L));
+        assertThat(read.getSegments(), containsInAnyOrder("s1"));
+        assertThat(keys(read), containsInAnyOrder("a", "b", "c", "d"));
+        assertThat(read.get("a").getHits(), is(1L));
+        assertThat(read.get("a").getChecksum(), is("5d41402a"));
+        assertThat(read.get("b").getChecksum(), is(nullValue()));
+        assertThat(read.get("b").getChunks(), is(asList("h1", "h2")));
+        assertThat(read.get("c").getChunks(), is(emptyList()));
+        assertThat(read.findUnresolved().map(Catalog.Entry::getKey).collect(toList()), containsInAnyOrder("d"));
+    }
+
+    @Test
+    public void testReadFirstVersion() throws IOException {
+        // GIVEN a snapshot written by a previous version (no chunks)
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(content);
+        data.writeUTF("pipeline-cache-catalog 1");
+        data.writeLong(42);
+        data.writeInt(1);
+        data.writeUTF("s1");
+        data.writeInt(1);
+        data.writeUTF("a");
+        data.writeLong(10);
+        data.writeLong(1);
+        data.writeLong(2);
+        data.writeLong(3);
+
+        // WHEN
+        Catalog read = Catalog.read(new ByteArrayInputStream(content.toByteArray()));
+
+        // THEN the chunks of a are resolved later on
+        assertThat(read.getSegments(), containsInAnyOrder("s1"));
+        assertThat(read.get("a").getHits(), is(3L));
+        assertThat(read.findUnresolved().map(Catalog.Entry::getKey).collect(toList()), containsInAnyOrder("a"));
+    }
+
+    @Test
+    public void testWriteAndReadSegment() throws IOException {
+        // GIVEN
+        Catalog catalog = new Catalog(0);
+        catalog.apply(Catalog.Event.created("b", 20, null));
+        List<Catalog.Event> events = asList(Catalog.Event.created("a", 10, null, "5d41402a"), Catalog.Event.accessed("a"),
+                Catalog.Event.deleted("b"));
+
+        // WHEN
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        Catalog.writeSegment(content, events);
+        List<Catalog.Event> read = Catalog.readSegment(new ByteArrayInputStream(content.toByteArray()));
+        catalog.merge(segment("s1", read.toArray(new Catalog.Event[0])));
+
+        // THEN
+        assertThat(read.size(), is(3));
+        assertThat(keys(catalog), containsInAnyOrder("a"));
+        assertThat(catalog.get("a").getHits(), is(1L));
+        assertThat(catalog.get("a").getChunks(), is(emptyList()));
+        assertThat(catalog.get("a").getChecksum(), is("5d41402a"));
+        assertThat(catalog.get("b"), is(nullValue()));
+    }
+
+    @Test
+    public void testReadSecondVersionSegment() throws IOException {
+        // GIVEN a segment written by a previous version (no checksums)
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(content);
+        data.writeUTF("pipeline-cache-catalog-segment 2");
+        data.writeInt(1);
+        data.writeUTF("CREATED");
+        data.writeUTF("a");
+        data.writeLong(10);
+        data.writeLong(1);
+        data.writeInt(1);
+        data.writeUTF("h1");
+        Catalog catalog = new Catalog(0);
+
+        // WHEN
+        catalog.merge(segment("s1", Catalog.readSegment(new ByteArrayInputStream(content.toByteArray())).toArray(new Catalog.Event[0])));
+
+        // THEN
+        assertThat(catalog.get("a").getSize(), is(10L));
+        assertThat(catalog.get("a").getChunks(), is(singletonList("h1")));
+        assertThat(catalog.get("a").getChecksum(), is(nullValue()));
+    }
+
+    private static Map<String, List<Catalog.Event>> segment(String key, Catalog.Event... events) {
+        Map<String, List<Catalog.Event>> segments = new LinkedHashMap<>();
+        segments.put(key, asList(events));
+        return segments;
+    }
+
+    private static List<String> keys(Catalog catalog) {
+        return catalog.findAll().map(CacheItem::getKey).collect(toList());
+    }
+
+    private static Catalog writeAndRead(Catalog catalog) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        catalog.write(content);
+        return Catalog.read(new ByteArrayInputStream(content.toByteArray()));
+    }
+
+}
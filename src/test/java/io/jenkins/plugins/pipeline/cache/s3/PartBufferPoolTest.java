@@ -0,0 +1,118 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the pool hands out a bounded number of buffers, blocks the callers while all the buffers are in use and reuses the
+ * returned buffers.
+ */
+public class PartBufferPoolTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setupExecutor() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() throws Exception {
+        // GIVEN
+        PartBufferPool pool = new PartBufferPool(2048, 1024, false);
+        ByteBuffer buffer = pool.borrow();
+        buffer.put(new byte[100]);
+
+        // WHEN
+        pool.release(buffer);
+        ByteBuffer reused = pool.borrow();
+
+        // THEN expect the same buffer, cleared
+        assertThat(reused == buffer, is(true));
+        assertThat(reused.position(), is(0));
+        assertThat(reused.capacity(), is(1024));
+        assertThat(pool.getWaitCount(), is(0L));
+    }
+
+    @Test
+    public void testBorrowBlocksUntilReleased() throws Exception {
+        // GIVEN all the buffers are in use
+        PartBufferPool pool = new PartBufferPool(2048, 1024, false);
+        ByteBuffer first = pool.borrow();
+        pool.borrow();
+
+        // WHEN
+        Future<ByteBuffer> waiting = executor.submit(() -> pool.borrow());
+
+        // THEN expect the caller is blocked until a buffer has been returned
+        assertThat(isBlocked(waiting), is(true));
+        pool.release(first);
+        assertThat(waiting.get(5, TimeUnit.SECONDS) == first, is(true));
+        assertThat(pool.getBorrowCount(), is(3L));
+        assertThat(pool.getWaitCount(), is(1L));
+    }
+
+    @Test
+    public void testBorrowMoreBuffersThanCapacity() throws Exception {
+        // GIVEN one buffer is in use
+        PartBufferPool pool = new PartBufferPool(2048, 1024, false);
+        ByteBuffer used = pool.borrow();
+
+        // WHEN three buffers are requested at once
+        Future<List<ByteBuffer>> waiting = executor.submit(() -> pool.borrow(3));
+
+        // THEN expect the caller waits until all the buffers have been returned, the missing buffer is allocated temporarily
+        assertThat(isBlocked(waiting), is(true));
+        pool.release(used);
+        List<ByteBuffer> buffers = waiting.get(5, TimeUnit.SECONDS);
+        assertThat(buffers.size(), is(3));
+        buffers.forEach(pool::release);
+
+        // THEN expect the temporary buffer is dropped (only two buffers are held by the pool)
+        pool.borrow();
+        pool.borrow();
+        assertThat(isBlocked(executor.submit(() -> pool.borrow())), is(true));
+    }
+
+    @Test
+    public void testAtLeastOneBuffer() throws Exception {
+        // GIVEN the capacity is less than the buffer size
+        PartBufferPool pool = new PartBufferPool(100, 1024, true);
+
+        // WHEN
+        ByteBuffer buffer = pool.borrow();
+
+        // THEN
+        assertThat(buffer.isDirect(), is(true));
+        assertThat(isBlocked(executor.submit(() -> pool.borrow())), is(true));
+    }
+
+    /**
+     * @return true if a given borrow request is still waiting after a short time
+     */
+    private static boolean isBlocked(Future<?> request) throws Exception {
+        try {
+            request.get(200, TimeUnit.MILLISECONDS);
+            return false;
+        } catch (TimeoutException e) {
+            return true;
+        }
+    }
+}
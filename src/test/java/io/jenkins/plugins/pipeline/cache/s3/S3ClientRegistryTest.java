@@ -0,0 +1,75 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Checks that the S3 clients are shared per endpoint and region, and replaced if the credentials or the settings change (no requests
+ * are sent). Each test uses its own endpoint.
+ */
+public class S3ClientRegistryTest {
+
+    private String endpoint;
+
+    @Before
+    public void setupEndpoint() {
+        // GIVEN
+        endpoint = "http://" + UUID.randomUUID() + ".localhost:9000";
+    }
+
+    @Test
+    public void testClientIsReused() {
+        // WHEN
+        AmazonS3 first = S3ClientRegistry.get("user", "secret", endpoint, "us-west-1", ClientSettings.DEFAULT);
+        AmazonS3 second = S3ClientRegistry.get("user", "secret", endpoint, "us-west-1", new ClientSettings(
+                ClientSettings.MAX_CONNECTIONS, ClientSettings.SOCKET_TIMEOUT, false));
+
+        // THEN
+        assertThat(second == first, is(true));
+    }
+
+    @Test
+    public void testClientIsReplacedIfCredentialsChange() {
+        // GIVEN
+        AmazonS3 first = S3ClientRegistry.get("user", "secret", endpoint, "us-west-1", ClientSettings.DEFAULT);
+
+        // WHEN
+        AmazonS3 replaced = S3ClientRegistry.get("user", "changed", endpoint, "us-west-1", ClientSettings.DEFAULT);
+
+        // THEN expect the new client is shared from now on
+        assertThat(replaced == first, is(false));
+        assertThat(S3ClientRegistry.get("user", "changed", endpoint, "us-west-1", ClientSettings.DEFAULT) == replaced, is(true));
+    }
+
+    @Test
+    public void testClientIsReplacedIfSettingsChange() {
+        // GIVEN
+        AmazonS3 first = S3ClientRegistry.get("user", "secret", endpoint, "us-west-1", ClientSettings.DEFAULT);
+
+        // WHEN
+        AmazonS3 replaced = S3ClientRegistry.get("user", "secret", endpoint, "us-west-1", new ClientSettings(
+                ClientSettings.MAX_CONNECTIONS * 2, ClientSettings.SOCKET_TIMEOUT, true));
+
+        // THEN
+        assertThat(replaced == first, is(false));
+    }
+
+    @Test
+    public void testClientPerEndpointAndRegion() {
+        // WHEN
+        AmazonS3 first = S3ClientRegistry.get("user", "secret", endpoint, "us-west-1", ClientSettings.DEFAULT);
+        AmazonS3 otherRegion = S3ClientRegistry.get("user", "secret", endpoint, "eu-central-1", ClientSettings.DEFAULT);
+
+        // THEN expect both clients are kept
+        assertThat(otherRegion == first, is(false));
+        assertThat(S3ClientRegistry.get("user", "secret", endpoint, "us-west-1", ClientSettings.DEFAULT) == first, is(true));
+        assertThat(S3ClientRegistry.get("user", "secret", endpoint, "eu-central-1", ClientSettings.DEFAULT) == otherRegion, is(true));
+    }
+}
@@ -0,0 +1,164 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static java.util.Arrays.asList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Checks that the segments of an object are downloaded via ranged GET requests and provided in order (the downloads use a mocked
+ * client and small segments).
+ */
+public class S3InputStreamTest {
+
+    private static final int SEGMENT_SIZE = 1000;
+
+    private AmazonS3 s3;
+    private List<String> ranges;
+
+    @Before
+    public void setupClient() {
+        // GIVEN
+        s3 = mock(AmazonS3.class);
+        ranges = new CopyOnWriteArrayList<>();
+    }
+
+    @Test
+    public void testSegmentsAreReassembledInOrder() throws IOException {
+        // GIVEN the first segment is the slowest one, so that the segments are finished out of order, the last segment is a short one
+        byte[] content = randomBytes(10 * SEGMENT_SIZE + 123);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            if (request.getRange()[0] == 0) {
+                Thread.sleep(500);
+            }
+            return segment(content, request);
+        });
+
+        // WHEN
+        byte[] read = readAll(new S3InputStream(s3, "bucket", "key", "etag", content.length, SEGMENT_SIZE, 3), 777);
+
+        // THEN
+        assertArrayEquals(content, read);
+        assertThat(ranges.size(), is(11));
+        assertThat(ranges.contains("10000-10122"), is(true));
+    }
+
+    @Test
+    public void testObjectSmallerThanSegment() throws IOException {
+        // GIVEN
+        byte[] content = randomBytes(SEGMENT_SIZE / 10);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> segment(content, invocation.getArgument(0)));
+
+        // WHEN
+        byte[] read = readAll(new S3InputStream(s3, "bucket", "key", null, content.length, SEGMENT_SIZE, 4), 1);
+
+        // THEN
+        assertArrayEquals(content, read);
+        assertThat(ranges, is(asList("0-99")));
+    }
+
+    @Test
+    public void testEmptyObject() throws IOException {
+        // WHEN
+        S3InputStream in = new S3InputStream(s3, "bucket", "key", null, 0, SEGMENT_SIZE, 4);
+
+        // THEN
+        assertThat(in.read(), is(-1));
+        in.close();
+        verify(s3, never()).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void testFailedSegmentIsRetried() throws IOException {
+        // GIVEN the first attempt to download the second segment fails
+        byte[] content = randomBytes(3 * SEGMENT_SIZE);
+        AtomicBoolean failed = new AtomicBoolean();
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            if (request.getRange()[0] == SEGMENT_SIZE && failed.compareAndSet(false, true)) {
+                throw new SdkClientException("Connection reset");
+            }
+            return segment(content, request);
+        });
+
+        // WHEN
+        byte[] read = readAll(new S3InputStream(s3, "bucket", "key", "etag", content.length, SEGMENT_SIZE, 2), SEGMENT_SIZE);
+
+        // THEN
+        assertArrayEquals(content, read);
+        assertThat(ranges, containsInAnyOrder("0-999", "1000-1999", "2000-2999"));
+    }
+
+    @Test
+    public void testModifiedObject() throws IOException {
+        // GIVEN the ETag doesn't match anymore (the client returns null then)
+        when(s3.getObject(any(GetObjectRequest.class))).thenReturn(null);
+
+        // WHEN
+        try (S3InputStream in = new S3InputStream(s3, "bucket", "key", "etag", 10, SEGMENT_SIZE, 2)) {
+            in.read();
+            fail("IOException expected");
+        } catch (IOException e) {
+            // THEN
+            assertThat(e.getMessage(), is("Download of a segment has been failed!"));
+            assertThat(e.getCause().getMessage(), is("key has been modified while reading"));
+        }
+    }
+
+    /**
+     * Provides the requested range of a given content (the range is recorded).
+     */
+    private S3Object segment(byte[] content, GetObjectRequest request) {
+        long[] range = request.getRange();
+        ranges.add(range[0] + "-" + range[1]);
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1)));
+        return object;
+    }
+
+    private static byte[] readAll(S3InputStream in, int readSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[readSize];
+            int n;
+            while ((n = in.read(buffer, 0, readSize)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
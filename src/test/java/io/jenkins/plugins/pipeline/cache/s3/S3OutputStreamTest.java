@@ -0,0 +1,162 @@
+package io.jenkins.plugins.pipeline.cache.s3;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+/**
+ * Checks that the parts of a multipart upload are uploaded in parallel but completed in order, and that a failed part aborts the upload
+ * (the uploads use a mocked client and small parts).
+ */
+public class S3OutputStreamTest {
+
+    private static final int PART_SIZE = 1024;
+
+    private AmazonS3 s3;
+    private Map<Integer, byte[]> parts;
+    private List<CompleteMultipartUploadRequest> completed;
+
+    @Before
+    public void setupClient() {
+        // GIVEN
+        s3 = mock(AmazonS3.class);
+        parts = new ConcurrentHashMap<>();
+        completed = new CopyOnWriteArrayList<>();
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId("upload-1");
+        when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+        when(s3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenAnswer(invocation -> {
+            completed.add(invocation.getArgument(0));
+            CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+            result.setETag("etag");
+            return result;
+        });
+    }
+
+    @Test
+    public void testPartsAreCompletedInOrder() throws Exception {
+        // GIVEN the first part is the slowest one, so that the parts are finished out of order
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            if (request.getPartNumber() == 1) {
+                Thread.sleep(500);
+            }
+            return uploadPart(request);
+        });
+        PartBufferPool pool = new PartBufferPool(4 * PART_SIZE, PART_SIZE, false);
+        byte[] content = randomBytes(4 * PART_SIZE + PART_SIZE / 2);
+
+        // WHEN
+        S3OutputStream out = new S3OutputStream(s3, "bucket", "key", new HashMap<>(), pool, 4);
+        out.write(content);
+        out.close();
+
+        // THEN
+        assertThat(completed.size(), is(1));
+        assertThat(completed.get(0).getPartETags().stream().map(PartETag::getPartNumber).collect(toList()), is(asList(1, 2, 3, 4, 5)));
+        ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+        for (int i = 1; i <= 5; i++) {
+            uploaded.write(parts.get(i));
+        }
+        assertArrayEquals(content, uploaded.toByteArray());
+        assertThat(out.getETag(), is("etag"));
+        assertThat(out.getChecksum(), is(DigestUtils.md5Hex(content)));
+        verify(s3, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        assertThat(borrowAll(pool, 4), is(true));
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws Exception {
+        // GIVEN the second part is rejected
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            if (request.getPartNumber() == 2) {
+                throw new AmazonServiceException("Part rejected");
+            }
+            return uploadPart(request);
+        });
+        PartBufferPool pool = new PartBufferPool(2 * PART_SIZE, PART_SIZE, false);
+        S3OutputStream out = new S3OutputStream(s3, "bucket", "key", new HashMap<>(), pool, 2);
+
+        // WHEN
+        try {
+            out.write(randomBytes(8 * PART_SIZE));
+            out.close();
+            fail("IOException expected");
+        } catch (IOException e) {
+            // THEN
+            assertThat(e.getMessage(), is("Upload of a part has been failed!"));
+        }
+
+        // THEN expect the upload is aborted and all the buffers are returned to the pool
+        verify(s3).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(s3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertThat(out.getETag(), is(nullValue()));
+        assertThat(out.getChecksum(), is(nullValue()));
+        assertThat(borrowAll(pool, 2), is(true));
+    }
+
+    private UploadPartResult uploadPart(UploadPartRequest request) throws IOException {
+        parts.put(request.getPartNumber(), IOUtils.toByteArray(request.getInputStream()));
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag("etag-" + request.getPartNumber());
+        return result;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return true if a given number of buffers can be borrowed from a given pool (i.e. they all have been returned)
+     */
+    private static boolean borrowAll(PartBufferPool pool, int count) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(() -> pool.borrow(count)).get(5, TimeUnit.SECONDS).size() == count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}